@@ -0,0 +1,618 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import ru.kitsu.dnsproxy.parser.DNSQuestion;
+import ru.kitsu.dnsproxy.parser.DNSWire;
+
+/**
+ * Structured log of answered client queries, one JSON object or CSV row per
+ * query
+ *
+ * Queries are sampled by a hash of their name, so with a rate of N about one
+ * name in N is logged with all of its queries. Errors, timeouts, slow queries
+ * and queries for names given with {@link #addName(String)} are always
+ * logged.
+ *
+ * Entries are queued without blocking and written by a dedicated thread that
+ * formats them into a reused buffer, entries that don't fit into the queue
+ * are dropped and counted. The file is rotated by size and age, rotated
+ * files get a timestamp suffix and are optionally gzipped in background.
+ *
+ */
+public final class AccessLog {
+	public static final String DEFAULT_FIELDS = "time,client,qname,qtype,rcode,status,latency,upstream,size";
+
+	private static final String[] FIELD_NAMES = { "time", "client", "qname",
+			"qtype", "rcode", "status", "latency", "upstream", "size" };
+	private static final int FIELD_TIME = 0;
+	private static final int FIELD_CLIENT = 1;
+	private static final int FIELD_QNAME = 2;
+	private static final int FIELD_QTYPE = 3;
+	private static final int FIELD_RCODE = 4;
+	private static final int FIELD_STATUS = 5;
+	private static final int FIELD_LATENCY = 6;
+	private static final int FIELD_UPSTREAM = 7;
+	private static final int FIELD_SIZE = 8;
+
+	private static final String[] RCODE_NAMES = { "NOERROR", "FORMERR",
+			"SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED" };
+
+	private static final int QUEUE_SIZE = 65536;
+	// Entries formatted between writes
+	private static final int BATCH_SIZE = 1024;
+	private static final int BUFFER_SIZE = 262144;
+	// How often writer wakes up to check rotation when idle
+	private static final long IDLE_MILLIS = 1000;
+	// How long stop waits for the writer
+	private static final long STOP_MILLIS = 2000;
+
+	/**
+	 * How a query was answered
+	 */
+	public enum Status {
+		LOCAL, BLOCKED, CACHE, PEER, UPSTREAM, SERVFAIL, TIMEOUT;
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	private static final class Entry {
+		private final long time;
+		private final InetAddress client;
+		private final String name;
+		private final int qtype;
+		private final int rcode;
+		private final Status status;
+		private final long latency;
+		private final InetSocketAddress upstream;
+		private final int size;
+
+		private Entry(long time, InetAddress client, String name, int qtype,
+				int rcode, Status status, long latency,
+				InetSocketAddress upstream, int size) {
+			this.time = time;
+			this.client = client;
+			this.name = name;
+			this.qtype = qtype;
+			this.rcode = rcode;
+			this.status = status;
+			this.latency = latency;
+			this.upstream = upstream;
+			this.size = size;
+		}
+	}
+
+	private final Path file;
+	private final boolean json;
+	private final int[] fields;
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(
+			QUEUE_SIZE);
+	private final AtomicLong logged = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private int sampleRate = 1;
+	private long slowNanos = Long.MAX_VALUE;
+	private final Set<String> names = new HashSet<>();
+	private long rotateBytes;
+	private long rotateMillis;
+	private boolean gzip;
+	private Thread thread;
+	private volatile boolean stopping;
+
+	/**
+	 * @param format
+	 *            json or csv
+	 * @param fields
+	 *            comma separated names of fields in the order they are
+	 *            written, see {@link #DEFAULT_FIELDS}
+	 */
+	public AccessLog(Path file, String format, String fields) {
+		this.file = file;
+		switch (format) {
+			case "json":
+				this.json = true;
+				break;
+			case "csv":
+				this.json = false;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown access log format '"
+						+ format + "'");
+		}
+		final String[] split = fields.split(",");
+		this.fields = new int[split.length];
+		for (int i = 0; i < split.length; ++i) {
+			this.fields[i] = fieldIndex(split[i].trim());
+		}
+	}
+
+	/**
+	 * Logs one in rate names, and every query slower than slowMillis
+	 *
+	 * MUST be called before start
+	 */
+	public void setSampling(int rate, long slowMillis) {
+		if (rate < 1)
+			throw new IllegalArgumentException("Bad sample rate " + rate);
+		this.sampleRate = rate;
+		this.slowNanos = slowMillis > 0 ? TimeUnit.MILLISECONDS
+				.toNanos(slowMillis) : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Always logs queries for name and names below it
+	 *
+	 * MUST be called before start
+	 */
+	public void addName(String name) {
+		names.add(normalize(name));
+	}
+
+	/**
+	 * Rotates the file when it grows over maxBytes or gets older than
+	 * maxMillis, zero disables either check
+	 *
+	 * MUST be called before start
+	 */
+	public void setRotation(long maxBytes, long maxMillis, boolean gzip) {
+		this.rotateBytes = maxBytes;
+		this.rotateMillis = maxMillis;
+		this.gzip = gzip;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public long getLogged() {
+		return logged.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public void start() {
+		thread = new Thread(new Writer(), "Access log " + file.getFileName());
+		thread.start();
+	}
+
+	/**
+	 * Writes what is queued and closes the file, without interrupting a
+	 * write in progress, waits a little for the writer to finish
+	 */
+	public void stop() {
+		stopping = true;
+		if (thread == null)
+			return;
+		try {
+			thread.join(STOP_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Logs an answered or timed out client request if it is sampled
+	 *
+	 * @param response
+	 *            response sent to client, null if nothing was sent
+	 * @param upstream
+	 *            upstream the response came from, or null
+	 */
+	public void log(ProxyRequest request, Status status,
+			ProxyResponse response, SocketAddress upstream) {
+		final DNSQuestion[] questions = request.getMessage().getQuestions();
+		final String name = questions.length > 0 ? questions[0].getName()
+				: "";
+		final long latency = System.nanoTime() - request.getTimestamp();
+		final byte[] packet = response != null ? response
+				.getResponsePacket() : null;
+		final int rcode;
+		if (response == null)
+			rcode = -1;
+		else if (packet != null)
+			rcode = packet.length > 3 ? packet[3] & 0x0f : -1;
+		else
+			rcode = response.getTemplate().getRcode();
+		if (!isSampled(name, status, rcode, latency))
+			return;
+		final int size;
+		if (response == null)
+			size = -1;
+		else if (packet != null)
+			size = packet.length;
+		else
+			size = response.getTemplate().size(
+					response.getRequestPacket(),
+					response.getRequestPacket().length);
+		final InetAddress client = request.getAddr() instanceof InetSocketAddress ? ((InetSocketAddress) request
+				.getAddr()).getAddress() : null;
+		if (queue.offer(new Entry(System.currentTimeMillis(), client, name,
+				questions.length > 0 ? questions[0].getQType() : -1, rcode,
+				status, latency,
+				upstream instanceof InetSocketAddress ? (InetSocketAddress) upstream
+						: null, size)))
+			logged.incrementAndGet();
+		else
+			dropped.incrementAndGet();
+	}
+
+	private boolean isSampled(String name, Status status, int rcode,
+			long latency) {
+		if (sampleRate == 1 || status == Status.TIMEOUT
+				|| status == Status.SERVFAIL || DNSWire.isErrorRcode(rcode)
+				|| latency >= slowNanos)
+			return true;
+		if (!names.isEmpty() && isNameLogged(name))
+			return true;
+		return Long.remainderUnsigned(nameHash(name), sampleRate) == 0;
+	}
+
+	private boolean isNameLogged(String name) {
+		name = normalize(name);
+		while (true) {
+			if (names.contains(name))
+				return true;
+			final int dot = name.indexOf('.');
+			if (dot == -1)
+				return names.contains("");
+			name = name.substring(dot + 1);
+		}
+	}
+
+	// FNV-1a of the name ignoring case and the trailing dot, so every query
+	// of a name gets the same decision without allocating
+	private static long nameHash(String name) {
+		int length = name.length();
+		if (length > 0 && name.charAt(length - 1) == '.')
+			--length;
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < length; ++i) {
+			char c = name.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			hash = (hash ^ c) * 0x100000001b3L;
+		}
+		return hash ^ (hash >>> 29);
+	}
+
+	private static String normalize(String name) {
+		name = name.toLowerCase(Locale.ROOT);
+		if (name.endsWith("."))
+			name = name.substring(0, name.length() - 1);
+		return name;
+	}
+
+	private static int fieldIndex(String field) {
+		for (int i = 0; i < FIELD_NAMES.length; ++i) {
+			if (FIELD_NAMES[i].equals(field))
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown access log field '"
+				+ field + "'");
+	}
+
+	private class Writer implements Runnable {
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final StringBuilder line = new StringBuilder(1024);
+		private final StringBuilder scratch = new StringBuilder(256);
+		private final List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+		private final SimpleDateFormat timeFormat = new SimpleDateFormat(
+				"yyyy-MM-dd'T'HH:mm:ss.");
+		private final SimpleDateFormat suffixFormat = new SimpleDateFormat(
+				"yyyyMMdd-HHmmss");
+		private FileChannel channel;
+		private long written;
+		// Entries written since the file was opened
+		private long entries;
+		private long opened;
+		// Formatted time of the last second seen
+		private long lastSecond = -1;
+		private String lastTime;
+
+		private Writer() {
+			timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+
+		@Override
+		public void run() {
+			try {
+				open();
+				while (!stopping) {
+					final Entry entry = queue.poll(IDLE_MILLIS,
+							TimeUnit.MILLISECONDS);
+					if (entry != null) {
+						batch.add(entry);
+						queue.drainTo(batch, BATCH_SIZE - 1);
+						writeBatch();
+					}
+					if (isRotationDue())
+						rotate();
+				}
+				// Whatever was queued before stop
+				while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+					writeBatch();
+				}
+				channel.close();
+			} catch (InterruptedException e) {
+				// exiting
+			} catch (IOException e) {
+				System.out.format("Access log %s failed: %s\n", file, e);
+			}
+		}
+
+		private void writeBatch() throws IOException {
+			for (Entry entry : batch) {
+				format(entry);
+				if (buffer.remaining() < line.length())
+					flush();
+				for (int i = 0; i < line.length(); ++i) {
+					// Formatting escapes everything outside of ASCII
+					buffer.put((byte) line.charAt(i));
+				}
+			}
+			entries += batch.size();
+			batch.clear();
+			flush();
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		private boolean isRotationDue() {
+			if (entries == 0)
+				return false;
+			return (rotateBytes > 0 && written >= rotateBytes)
+					|| (rotateMillis > 0 && System.currentTimeMillis() - opened >= rotateMillis);
+		}
+
+		private void open() throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			written = channel.size();
+			entries = 0;
+			opened = System.currentTimeMillis();
+			if (written == 0 && !json) {
+				line.setLength(0);
+				for (int i = 0; i < fields.length; ++i) {
+					if (i > 0)
+						line.append(',');
+					line.append(FIELD_NAMES[fields[i]]);
+				}
+				line.append('\n');
+				for (int i = 0; i < line.length(); ++i) {
+					buffer.put((byte) line.charAt(i));
+				}
+				flush();
+			}
+		}
+
+		private void rotate() throws IOException {
+			channel.close();
+			final String base = file.getFileName() + "."
+					+ suffixFormat.format(new Date());
+			Path rotated = file.resolveSibling(base);
+			for (int i = 1; Files.exists(rotated)
+					|| Files.exists(Paths.get(rotated + ".gz")); ++i) {
+				rotated = file.resolveSibling(base + "-" + i);
+			}
+			Files.move(file, rotated, StandardCopyOption.ATOMIC_MOVE);
+			if (gzip)
+				compress(rotated);
+			open();
+		}
+
+		// Gzips a rotated file in background, writer never waits for it
+		private void compress(final Path rotated) {
+			final Thread compressThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final Path target = Paths.get(rotated + ".gz");
+					try (InputStream in = Files.newInputStream(rotated);
+							OutputStream out = new GZIPOutputStream(
+									Files.newOutputStream(target), 65536)) {
+						final byte[] chunk = new byte[65536];
+						int n;
+						while ((n = in.read(chunk)) != -1) {
+							out.write(chunk, 0, n);
+						}
+					} catch (IOException e) {
+						System.out.format("Cannot compress %s: %s\n", rotated,
+								e);
+						return;
+					}
+					try {
+						Files.delete(rotated);
+					} catch (IOException e) {
+						System.out.format("Cannot delete %s: %s\n", rotated, e);
+					}
+				}
+			}, "Access log compress");
+			compressThread.start();
+		}
+
+		private void format(Entry entry) {
+			line.setLength(0);
+			if (json)
+				line.append('{');
+			for (int i = 0; i < fields.length; ++i) {
+				if (i > 0)
+					line.append(',');
+				final int field = fields[i];
+				if (json) {
+					line.append('"').append(FIELD_NAMES[field]).append("\":");
+				}
+				switch (field) {
+					case FIELD_TIME:
+						scratch.setLength(0);
+						appendTime(scratch, entry.time);
+						appendString(scratch);
+						break;
+					case FIELD_CLIENT:
+						appendString(entry.client != null ? entry.client
+								.getHostAddress() : null);
+						break;
+					case FIELD_QNAME:
+						scratch.setLength(0);
+						appendName(scratch, entry.name);
+						appendString(scratch);
+						break;
+					case FIELD_QTYPE:
+						appendString(entry.qtype >= 0 ? DNSWire
+								.typeName(entry.qtype) : null);
+						break;
+					case FIELD_RCODE:
+						appendString(entry.rcode < 0 ? null
+								: entry.rcode < RCODE_NAMES.length ? RCODE_NAMES[entry.rcode]
+										: "RCODE" + entry.rcode);
+						break;
+					case FIELD_STATUS:
+						appendString(entry.status.label);
+						break;
+					case FIELD_LATENCY:
+						// Milliseconds with microsecond precision
+						final long micros = entry.latency / 1000;
+						line.append(micros / 1000).append('.');
+						final long fraction = micros % 1000;
+						if (fraction < 100)
+							line.append('0');
+						if (fraction < 10)
+							line.append('0');
+						line.append(fraction);
+						break;
+					case FIELD_UPSTREAM:
+						if (entry.upstream == null) {
+							appendString(null);
+							break;
+						}
+						scratch.setLength(0);
+						final InetAddress address = entry.upstream.getAddress();
+						if (address instanceof Inet6Address)
+							scratch.append('[')
+									.append(address.getHostAddress())
+									.append(']');
+						else
+							scratch.append(address.getHostAddress());
+						scratch.append(':').append(entry.upstream.getPort());
+						appendString(scratch);
+						break;
+					case FIELD_SIZE:
+						if (entry.size >= 0)
+							line.append(entry.size);
+						else if (json)
+							line.append("null");
+						break;
+					default:
+						throw new IllegalStateException();
+				}
+			}
+			if (json)
+				line.append('}');
+			line.append('\n');
+		}
+
+		// UTC time with milliseconds, formatting the date once a second
+		private void appendTime(StringBuilder sb, long millis) {
+			final long second = millis / 1000;
+			if (second != lastSecond) {
+				lastTime = timeFormat.format(new Date(second * 1000));
+				lastSecond = second;
+			}
+			final long fraction = millis % 1000;
+			sb.append(lastTime);
+			if (fraction < 100)
+				sb.append('0');
+			if (fraction < 10)
+				sb.append('0');
+			sb.append(fraction).append('Z');
+		}
+
+		// Quotes value as the format requires, null is written as a missing
+		// value, values are ASCII by now
+		private void appendString(CharSequence value) {
+			if (value == null) {
+				if (json)
+					line.append("null");
+				return;
+			}
+			if (json) {
+				line.append('"');
+				for (int i = 0; i < value.length(); ++i) {
+					final char c = value.charAt(i);
+					if (c == '"' || c == '\\')
+						line.append('\\');
+					line.append(c);
+				}
+				line.append('"');
+				return;
+			}
+			boolean quote = false;
+			for (int i = 0; i < value.length() && !quote; ++i) {
+				final char c = value.charAt(i);
+				quote = c == ',' || c == '"';
+			}
+			if (!quote) {
+				line.append(value);
+				return;
+			}
+			line.append('"');
+			for (int i = 0; i < value.length(); ++i) {
+				final char c = value.charAt(i);
+				if (c == '"')
+					line.append('"');
+				line.append(c);
+			}
+			line.append('"');
+		}
+	}
+
+	// Presentation format of a name, bytes outside of printable ASCII are
+	// escaped as \DDD
+	private static void appendName(StringBuilder sb, String name) {
+		for (int i = 0; i < name.length(); ++i) {
+			final char c = name.charAt(i);
+			if (c > ' ' && c < 0x7f) {
+				sb.append(c);
+				continue;
+			}
+			final int value = c & 0xff;
+			sb.append('\\');
+			if (value < 100)
+				sb.append('0');
+			if (value < 10)
+				sb.append('0');
+			sb.append(value);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Helpers for addresses of both IPv4 and IPv6
+ *
+ */
+public final class Addresses {
+	private Addresses() {
+	}
+
+	/**
+	 * Parses host:port, [address]:port, [address], host or a bare IPv6
+	 * literal into an unresolved address
+	 *
+	 * @param defaultPort
+	 *            port used when there is none, -1 if it is required
+	 */
+	public static InetSocketAddress parse(String value, int defaultPort) {
+		String host = value;
+		int port = defaultPort;
+		if (value.startsWith("[")) {
+			final int end = value.indexOf(']');
+			if (end == -1 || (end + 1 < value.length()
+					&& value.charAt(end + 1) != ':'))
+				throw new IllegalArgumentException("Bad address '" + value + "'");
+			host = value.substring(1, end);
+			if (end + 1 < value.length())
+				port = Integer.parseInt(value.substring(end + 2));
+		} else {
+			final int index = value.lastIndexOf(':');
+			// More colons than one are an IPv6 literal without port
+			if (index != -1 && value.indexOf(':') == index) {
+				host = value.substring(0, index);
+				port = Integer.parseInt(value.substring(index + 1));
+			}
+		}
+		if (port < 0)
+			throw new IllegalArgumentException("Missing port in '" + value
+					+ "'");
+		return InetSocketAddress.createUnresolved(host, port);
+	}
+
+	/**
+	 * Parses and resolves an address, see {@link #parse(String, int)}
+	 */
+	public static InetSocketAddress resolve(String value, int defaultPort)
+			throws IOException {
+		final InetSocketAddress parsed = parse(value, defaultPort);
+		final InetSocketAddress addr = new InetSocketAddress(
+				parsed.getHostString(), parsed.getPort());
+		if (addr.isUnresolved())
+			throw new IOException("Cannot resolve '" + parsed.getHostString()
+					+ "'");
+		return addr;
+	}
+
+	public static ProtocolFamily familyOf(InetAddress address) {
+		return address instanceof Inet6Address ? StandardProtocolFamily.INET6
+				: StandardProtocolFamily.INET;
+	}
+
+	/**
+	 * Opens a datagram channel of the address family
+	 */
+	public static DatagramChannel openChannel(InetAddress address)
+			throws IOException {
+		return DatagramChannel.open(familyOf(address));
+	}
+
+	/**
+	 * Opens a channel bound to a listening address, a wildcard address is
+	 * left to the system default family, which is dual-stack unless IPv6 is
+	 * disabled
+	 *
+	 * @param reusePort
+	 *            if other sockets, e.g. of a new process, may bind the same
+	 *            address and share its queries
+	 */
+	public static DatagramChannel openListener(InetSocketAddress listen,
+			boolean reusePort) throws IOException {
+		final DatagramChannel socket = listen.getAddress().isAnyLocalAddress() ? DatagramChannel
+				.open() : openChannel(listen.getAddress());
+		try {
+			if (reusePort)
+				setReusePort(socket);
+			socket.bind(listen);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	// SO_REUSEPORT is looked up by name, it is only standard since Java 9
+	@SuppressWarnings("unchecked")
+	private static void setReusePort(DatagramChannel socket)
+			throws IOException {
+		for (SocketOption<?> option : socket.supportedOptions()) {
+			if (option.name().equals("SO_REUSEPORT")
+					&& option.type() == Boolean.class) {
+				socket.setOption((SocketOption<Boolean>) option, true);
+				return;
+			}
+		}
+		throw new IOException("SO_REUSEPORT is not supported");
+	}
+}
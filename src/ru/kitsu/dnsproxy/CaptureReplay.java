@@ -0,0 +1,134 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends client queries of a capture to a proxy, keeping their timing
+ *
+ * Usage: CaptureReplay [-target host:port] [-speed factor] file
+ *
+ * A speed of 2 replays twice as fast, 0 sends queries as fast as possible.
+ * Responses are counted, not checked.
+ *
+ */
+public final class CaptureReplay {
+	private static final int MAX_PACKET_SIZE = 16384;
+	// How long to wait for responses after the last query
+	private static final long DRAIN_MILLIS = 2000;
+
+	private CaptureReplay() {
+	}
+
+	private static void usage() {
+		System.out
+				.println("Usage: CaptureReplay [-target host:port] [-speed factor] file");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		String target = "127.0.0.1:53";
+		double speed = 1;
+		String file = null;
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-target":
+					if (++i >= args.length)
+						usage();
+					target = args[i];
+					break;
+				case "-speed":
+					if (++i >= args.length)
+						usage();
+					speed = Double.parseDouble(args[i]);
+					break;
+				default:
+					if (file != null || args[i].startsWith("-"))
+						usage();
+					file = args[i];
+			}
+		}
+		if (file == null || speed < 0)
+			usage();
+		final InetSocketAddress addr = Addresses.resolve(target, 53);
+		final Path path = Paths.get(file);
+		final List<Long> times = new ArrayList<>();
+		final List<byte[]> queries = new ArrayList<>();
+		final long started = PacketCapture.read(path,
+				new PacketCapture.Visitor() {
+					@Override
+					public void visit(int kind, long nanos,
+							InetSocketAddress client, byte[] packet) {
+						if (kind == PacketCapture.KIND_QUERY) {
+							times.add(nanos);
+							queries.add(packet);
+						}
+					}
+				});
+		System.out.format("Replaying %d queries captured at %s to %s\n",
+				queries.size(), new Date(started), addr);
+
+		final DatagramChannel socket = Addresses.openChannel(addr.getAddress());
+		socket.connect(addr);
+		final AtomicLong received = new AtomicLong();
+		final Thread receiveThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final ByteBuffer buffer = ByteBuffer
+						.allocateDirect(MAX_PACKET_SIZE);
+				while (!Thread.interrupted()) {
+					buffer.clear();
+					try {
+						socket.receive(buffer);
+					} catch (ClosedChannelException e) {
+						break;
+					} catch (IOException e) {
+						continue; // e.g. port unreachable
+					}
+					received.incrementAndGet();
+				}
+			}
+		}, "Replay receive");
+		receiveThread.start();
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+		final long t0 = System.nanoTime();
+		final long first = times.isEmpty() ? 0 : times.get(0);
+		for (int i = 0; i < queries.size(); ++i) {
+			if (speed > 0) {
+				final long due = t0
+						+ (long) ((times.get(i) - first) / speed);
+				final long wait = due - System.nanoTime();
+				if (wait > 0)
+					TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			buffer.clear();
+			buffer.put(queries.get(i));
+			buffer.flip();
+			try {
+				socket.write(buffer);
+			} catch (IOException e) {
+				// e.g. port unreachable from a previous query
+			}
+		}
+		final long t1 = System.nanoTime();
+		Thread.sleep(DRAIN_MILLIS);
+		socket.close();
+		receiveThread.join();
+		System.out.format(
+				"Sent %d queries in %dms (%.0f qps), received %d responses\n",
+				queries.size(), TimeUnit.NANOSECONDS.toMillis(t1 - t0),
+				queries.size() * 1e9 / Math.max(1, t1 - t0), received.get());
+	}
+}
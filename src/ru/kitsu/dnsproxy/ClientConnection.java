@@ -0,0 +1,17 @@
+package ru.kitsu.dnsproxy;
+
+/**
+ * Client connection that carries its own responses, like DNS over HTTPS
+ *
+ * Requests from a connection are processed exactly like UDP requests, but
+ * their responses are handed to the connection instead of the send queue.
+ *
+ */
+public interface ClientConnection {
+	/**
+	 * Takes a response for a request of this connection
+	 *
+	 * Called on processing and receive threads, MUST NOT block
+	 */
+	void send(ProxyResponse response);
+}
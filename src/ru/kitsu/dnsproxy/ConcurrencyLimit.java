@@ -0,0 +1,110 @@
+package ru.kitsu.dnsproxy;
+
+/**
+ * Adaptive limit of requests in flight to a single upstream
+ *
+ * Works in the spirit of TCP Vegas: a slow moving average of round trip
+ * times is taken as the latency of an upstream that keeps up, and every
+ * response compares its own round trip time to it. While they are close
+ * the limit grows by about the square root of itself, so an upstream may
+ * queue a few requests. Once round trips get longer than the average by
+ * more than the tolerance, the limit shrinks in proportion, and every
+ * timeout cuts it multiplicatively. So an overloaded upstream gets fewer
+ * requests until it catches up.
+ *
+ * Comparing to an average instead of the lowest round trip time ever seen
+ * keeps the limit stable on fast networks, where jitter is larger than the
+ * round trip itself.
+ *
+ * Everything except {@link #getLimit()} MUST be called on processing thread
+ *
+ */
+public final class ConcurrencyLimit {
+	// Limit of a new upstream, before anything is measured
+	private static final int INITIAL_LIMIT = 20;
+	// Limit never goes below this, so an upstream is never shut off
+	private static final int MIN_LIMIT = 2;
+	// Round trips up to this times the average don't shrink the limit
+	private static final double TOLERANCE = 2;
+	// Weight of a new sample in the average round trip time
+	private static final double RTT_ALPHA = 0.005;
+	// Weight of a new estimate in the limit
+	private static final double SMOOTHING = 0.2;
+	// Share of limit kept after a timeout
+	private static final double BACKOFF = 0.9;
+
+	private final int maxLimit;
+	private volatile int limit;
+	private double window;
+	private double averageRtt;
+
+	/**
+	 * @param maxLimit
+	 *            limit never grows above this
+	 */
+	public ConcurrencyLimit(int maxLimit) {
+		if (maxLimit < MIN_LIMIT)
+			throw new IllegalArgumentException("Bad concurrency limit "
+					+ maxLimit);
+		this.maxLimit = maxLimit;
+		this.window = Math.min(INITIAL_LIMIT, maxLimit);
+		this.limit = (int) window;
+	}
+
+	/**
+	 * Requests allowed in flight now
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Adjusts limit to a response
+	 *
+	 * @param rtt
+	 *            time in nanoseconds from sending the request to the response
+	 * @param inflight
+	 *            requests that were in flight with it
+	 */
+	public void onSuccess(long rtt, int inflight) {
+		if (rtt <= 0)
+			return;
+		if (averageRtt == 0) {
+			averageRtt = rtt;
+		} else {
+			averageRtt += RTT_ALPHA * (rtt - averageRtt);
+			// The average follows an upstream that got faster quickly, or
+			// it would tolerate its old latency for a long time
+			if (averageRtt > TOLERANCE * rtt)
+				averageRtt *= 0.95;
+		}
+		final double gradient = Math.max(0.5,
+				Math.min(1, TOLERANCE * averageRtt / rtt));
+		double estimate = window * gradient + Math.sqrt(window);
+		if (inflight * 2 < window) {
+			// Grow only while the window is in use, idle upstreams would
+			// otherwise get limits they were never tested with
+			estimate = Math.min(estimate, window);
+		}
+		window += SMOOTHING * (estimate - window);
+		update();
+	}
+
+	/**
+	 * Adjusts limit to a request the upstream never answered
+	 */
+	public void onDrop() {
+		window *= BACKOFF;
+		update();
+	}
+
+	private void update() {
+		window = Math.max(MIN_LIMIT, Math.min(maxLimit, window));
+		limit = (int) window;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d/%dus", limit, (long) averageRtt / 1000);
+	}
+}
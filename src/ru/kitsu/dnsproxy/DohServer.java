@@ -0,0 +1,292 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import ru.kitsu.dnsproxy.parser.DNSMessage;
+import ru.kitsu.dnsproxy.parser.DNSParseException;
+import ru.kitsu.dnsproxy.parser.DNSWire;
+import ru.kitsu.dnsproxy.parser.ResponseTemplate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * DNS over HTTPS listener (RFC 8484)
+ *
+ * Queries are accepted with GET and POST on /dns-query over persistent
+ * HTTP/1.1 connections, and go straight to the processing thread like
+ * requests received over UDP. A worker thread waits for the response of
+ * its request only, so slow upstreams don't hold up other connections.
+ *
+ * Without a TLS context queries are served over plain HTTP, for running
+ * behind a TLS terminating proxy.
+ *
+ */
+public final class DohServer {
+	private static final String PATH = "/dns-query";
+	private static final String CONTENT_TYPE = "application/dns-message";
+	// Largest DNS message over HTTP
+	private static final int MAX_PACKET_SIZE = 65535;
+	// Requests are always answered before this, it's just a safety net
+	private static final long RESPONSE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	static {
+		// The server writes headers and body separately, which waits for
+		// delayed acks of small responses unless Nagle is disabled
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final ProxyServer proxyServer;
+	private final InetSocketAddress addr;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	// Waits for the response of a single request
+	private static final class Pending implements ClientConnection {
+		private ProxyResponse response;
+
+		@Override
+		public synchronized void send(ProxyResponse response) {
+			if (this.response == null) {
+				this.response = response;
+				notifyAll();
+			}
+		}
+
+		public synchronized ProxyResponse await(long timeoutMillis)
+				throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (response == null) {
+				final long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					break;
+				wait(left);
+			}
+			return response;
+		}
+	}
+
+	private class QueryHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				handleQuery(exchange);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * @param sslContext
+	 *            context with the server certificate, null for plain HTTP
+	 * @param threads
+	 *            number of requests processed at the same time
+	 */
+	public DohServer(ProxyServer proxyServer, InetSocketAddress addr,
+			SSLContext sslContext, int threads) throws IOException {
+		this.proxyServer = proxyServer;
+		this.addr = addr;
+		if (sslContext != null) {
+			final HttpsServer https = HttpsServer.create(addr, 0);
+			https.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+			server = https;
+		} else {
+			server = HttpServer.create(addr, 0);
+		}
+		final String prefix = "DoH " + addr + " worker ";
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, prefix + count.incrementAndGet());
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext(PATH, new QueryHandler());
+	}
+
+	/**
+	 * Loads a server certificate and its key from a key store file
+	 */
+	public static SSLContext loadContext(String keyStoreFile, String password)
+			throws IOException {
+		final char[] secret = password != null ? password.toCharArray()
+				: new char[0];
+		try (InputStream in = new FileInputStream(keyStoreFile)) {
+			final KeyStore keyStore = KeyStore.getInstance(KeyStore
+					.getDefaultType());
+			keyStore.load(in, secret);
+			final KeyManagerFactory kmf = KeyManagerFactory
+					.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, secret);
+			final SSLContext context = SSLContext.getInstance("TLS");
+			context.init(kmf.getKeyManagers(), null, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot load key store '" + keyStoreFile
+					+ "'", e);
+		}
+	}
+
+	public InetSocketAddress getAddr() {
+		return addr;
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		stop(0);
+	}
+
+	/**
+	 * Stops accepting connections and waits up to delaySeconds for queries
+	 * being answered
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		executor.shutdownNow();
+	}
+
+	private void handleQuery(HttpExchange exchange) throws IOException,
+			InterruptedException {
+		final byte[] packet;
+		switch (exchange.getRequestMethod()) {
+			case "GET":
+				packet = decodeQuery(exchange.getRequestURI().getRawQuery());
+				break;
+			case "POST":
+				if (!CONTENT_TYPE.equalsIgnoreCase(exchange.getRequestHeaders()
+						.getFirst("Content-Type"))) {
+					sendStatus(exchange, 415);
+					return;
+				}
+				packet = readBody(exchange.getRequestBody());
+				if (packet == null) {
+					sendStatus(exchange, 413);
+					return;
+				}
+				break;
+			default:
+				exchange.getResponseHeaders().set("Allow", "GET, POST");
+				sendStatus(exchange, 405);
+				return;
+		}
+		final DNSMessage message = parse(packet);
+		if (message == null) {
+			sendStatus(exchange, 400);
+			return;
+		}
+		final Pending pending = new Pending();
+		final ProxyRequest request = new ProxyRequest(
+				exchange.getRemoteAddress(), packet, message);
+		request.setConnection(pending);
+		if (!proxyServer.submitRequest(request))
+			pending.send(new ProxyResponse(request, ResponseTemplate.SERVFAIL));
+		final ProxyResponse response = pending.await(RESPONSE_TIMEOUT);
+		if (response == null) {
+			sendStatus(exchange, 504);
+			return;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+		if (!response.write(buffer)) {
+			sendStatus(exchange, 502);
+			return;
+		}
+		final byte[] body = Arrays.copyOf(buffer.array(), buffer.position());
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		try {
+			// -1 means there are no records to take a TTL from
+			final int ttl = DNSWire.minimumTtl(body);
+			if (ttl >= 0)
+				exchange.getResponseHeaders().set("Cache-Control",
+						"max-age=" + ttl);
+		} catch (DNSParseException e) {
+			// no caching hint
+		}
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	// Decodes the dns parameter of a GET query, null if it's missing
+	private static byte[] decodeQuery(String query) {
+		if (query == null)
+			return null;
+		for (String param : query.split("&")) {
+			if (param.startsWith("dns=")) {
+				try {
+					return Base64.getUrlDecoder().decode(param.substring(4));
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	// Reads a POST body, null if it's too large for a DNS message
+	private static byte[] readBody(InputStream in) throws IOException {
+		byte[] buffer = new byte[512];
+		int length = 0;
+		int n;
+		while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+			length += n;
+			if (length == buffer.length) {
+				if (length > MAX_PACKET_SIZE)
+					break;
+				buffer = Arrays.copyOf(buffer, Math.min(length * 2,
+						MAX_PACKET_SIZE + 1));
+			}
+		}
+		if (length > MAX_PACKET_SIZE)
+			return null;
+		return Arrays.copyOf(buffer, length);
+	}
+
+	// Parses a query, null if it's not a valid request
+	private static DNSMessage parse(byte[] packet) {
+		if (packet == null || packet.length < DNSWire.HEADER_SIZE)
+			return null;
+		final DNSMessage message;
+		try {
+			message = DNSMessage.parse(ByteBuffer.wrap(packet), false);
+		} catch (BufferUnderflowException | DNSParseException e) {
+			return null;
+		}
+		return message.isResponse() ? null : message;
+	}
+
+	private static void sendStatus(HttpExchange exchange, int status)
+			throws IOException {
+		exchange.sendResponseHeaders(status, -1);
+	}
+}
@@ -0,0 +1,76 @@
+package ru.kitsu.dnsproxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ru.kitsu.dnsproxy.cache.CacheKey;
+
+/**
+ * Consistent hash ring of nodes
+ *
+ * Every node is placed on the ring at several points derived from its name,
+ * a hash is owned by the node of the next point clockwise. Nodes are found
+ * by name only, so processes that list the same names in any order agree on
+ * owners, and adding or removing a node moves only its share of hashes.
+ *
+ */
+public final class HashRing<T> {
+	// Points per node, more points even out the shares
+	private static final int POINTS_PER_NODE = 128;
+
+	private final long[] points;
+	private final Object[] owners;
+
+	/**
+	 * @param names
+	 *            names of nodes, must be unique
+	 */
+	public HashRing(List<String> names, List<T> nodes) {
+		if (names.isEmpty() || names.size() != nodes.size())
+			throw new IllegalArgumentException("Bad hash ring nodes");
+		final long[][] entries = new long[names.size() * POINTS_PER_NODE][];
+		for (int i = 0; i < names.size(); ++i) {
+			for (int j = 0; j < POINTS_PER_NODE; ++j) {
+				final byte[] point = (names.get(i) + "#" + j)
+						.getBytes(StandardCharsets.UTF_8);
+				entries[i * POINTS_PER_NODE + j] = new long[] {
+						mix(CacheKey.hash64(point, 0, point.length)), i };
+			}
+		}
+		Arrays.sort(entries, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return Long.compare(o1[0], o2[0]);
+			}
+		});
+		points = new long[entries.length];
+		owners = new Object[entries.length];
+		for (int i = 0; i < entries.length; ++i) {
+			points[i] = entries[i][0];
+			owners[i] = nodes.get((int) entries[i][1]);
+		}
+	}
+
+	/**
+	 * Returns the node that owns hash
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(long hash) {
+		int i = Arrays.binarySearch(points, mix(hash));
+		if (i < 0)
+			i = -i - 1;
+		return (T) owners[i < points.length ? i : 0];
+	}
+
+	// Spreads similar hashes over the ring
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
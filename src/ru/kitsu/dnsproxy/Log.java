@@ -0,0 +1,270 @@
+package ru.kitsu.dnsproxy;
+
+import java.util.Date;
+import java.util.Formatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Diagnostic log written to stdout by a background thread
+ *
+ * Statements below the current level return after a single volatile read,
+ * so they cost nothing as long as their arguments aren't built just for
+ * them. Enabled statements put the format and its arguments into a ring
+ * buffer with a single atomic add, and the writer thread formats them
+ * later, so callers never format anything or wait on the stdout lock.
+ * Arguments MUST NOT change after they are logged. Statements that don't
+ * fit into the buffer are dropped and counted.
+ *
+ * Messages without arguments are written as is, others are formatted with
+ * {@link Formatter}.
+ *
+ */
+public final class Log {
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	// Statements the buffer holds, a power of two
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+	// Output is written once this much is formatted or the buffer is empty
+	private static final int BATCH_SIZE = 65536;
+	// Longest sleep of the writer when there is nothing to write
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// Vyukov's bounded queue: a slot is free for position p when its
+	// sequence is p, and written when it is p + 1
+	private static final AtomicLongArray sequences = new AtomicLongArray(
+			CAPACITY);
+	private static final long[] times = new long[CAPACITY];
+	private static final Level[] levels = new Level[CAPACITY];
+	private static final String[] formats = new String[CAPACITY];
+	private static final int[] argCounts = new int[CAPACITY];
+	private static final Object[] args0 = new Object[CAPACITY];
+	private static final Object[] args1 = new Object[CAPACITY];
+	private static final AtomicLong tail = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final Thread writer;
+
+	private static volatile Level level = Level.INFO;
+	// Level restored when debug is toggled off
+	private static volatile Level baseLevel = Level.INFO;
+	private static volatile boolean idle;
+	// Position up to which statements are written out
+	private static volatile long flushed;
+
+	static {
+		for (int i = 0; i < CAPACITY; ++i) {
+			sequences.set(i, i);
+		}
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Log writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private Log() {
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static void setLevel(Level level) {
+		Log.baseLevel = level;
+		Log.level = level;
+	}
+
+	/**
+	 * Switches between debug and the level that was set
+	 *
+	 * @return the new level
+	 */
+	public static Level toggleDebug() {
+		level = level == Level.DEBUG ? baseLevel : Level.DEBUG;
+		return level;
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(Log.level) <= 0;
+	}
+
+	/**
+	 * Statements dropped so far because the writer fell behind
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	public static void error(String message) {
+		if (isEnabled(Level.ERROR))
+			append(Level.ERROR, message, 0, null, null);
+	}
+
+	public static void error(String format, Object arg0) {
+		if (isEnabled(Level.ERROR))
+			append(Level.ERROR, format, 1, arg0, null);
+	}
+
+	public static void error(String format, Object arg0, Object arg1) {
+		if (isEnabled(Level.ERROR))
+			append(Level.ERROR, format, 2, arg0, arg1);
+	}
+
+	public static void warn(String message) {
+		if (isEnabled(Level.WARN))
+			append(Level.WARN, message, 0, null, null);
+	}
+
+	public static void warn(String format, Object arg0) {
+		if (isEnabled(Level.WARN))
+			append(Level.WARN, format, 1, arg0, null);
+	}
+
+	public static void warn(String format, Object arg0, Object arg1) {
+		if (isEnabled(Level.WARN))
+			append(Level.WARN, format, 2, arg0, arg1);
+	}
+
+	public static void info(String message) {
+		if (isEnabled(Level.INFO))
+			append(Level.INFO, message, 0, null, null);
+	}
+
+	public static void info(String format, Object arg0) {
+		if (isEnabled(Level.INFO))
+			append(Level.INFO, format, 1, arg0, null);
+	}
+
+	public static void info(String format, Object arg0, Object arg1) {
+		if (isEnabled(Level.INFO))
+			append(Level.INFO, format, 2, arg0, arg1);
+	}
+
+	public static void debug(String message) {
+		if (isEnabled(Level.DEBUG))
+			append(Level.DEBUG, message, 0, null, null);
+	}
+
+	public static void debug(String format, Object arg0) {
+		if (isEnabled(Level.DEBUG))
+			append(Level.DEBUG, format, 1, arg0, null);
+	}
+
+	public static void debug(String format, Object arg0, Object arg1) {
+		if (isEnabled(Level.DEBUG))
+			append(Level.DEBUG, format, 2, arg0, arg1);
+	}
+
+	/**
+	 * Waits until everything logged so far is written, or timeout passes
+	 */
+	public static void flush(long timeoutMillis) {
+		final long position = tail.get();
+		final long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		LockSupport.unpark(writer);
+		while (flushed < position && System.nanoTime() - deadline < 0) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	// Called on any thread
+	private static void append(Level level, String format, int argCount,
+			Object arg0, Object arg1) {
+		long position = tail.get();
+		int slot;
+		while (true) {
+			slot = (int) position & MASK;
+			final long available = sequences.get(slot) - position;
+			if (available == 0) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			} else if (available < 0) {
+				// Writer hasn't freed the slot from the previous round
+				dropped.incrementAndGet();
+				return;
+			} else {
+				position = tail.get(); // taken by another thread
+			}
+		}
+		times[slot] = System.currentTimeMillis();
+		levels[slot] = level;
+		formats[slot] = format;
+		argCounts[slot] = argCount;
+		args0[slot] = arg0;
+		args1[slot] = arg1;
+		sequences.set(slot, position + 1);
+		if (idle)
+			LockSupport.unpark(writer);
+	}
+
+	// Runs on writer thread, formats statements in order of their slots
+	private static void write() {
+		final StringBuilder sb = new StringBuilder(BATCH_SIZE);
+		final Formatter formatter = new Formatter(sb);
+		final Date date = new Date();
+		long head = 0;
+		long reported = 0;
+		while (true) {
+			final int slot = (int) head & MASK;
+			if (sequences.get(slot) != head + 1) {
+				final long lost = dropped.get();
+				if (lost != reported) {
+					date.setTime(System.currentTimeMillis());
+					sb.append('[').append(date).append("] WARN Dropped ")
+							.append(lost - reported)
+							.append(" log statements\n");
+					reported = lost;
+				}
+				if (sb.length() > 0) {
+					System.out.print(sb);
+					System.out.flush();
+					sb.setLength(0);
+				}
+				flushed = head;
+				idle = true;
+				// Rechecked after idle is set, so an unpark isn't missed
+				if (sequences.get(slot) != head + 1)
+					LockSupport.parkNanos(IDLE_NANOS);
+				idle = false;
+				continue;
+			}
+			date.setTime(times[slot]);
+			sb.append('[').append(date).append("] ");
+			if (levels[slot] != Level.INFO)
+				sb.append(levels[slot]).append(' ');
+			final String format = formats[slot];
+			if (argCounts[slot] == 0) {
+				sb.append(format);
+			} else {
+				final int start = sb.length();
+				try {
+					formatter.format(format, args0[slot], args1[slot]);
+				} catch (RuntimeException e) {
+					// Bad format or toString() of an argument failed
+					sb.setLength(start);
+					sb.append(format).append(' ').append(e);
+				}
+			}
+			sb.append('\n');
+			formats[slot] = null;
+			args0[slot] = null;
+			args1[slot] = null;
+			sequences.lazySet(slot, head + CAPACITY);
+			++head;
+			if (sb.length() >= BATCH_SIZE) {
+				System.out.print(sb);
+				sb.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package ru.kitsu.dnsproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Approximate memory held by the proxy, with a global limit
+ *
+ * Memory is accounted in pools, so that usage can be reported per pool.
+ * Only new work asks for permission with {@link Pool#tryAcquire(long)}:
+ * memory for work already accepted, like responses and log records, is
+ * always added, and counts against the limit for new work.
+ *
+ */
+public final class MemoryBudget {
+	private long limit = Long.MAX_VALUE;
+	private final AtomicLong used = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final List<Pool> pools = new ArrayList<>();
+	private final List<Gauge> gauges = new ArrayList<>();
+	private final List<String> gaugeNames = new ArrayList<>();
+
+	/**
+	 * Memory that is allocated and bounded elsewhere, only read by the budget
+	 */
+	public interface Gauge {
+		long getBytes();
+	}
+
+	public final class Pool {
+		private final String name;
+		private final AtomicLong bytes = new AtomicLong();
+
+		private Pool(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/**
+		 * Adds bytes if the budget allows it, returns false otherwise
+		 */
+		public boolean tryAcquire(long n) {
+			if (used.addAndGet(n) + gaugeBytes() > limit) {
+				used.addAndGet(-n);
+				rejected.incrementAndGet();
+				return false;
+			}
+			bytes.addAndGet(n);
+			return true;
+		}
+
+		/**
+		 * Adds bytes regardless of the limit
+		 */
+		public void add(long n) {
+			used.addAndGet(n);
+			bytes.addAndGet(n);
+		}
+
+		public void release(long n) {
+			used.addAndGet(-n);
+			bytes.addAndGet(-n);
+		}
+	}
+
+	/**
+	 * Creates a pool
+	 *
+	 * MUST be called before the budget is used
+	 */
+	public Pool createPool(String name) {
+		final Pool pool = new Pool(name);
+		pools.add(pool);
+		return pool;
+	}
+
+	/**
+	 * Adds memory reported by gauge to the budget
+	 *
+	 * MUST be called before the budget is used
+	 */
+	public void addGauge(String name, Gauge gauge) {
+		gaugeNames.add(name);
+		gauges.add(gauge);
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets limit in bytes, 0 for no limit
+	 *
+	 * MUST be called before the budget is used
+	 */
+	public void setLimit(long limit) {
+		this.limit = limit > 0 ? limit : Long.MAX_VALUE;
+	}
+
+	public long getUsed() {
+		return used.get() + gaugeBytes();
+	}
+
+	/**
+	 * Number of times new work was refused
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Appends usage of every pool in kilobytes
+	 */
+	public void appendUsage(StringBuilder sb) {
+		for (Pool pool : pools) {
+			sb.append(pool.getName());
+			sb.append(" ");
+			sb.append(pool.getBytes() / 1024);
+			sb.append("KB, ");
+		}
+		for (int i = 0; i < gauges.size(); ++i) {
+			sb.append(gaugeNames.get(i));
+			sb.append(" ");
+			sb.append(gauges.get(i).getBytes() / 1024);
+			sb.append("KB, ");
+		}
+		sb.append("total ");
+		sb.append(getUsed() / 1024);
+		if (limit != Long.MAX_VALUE) {
+			sb.append("/");
+			sb.append(limit / 1024);
+		}
+		sb.append("KB, rejected ");
+		sb.append(rejected.get());
+	}
+
+	private long gaugeBytes() {
+		long n = 0;
+		for (Gauge gauge : gauges) {
+			n += gauge.getBytes();
+		}
+		return n;
+	}
+}
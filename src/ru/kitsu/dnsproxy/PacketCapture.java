@@ -0,0 +1,167 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture of client queries and upstream responses for replay
+ *
+ * The file is preallocated and mapped, threads reserve space for a record
+ * with a single atomic add and copy it into the mapping, so capturing never
+ * blocks or makes system calls on the receive path. Every record starts
+ * with its length, written after the rest of the record, so a reader stops
+ * at the first record that was never completed. Records that don't fit are
+ * dropped and counted.
+ *
+ * Timestamps are System.nanoTime() relative to the start of the capture,
+ * the header has the wall clock time of the start.
+ *
+ */
+public final class PacketCapture {
+	private static final int MAGIC = 0x444e5350; // "DNSP"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	// length, kind, address length, port, timestamp
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	// Query received from a client
+	public static final int KIND_QUERY = 1;
+	// Response received from an upstream
+	public static final int KIND_RESPONSE = 2;
+
+	private final Path file;
+	private final MappedByteBuffer buffer;
+	private final long startNanos;
+	private final AtomicInteger position = new AtomicInteger(HEADER_SIZE);
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public interface Visitor {
+		void visit(int kind, long nanos, InetSocketAddress addr, byte[] packet);
+	}
+
+	private PacketCapture(Path file, MappedByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Creates or truncates file and maps capacity bytes of it
+	 */
+	public static PacketCapture create(Path file, int capacity)
+			throws IOException {
+		// Leaves room for reservations past the end without overflow
+		if (capacity <= HEADER_SIZE || capacity > Integer.MAX_VALUE / 2)
+			throw new IllegalArgumentException("Bad capture size " + capacity);
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, capacity);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(8, System.currentTimeMillis());
+			return new PacketCapture(file, buffer);
+		}
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public long getRecords() {
+		return records.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Appends a packet, called on any thread
+	 */
+	public void record(int kind, InetSocketAddress addr, byte[] packet) {
+		final long nanos = System.nanoTime() - startNanos;
+		final byte[] address = addr.getAddress().getAddress();
+		final int size = RECORD_HEADER_SIZE + address.length + packet.length;
+		// Don't let failed reservations wrap around
+		if (position.get() > buffer.capacity() - size) {
+			dropped.incrementAndGet();
+			return;
+		}
+		final int start = position.getAndAdd(size);
+		if (start > buffer.capacity() - size) {
+			dropped.incrementAndGet();
+			return;
+		}
+		final ByteBuffer record = buffer.duplicate();
+		record.position(start + 4);
+		record.put((byte) kind);
+		record.put((byte) address.length);
+		record.putShort((short) addr.getPort());
+		record.putLong(nanos);
+		record.put(address);
+		record.put(packet);
+		buffer.putInt(start, size);
+		records.incrementAndGet();
+	}
+
+	/**
+	 * Flushes captured records to the file
+	 */
+	public void close() {
+		buffer.force();
+	}
+
+	/**
+	 * Reads every complete record of a capture
+	 *
+	 * @return wall clock time in milliseconds when the capture started
+	 */
+	public static long read(Path file, Visitor visitor) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+				throw new IOException("Bad capture size " + size);
+			final MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+				throw new IOException("Not a capture: " + file);
+			int pos = HEADER_SIZE;
+			while (pos <= size - RECORD_HEADER_SIZE) {
+				final int length = buffer.getInt(pos);
+				if (length < RECORD_HEADER_SIZE || length > size - pos)
+					break; // end of capture or incomplete record
+				final int kind = buffer.get(pos + 4);
+				final int addressLength = buffer.get(pos + 5);
+				final int port = buffer.getShort(pos + 6) & 0xffff;
+				final long nanos = buffer.getLong(pos + 8);
+				final int packetLength = length - RECORD_HEADER_SIZE
+						- addressLength;
+				if (packetLength < 0)
+					throw new IOException("Corrupt capture: " + file);
+				final byte[] address = new byte[addressLength];
+				final byte[] packet = new byte[packetLength];
+				final ByteBuffer record = buffer.duplicate();
+				record.position(pos + RECORD_HEADER_SIZE);
+				record.get(address);
+				record.get(packet);
+				visitor.visit(kind, nanos, new InetSocketAddress(
+						InetAddress.getByAddress(address), port), packet);
+				pos += length;
+			}
+			return buffer.getLong(8);
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import ru.kitsu.dnsproxy.cache.CacheKey;
+import ru.kitsu.dnsproxy.parser.DNSMessage;
+import ru.kitsu.dnsproxy.parser.DNSParseException;
+import ru.kitsu.dnsproxy.parser.DNSWire;
+import ru.kitsu.dnsproxy.parser.ResponseTemplate;
+
+/**
+ * Cache shared between proxy nodes
+ *
+ * Every question is owned by one node, picked by consistent hashing over
+ * the addresses of all nodes. On a local cache miss the owner is asked
+ * first, over UDP, with the original query. The owner answers from its
+ * cache only, or with REFUSED if it has nothing. When the request is then
+ * answered by upstreams the response is pushed to the owner, so a question
+ * is resolved upstream about once per TTL by the whole cluster, and every
+ * node that asks for it keeps a copy in its own cache.
+ *
+ * Only packets from configured peers are accepted, and responses only for
+ * a pending lookup with a random id. Source addresses are easily spoofed,
+ * so pushed responses, which nothing was asked for, are only sent and
+ * accepted when nodes share a secret: every peer packet then ends with an
+ * HMAC-SHA256 of its contents, and packets without a valid one are dropped.
+ *
+ */
+public final class PeerCache {
+	// Maximum message should be 512 bytes
+	// We accept up to 16384 bytes just in case
+	private static final int MAX_PACKET_SIZE = 16384;
+	// Maximum expected number of outgoing packets buildup
+	private static final int MAX_PACKETS = 8192;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final int MAC_SIZE = 32;
+
+	private final ProxyServer proxyServer;
+	private final InetSocketAddress addr;
+	private final DatagramChannel socket;
+	private final Thread receiveThread;
+	private final Thread sendThread;
+	private final HashRing<InetSocketAddress> ring;
+	private final Set<InetSocketAddress> peers = new HashSet<>();
+	private final long timeout;
+	private final BlockingQueue<Packet> outgoing = new ArrayBlockingQueue<>(
+			MAX_PACKETS);
+	// Requests waiting for their owner by id
+	private final Map<Short, ProxyRequest> pending = new HashMap<>();
+	private final Random random = new SecureRandom();
+	// Signs packets on send thread and checks them on receive thread, null
+	// without a shared secret
+	private final Mac signer;
+	private final Mac verifier;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static final class Packet {
+		private final InetSocketAddress addr;
+		private final byte[] data;
+
+		public Packet(InetSocketAddress addr, byte[] data) {
+			this.addr = addr;
+			this.data = data;
+		}
+	}
+
+	private class ReceiveWorker implements Runnable {
+		@Override
+		public void run() {
+			final ByteBuffer buffer = ByteBuffer
+					.allocateDirect(MAX_PACKET_SIZE + MAC_SIZE);
+			try {
+				while (!Thread.interrupted()) {
+					buffer.clear();
+					final SocketAddress remote;
+					try {
+						remote = socket.receive(buffer);
+					} catch (ClosedChannelException e) {
+						break;
+					} catch (IOException e) {
+						e.printStackTrace();
+						continue;
+					}
+					if (!peers.contains(remote))
+						continue; // ignore packets from unexpected sources
+					buffer.flip();
+					if (verifier != null && !verify(buffer))
+						continue; // forged or from a node with another secret
+					onPacket(buffer, (InetSocketAddress) remote);
+				}
+			} catch (InterruptedException e) {
+				// interrupted
+			}
+		}
+	}
+
+	private class SendWorker implements Runnable {
+		@Override
+		public void run() {
+			final ByteBuffer buffer = ByteBuffer
+					.allocateDirect(MAX_PACKET_SIZE + MAC_SIZE);
+			try {
+				while (!Thread.interrupted()) {
+					final Packet packet = outgoing.take();
+					buffer.clear();
+					buffer.put(packet.data);
+					if (signer != null)
+						buffer.put(signer.doFinal(packet.data));
+					buffer.flip();
+					try {
+						socket.send(buffer, packet.addr);
+					} catch (ClosedChannelException e) {
+						break;
+					} catch (IOException e) {
+						e.printStackTrace();
+						continue;
+					}
+				}
+			} catch (InterruptedException e) {
+				// interrupted
+			}
+		}
+	}
+
+	/**
+	 * @param addr
+	 *            address of this node, peers must list it the same way
+	 * @param peers
+	 *            addresses of other nodes
+	 * @param timeoutMillis
+	 *            how long to wait for the owner before going upstream
+	 * @param secret
+	 *            secret shared by all nodes, null to send nothing but answers
+	 *            to lookups unauthenticated
+	 */
+	public PeerCache(ProxyServer proxyServer, InetSocketAddress addr,
+			List<InetSocketAddress> peers, long timeoutMillis, byte[] secret)
+			throws IOException {
+		this.proxyServer = proxyServer;
+		if (secret != null) {
+			try {
+				final SecretKeySpec key = new SecretKeySpec(secret,
+						MAC_ALGORITHM);
+				signer = Mac.getInstance(MAC_ALGORITHM);
+				signer.init(key);
+				verifier = Mac.getInstance(MAC_ALGORITHM);
+				verifier.init(key);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Cannot use peer secret", e);
+			}
+		} else {
+			signer = null;
+			verifier = null;
+		}
+		this.addr = addr;
+		this.peers.addAll(peers);
+		this.peers.remove(addr);
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final List<InetSocketAddress> nodes = new ArrayList<>(this.peers);
+		nodes.add(addr);
+		final List<String> names = new ArrayList<>(nodes.size());
+		for (InetSocketAddress node : nodes) {
+			names.add(node.getAddress().getHostAddress() + ":"
+					+ node.getPort());
+		}
+		this.ring = new HashRing<>(names, nodes);
+		socket = Addresses.openChannel(addr.getAddress());
+		socket.bind(addr);
+		receiveThread = new Thread(new ReceiveWorker(), "Peer cache " + addr
+				+ " receive");
+		sendThread = new Thread(new SendWorker(), "Peer cache " + addr
+				+ " send");
+	}
+
+	public InetSocketAddress getAddr() {
+		return addr;
+	}
+
+	/**
+	 * Number of requests answered by owners
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Number of requests owners couldn't answer in time
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public void start() {
+		receiveThread.start();
+		sendThread.start();
+	}
+
+	public void stop() {
+		receiveThread.interrupt();
+		sendThread.interrupt();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// asks the owner of the question, returns false if this node owns it
+	boolean lookup(final ProxyRequest request) throws InterruptedException {
+		final DNSMessage message = request.getMessage();
+		if (request.isProbe() || message.getQuestions().length != 1)
+			return false;
+		final InetSocketAddress owner = ring.get(CacheKey.forQuestion(
+				message.getQuestions()[0]).hash64());
+		if (owner == addr)
+			return false;
+		final byte[] packet = request.getPacket().clone();
+		// Random, so that a spoofed answer has to guess it
+		short id;
+		do {
+			id = (short) random.nextInt();
+		} while (pending.containsKey(id));
+		final short lookupId = id;
+		packet[0] = (byte) (id >> 8);
+		packet[1] = (byte) id;
+		request.setPeer(owner);
+		pending.put(lookupId, request);
+		outgoing.put(new Packet(owner, packet));
+		proxyServer.scheduleAt(System.nanoTime() + timeout,
+				new Callable<Void>() {
+					@Override
+					public Void call() throws InterruptedException {
+						if (pending.remove(lookupId, request)) {
+							misses.incrementAndGet();
+							proxyServer.onPeerMiss(request);
+						}
+						return null;
+					}
+				});
+		return true;
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// gives the owner a response for the question it didn't have, only
+	// when packets are authenticated
+	void push(InetSocketAddress owner, byte[] packet) {
+		if (signer != null)
+			outgoing.offer(new Packet(owner, packet));
+	}
+
+	// Called on receive thread
+	// checks and removes the MAC at the end of buffer
+	private boolean verify(ByteBuffer buffer) {
+		final int length = buffer.limit() - MAC_SIZE;
+		if (length < DNSWire.HEADER_SIZE)
+			return false;
+		final byte[] data = new byte[length];
+		final byte[] mac = new byte[MAC_SIZE];
+		buffer.get(data);
+		buffer.get(mac);
+		buffer.rewind();
+		buffer.limit(length);
+		return MessageDigest.isEqual(verifier.doFinal(data), mac);
+	}
+
+	// Called on receive thread
+	private void onPacket(ByteBuffer buffer, final InetSocketAddress remote)
+			throws InterruptedException {
+		final DNSMessage message;
+		try {
+			message = DNSMessage.parse(buffer, false);
+		} catch (BufferUnderflowException | DNSParseException e) {
+			return;
+		}
+		if (message.getQuestions().length != 1)
+			return;
+		buffer.rewind();
+		final byte[] packet = new byte[buffer.limit()];
+		buffer.get(packet);
+		proxyServer.schedule(new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				if (!message.isResponse()) {
+					answer(remote, message, packet);
+				} else if (message.getRcode() == DNSWire.RCODE_REFUSED) {
+					onOwnerMiss(remote, message);
+				} else {
+					onOwnerResponse(remote, message, packet);
+				}
+				return null;
+			}
+		});
+	}
+
+	// MUST be called on processing thread
+	// answers a peer asking this node as the owner
+	private void answer(InetSocketAddress remote, DNSMessage message,
+			byte[] packet) throws InterruptedException {
+		final byte[] cached = proxyServer.getCached(message, packet);
+		if (cached != null) {
+			cached[0] = packet[0];
+			cached[1] = packet[1];
+			outgoing.put(new Packet(remote, cached));
+			return;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(packet.length);
+		if (ResponseTemplate.REFUSED.write(buffer, packet, packet.length)) {
+			outgoing.put(new Packet(remote, Arrays.copyOf(
+					buffer.array(), buffer.position())));
+		}
+	}
+
+	// MUST be called on processing thread
+	private void onOwnerMiss(InetSocketAddress remote, DNSMessage message)
+			throws InterruptedException {
+		final ProxyRequest request = takePending(remote, message);
+		if (request != null) {
+			misses.incrementAndGet();
+			proxyServer.onPeerMiss(request);
+		}
+	}
+
+	// MUST be called on processing thread
+	// stores responses given or pushed by peers
+	private void onOwnerResponse(InetSocketAddress remote, DNSMessage message,
+			byte[] packet) throws InterruptedException {
+		final ProxyRequest request = takePending(remote, message);
+		if (request != null) {
+			hits.incrementAndGet();
+			proxyServer.onPeerHit(request, message, packet);
+		} else if (verifier != null) {
+			// Authenticated, so it's a push from a node that resolved it
+			proxyServer.putCached(message, packet);
+		}
+		// otherwise unsolicited and possibly spoofed, drop it
+	}
+
+	// Returns the request that asked remote about the question, if any
+	private ProxyRequest takePending(InetSocketAddress remote,
+			DNSMessage message) {
+		final ProxyRequest request = pending.get(message.getId());
+		if (request == null || !remote.equals(request.getPeer())
+				|| !request.getMessage().getQuestions()[0]
+						.equals(message.getQuestions()[0]))
+			return null;
+		pending.remove(message.getId());
+		return request;
+	}
+}
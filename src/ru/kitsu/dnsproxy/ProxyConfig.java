@@ -0,0 +1,134 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parsed configuration files
+ * 
+ * Every line is [suffix|]host[:port][|options], where options are comma
+ * separated key=value pairs. A line with an empty host sets options of the
+ * suffix itself, currently only timeout=ms is supported there. Upstream
+ * options are timeout=ms, retransmit=ms, transport=udp|tcp, group=name and
+ * weight=n.
+ * Upstreams with a group only get requests routed to it by rules, lines
+ * starting with rule are described in {@link RoutingRules}.
+ * 
+ */
+public final class ProxyConfig {
+	private final List<UpstreamConfig> upstreams = new ArrayList<>();
+	private final List<String> timeoutSuffixes = new ArrayList<>();
+	private final List<Long> timeouts = new ArrayList<>();
+	private final List<RoutingRules.Rule> ruleList = new ArrayList<>();
+	private RoutingRules rules = RoutingRules.EMPTY;
+
+	public List<UpstreamConfig> getUpstreams() {
+		return Collections.unmodifiableList(upstreams);
+	}
+
+	public void addUpstream(UpstreamConfig config) {
+		upstreams.add(config);
+	}
+
+	public RoutingRules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Returns timeout in milliseconds of the longest suffix matching the
+	 * name, or 0 if there is none
+	 */
+	public long getSuffixTimeout(String name) {
+		long timeout = 0;
+		int length = -1;
+		for (int i = 0; i < timeoutSuffixes.size(); ++i) {
+			final String suffix = timeoutSuffixes.get(i);
+			if (suffix.length() > length && endsWithIgnoreCase(name, suffix)) {
+				timeout = timeouts.get(i);
+				length = suffix.length();
+			}
+		}
+		return timeout;
+	}
+
+	private static boolean endsWithIgnoreCase(String name, String suffix) {
+		return name.regionMatches(true, name.length() - suffix.length(),
+				suffix, 0, suffix.length());
+	}
+
+	public static ProxyConfig load(List<String> filenames) throws IOException {
+		final ProxyConfig config = new ProxyConfig();
+		for (String filename : filenames) {
+			config.loadFile(filename);
+		}
+		for (RoutingRules.Rule rule : config.ruleList) {
+			if (rule.getGroup() != null && !config.hasGroup(rule.getGroup()))
+				throw new IllegalArgumentException("No upstreams in group of "
+						+ rule);
+		}
+		config.rules = new RoutingRules(config.ruleList);
+		return config;
+	}
+
+	private boolean hasGroup(String group) {
+		for (UpstreamConfig upstream : upstreams) {
+			if (upstream.getGroup().equals(group))
+				return true;
+		}
+		return false;
+	}
+
+	private void loadFile(final String filename) throws IOException {
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+			new FileInputStream(filename)))) {
+			String line;
+			while (null != (line = r.readLine())) {
+				int index = line.indexOf('#');
+				if (index != -1) {
+					line = line.substring(0, index);
+				}
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				if (line.startsWith("rule ")) {
+					ruleList.add(RoutingRules.Rule.parse(line.substring(5)));
+					continue;
+				}
+				String[] split = line.split("\\|", -1);
+				int count = split.length;
+				String options = null;
+				if (count > 1 && split[count - 1].indexOf('=') != -1) {
+					options = split[--count];
+				}
+				int splitIndex = 0;
+				String suffix = count > 1 ? split[splitIndex++].trim() : "";
+				String upstreamHost = split[splitIndex].trim();
+				if (upstreamHost.isEmpty()) {
+					addSuffixOptions(suffix, options);
+				} else {
+					upstreams.add(UpstreamConfig.createConfig(suffix, upstreamHost, options));
+				}
+			}
+		}
+	}
+
+	private void addSuffixOptions(String suffix, String options) {
+		if (suffix.isEmpty() || options == null)
+			throw new IllegalArgumentException("Missing upstream host");
+		for (String option : options.split(",")) {
+			option = option.trim();
+			if (option.startsWith("timeout=")) {
+				timeoutSuffixes.add(suffix);
+				timeouts.add(Long.parseLong(option.substring(8).trim()));
+			} else if (!option.isEmpty()) {
+				throw new IllegalArgumentException("Unknown suffix option '" + option + "'");
+			}
+		}
+	}
+}
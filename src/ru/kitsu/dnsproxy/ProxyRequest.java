@@ -1,6 +1,8 @@
 package ru.kitsu.dnsproxy;
 
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -18,13 +20,31 @@ public final class ProxyRequest {
 	private static final int MAX_UPSTREAMS = 10;
 	private static final long defaultTimeout = TimeUnit.SECONDS.toNanos(5);
 
+	// Listening socket the request came from
+	private final DatagramChannel socket;
 	private final SocketAddress addr;
 	private final byte[] packet;
 	private final DNSMessage message;
 	private final long timestamp;
-	private final long deadline;
+	private long deadline;
 	private final List<UpstreamResponse> responses = new ArrayList<>(MAX_UPSTREAMS);
+	private final boolean probe;
+	private final List<UpstreamServer> upstreams = new ArrayList<>(MAX_UPSTREAMS);
+	private int failedCount;
 	private boolean finished = false;
+	private boolean answered = false;
+	private boolean graceScheduled = false;
+	// Packet with client subnet sent to upstreams instead of the original
+	private byte[] upstreamPacket;
+	private boolean clientOpt;
+	// Bytes charged to the memory budget for this request
+	private int memory;
+	// Peer that owns the question in a shared cache, if it was asked
+	private InetSocketAddress peer;
+	// Connection the request came from, null for UDP
+	private ClientConnection connection;
+	// Routing rule that matched the request, if any
+	private RoutingRules.Rule route;
 
 	public static final class DeadlineComparator implements
 			Comparator<ProxyRequest> {
@@ -38,17 +58,54 @@ public final class ProxyRequest {
 		}
 	}
 
+	public ProxyRequest(DatagramChannel socket, SocketAddress addr,
+			byte[] packet, DNSMessage message) {
+		this(socket, addr, packet, message, defaultTimeout, false);
+	}
+
 	public ProxyRequest(SocketAddress addr, byte[] packet, DNSMessage message) {
 		this(addr, packet, message, defaultTimeout);
 	}
 
 	public ProxyRequest(SocketAddress addr, byte[] packet, DNSMessage message,
 			long timeout) {
+		this(null, addr, packet, message, timeout, false);
+	}
+
+	private ProxyRequest(DatagramChannel socket, SocketAddress addr,
+			byte[] packet, DNSMessage message, long timeout, boolean probe) {
+		this.socket = socket;
 		this.addr = addr;
 		this.packet = packet;
 		this.message = message;
 		this.timestamp = System.nanoTime();
 		this.deadline = timestamp + timeout;
+		this.probe = probe;
+	}
+
+	/**
+	 * Creates a health probe, which has no client and is never answered
+	 */
+	public static ProxyRequest createProbe(byte[] packet, DNSMessage message,
+			long timeout) {
+		return new ProxyRequest(null, null, packet, message, timeout, true);
+	}
+
+	public DatagramChannel getSocket() {
+		return socket;
+	}
+
+	public ClientConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Sends responses to connection instead of a listening socket
+	 * 
+	 * MUST be called before the request is scheduled
+	 */
+	public void setConnection(ClientConnection connection) {
+		this.connection = connection;
 	}
 
 	public SocketAddress getAddr() {
@@ -59,6 +116,38 @@ public final class ProxyRequest {
 		return packet;
 	}
 
+	/**
+	 * Returns the packet sent to upstreams
+	 */
+	public byte[] getUpstreamPacket() {
+		return upstreamPacket != null ? upstreamPacket : packet;
+	}
+
+	/**
+	 * Sets the packet with client subnet sent to upstreams
+	 * 
+	 * @param clientOpt
+	 *            true if the original packet had an OPT record
+	 */
+	public void setUpstreamPacket(byte[] upstreamPacket, boolean clientOpt) {
+		this.upstreamPacket = upstreamPacket;
+		this.clientOpt = clientOpt;
+	}
+
+	/**
+	 * Returns true if client subnet was added to the upstream packet
+	 */
+	public boolean hasClientSubnet() {
+		return upstreamPacket != null;
+	}
+
+	/**
+	 * Returns true if the client sent an OPT record
+	 */
+	public boolean hasClientOpt() {
+		return clientOpt;
+	}
+
 	public DNSMessage getMessage() {
 		return message;
 	}
@@ -71,6 +160,43 @@ public final class ProxyRequest {
 		return deadline;
 	}
 
+	// MUST be called before request is added to inflight queue
+	public void setTimeout(long timeout) {
+		this.deadline = timestamp + timeout;
+	}
+
+	public boolean isProbe() {
+		return probe;
+	}
+
+	/**
+	 * Upstreams the request was sent to
+	 */
+	public List<UpstreamServer> getUpstreams() {
+		return upstreams;
+	}
+
+	public void addUpstream(UpstreamServer upstream) {
+		upstreams.add(upstream);
+	}
+
+	/**
+	 * Records an upstream that gave up on the request
+	 * 
+	 * @return true if there are no more upstreams to wait for
+	 */
+	public boolean addFailure() {
+		++failedCount;
+		return isComplete();
+	}
+
+	/**
+	 * Returns true if every upstream either responded or gave up
+	 */
+	public boolean isComplete() {
+		return responses.size() + failedCount >= upstreams.size();
+	}
+
 	public List<UpstreamResponse> getResponses() {
 		return responses;
 	}
@@ -81,6 +207,63 @@ public final class ProxyRequest {
 		return index;
 	}
 
+	/**
+	 * Returns true if a response was already sent to the client
+	 */
+	public boolean isAnswered() {
+		return answered;
+	}
+
+	public void setAnswered() {
+		answered = true;
+	}
+
+	/**
+	 * Marks that a grace period timer was scheduled, returns false if it
+	 * already was
+	 */
+	public boolean setGraceScheduled() {
+		boolean prev = !graceScheduled;
+		graceScheduled = true;
+		return prev;
+	}
+
+	public void setMemory(int memory) {
+		this.memory = memory;
+	}
+
+	/**
+	 * Returns bytes charged for the request, only once
+	 */
+	public int takeMemory() {
+		final int result = memory;
+		memory = 0;
+		return result;
+	}
+
+	public InetSocketAddress getPeer() {
+		return peer;
+	}
+
+	public void setPeer(InetSocketAddress peer) {
+		this.peer = peer;
+	}
+
+	public RoutingRules.Rule getRoute() {
+		return route;
+	}
+
+	public void setRoute(RoutingRules.Rule route) {
+		this.route = route;
+	}
+
+	/**
+	 * Returns true if responses may be cached and shared with other clients
+	 */
+	public boolean isShared() {
+		return route == null || !route.isClientSpecific();
+	}
+
 	public boolean isFinished() {
 		return finished;
 	}
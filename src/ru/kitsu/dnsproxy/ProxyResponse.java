@@ -1,6 +1,10 @@
 package ru.kitsu.dnsproxy;
 
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import ru.kitsu.dnsproxy.parser.ResponseTemplate;
 
 /**
  * Response that should be sent back to the client
@@ -9,14 +13,81 @@ import java.net.SocketAddress;
  * 
  */
 public class ProxyResponse {
+	private final DatagramChannel socket;
+	private final ClientConnection connection;
 	private final SocketAddress addr;
 	private final short requestId;
 	private final byte[] responsePacket;
+	private final byte[] requestPacket;
+	private final ResponseTemplate template;
 
 	public ProxyResponse(ProxyRequest request, UpstreamResponse response) {
+		this.socket = request.getSocket();
+		this.connection = request.getConnection();
 		this.addr = request.getAddr();
 		this.requestId = request.getMessage().getId();
 		this.responsePacket = response.getPacket();
+		this.requestPacket = null;
+		this.template = null;
+	}
+
+	public ProxyResponse(SocketAddress addr, short requestId,
+			byte[] responsePacket) {
+		this.socket = null;
+		this.connection = null;
+		this.addr = addr;
+		this.requestId = requestId;
+		this.responsePacket = responsePacket;
+		this.requestPacket = null;
+		this.template = null;
+	}
+
+	public ProxyResponse(ProxyRequest request, byte[] responsePacket) {
+		this.socket = request.getSocket();
+		this.connection = request.getConnection();
+		this.addr = request.getAddr();
+		this.requestId = request.getMessage().getId();
+		this.responsePacket = responsePacket;
+		this.requestPacket = null;
+		this.template = null;
+	}
+
+	/**
+	 * Creates a response synthesized from the request packet
+	 */
+	public ProxyResponse(DatagramChannel socket, SocketAddress addr,
+			byte[] requestPacket, ResponseTemplate template) {
+		this(socket, null, addr, requestPacket, template);
+	}
+
+	public ProxyResponse(ProxyRequest request, ResponseTemplate template) {
+		this(request.getSocket(), request.getConnection(), request.getAddr(),
+				request.getPacket(), template);
+	}
+
+	private ProxyResponse(DatagramChannel socket, ClientConnection connection,
+			SocketAddress addr, byte[] requestPacket, ResponseTemplate template) {
+		this.socket = socket;
+		this.connection = connection;
+		this.addr = addr;
+		this.requestId = (short) (((requestPacket[0] & 0xff) << 8) | (requestPacket[1] & 0xff));
+		this.responsePacket = null;
+		this.requestPacket = requestPacket;
+		this.template = template;
+	}
+
+	/**
+	 * Listening socket to send from, null for the default one
+	 */
+	public DatagramChannel getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Connection to send to, null if the response is sent over UDP
+	 */
+	public ClientConnection getConnection() {
+		return connection;
 	}
 
 	public SocketAddress getAddr() {
@@ -27,7 +98,34 @@ public class ProxyResponse {
 		return requestId;
 	}
 
+	/**
+	 * Response packet, or null if response is synthesized from a template
+	 */
 	public byte[] getResponsePacket() {
 		return responsePacket;
 	}
+
+	public byte[] getRequestPacket() {
+		return requestPacket;
+	}
+
+	public ResponseTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Writes the response packet with the id of the request into buffer
+	 * 
+	 * @return false if the response doesn't fit or is malformed
+	 */
+	public boolean write(ByteBuffer buffer) {
+		if (template != null)
+			return template.write(buffer, requestPacket, requestPacket.length);
+		if (responsePacket.length < 12
+				|| responsePacket.length > buffer.remaining())
+			return false;
+		buffer.putShort(requestId);
+		buffer.put(responsePacket, 2, responsePacket.length - 2);
+		return true;
+	}
 }
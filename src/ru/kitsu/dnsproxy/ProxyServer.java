@@ -1,32 +1,54 @@
 package ru.kitsu.dnsproxy;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.net.StandardProtocolFamily;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.net.ssl.SSLContext;
+
+import ru.kitsu.dnsproxy.cache.ResponseCache;
+import ru.kitsu.dnsproxy.local.LocalData;
 import ru.kitsu.dnsproxy.parser.DNSMessage;
 import ru.kitsu.dnsproxy.parser.DNSParseException;
+import ru.kitsu.dnsproxy.parser.DNSQuestion;
+import ru.kitsu.dnsproxy.parser.DNSWire;
+import ru.kitsu.dnsproxy.parser.ResponseTemplate;
 
 /**
  * Proxy server that forwards requests to upstreams
@@ -35,8 +57,6 @@ import ru.kitsu.dnsproxy.parser.DNSParseException;
  * 
  */
 public class ProxyServer {
-	// For debugging, print requests and responses
-	private static final boolean DEBUG = true;
 	// Maximum message should be 512 bytes
 	// We accept up to 16384 bytes just in case
 	private static final int MAX_PACKET_SIZE = 16384;
@@ -44,8 +64,47 @@ public class ProxyServer {
 	private static final int MAX_PACKETS = 8192;
 	// Maximum expected number of processing ops buildup
 	private static final int MAX_PROCESSING = 16384;
+	// How long shutdown waits for the diagnostic log to be written
+	private static final long LOG_FLUSH_MILLIS = 1000;
 	// Maximum expected number of logged requests buildup
 	private static final int MAX_LOGGED = 8192;
+	// Maximum number of requests waiting for upstreams under their limits
+	private static final int MAX_WAITING = 4096;
+	// Default time requests wait for upstreams under their limits, in ms
+	private static final long DEFAULT_LIMIT_QUEUE = 100;
+	// Default timeout of requests in milliseconds
+	private static final long DEFAULT_TIMEOUT = 5000;
+	// Default initial retransmission interval in milliseconds
+	private static final long DEFAULT_RETRANSMIT = 1000;
+	// Default time priority policy waits for preferred upstreams in milliseconds
+	private static final long DEFAULT_GRACE = 50;
+	// Approximate heap used by a request besides its packet
+	private static final int REQUEST_OVERHEAD = 1024;
+	// ... by a queued response besides its packet
+	private static final int RESPONSE_OVERHEAD = 128;
+	// ... by a request waiting for logging besides its packets
+	private static final int LOG_OVERHEAD = 256;
+	// Default client subnet prefix length for IPv6, RFC 7871 recommends 56
+	private static final int DEFAULT_SUBNET_PREFIX6 = 56;
+	// Default number of DoH queries processed at the same time
+	public static final int DEFAULT_DOH_THREADS = 64;
+	// Queries slower than this are always in a sampled access log, in ms
+	private static final long DEFAULT_ACCESS_LOG_SLOW = 1000;
+	// Default number of upstream sockets with a shared I/O loop
+	public static final int DEFAULT_UPSTREAM_SOCKETS = 4;
+	// Default interval between upstream socket rotations in seconds
+	public static final int DEFAULT_SOCKET_ROTATE = 60;
+	// Timeout of health probes
+	private static final long PROBE_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+	// Upstreams slower than median by this factor are outliers
+	private static final int OUTLIER_FACTOR = 3;
+	// ... but only if they are slower than this
+	private static final long OUTLIER_MIN_LATENCY = TimeUnit.MILLISECONDS
+			.toNanos(50);
+	// How often draining checks for requests still in flight
+	private static final long DRAIN_CHECK = TimeUnit.MILLISECONDS.toNanos(10);
+	// Default time to wait for requests in flight on shutdown, in ms
+	private static final long DEFAULT_DRAIN = 5000;
 	// Date format in a log filename
 	private static final SimpleDateFormat logNameDateFormat = new SimpleDateFormat(
 			"yyyy-MM-dd-HH-mm");
@@ -56,18 +115,100 @@ public class ProxyServer {
 			MAX_PACKETS);
 	private final PriorityQueue<ProxyRequest> inflight = new PriorityQueue<>(
 			11, new ProxyRequest.DeadlineComparator());
+	private final PriorityQueue<ScheduledOp> timers = new PriorityQueue<>();
 	private final BlockingQueue<ProxyRequest> logged = new ArrayBlockingQueue<>(
 			MAX_LOGGED);
 
+	// Address of the first listener, used in thread names
 	private final InetSocketAddress addr;
-	private final DatagramChannel socket;
+	private final List<Listener> listeners = new ArrayList<>();
+	// Listeners share their addresses with other processes
+	private final boolean reusePort;
+	// Cleared when draining, receive threads stop reading then
+	private volatile boolean accepting = true;
 	private final Thread processingThread;
-	private final Thread receiveThread;
 	private final Thread sendThread;
 	private final Thread logThread;
 	private final Thread statsThread;
-	private final List<UpstreamServer> upstreams = new ArrayList<>();
+	private final Thread healthThread;
+	private volatile RoutingSnapshot routing = new RoutingSnapshot(
+			new ArrayList<UpstreamServer>(), new ProxyConfig());
+	// Upstreams removed by reload that still have requests in flight
+	private final List<UpstreamServer> draining = new ArrayList<>();
+	// Addresses of upstream host names
+	private ResolvedHosts resolvedHosts = new ResolvedHosts(null);
+	private List<String> configFiles = new ArrayList<>();
+	// Last snapshot built by reload, may not be swapped in yet
+	private RoutingSnapshot reloaded;
+	private long reloadInterval;
+	private UpstreamIoLoop ioLoop;
+	private UpstreamSocketPool socketPool;
+	// Pool for IPv6 upstreams, null if IPv6 is not available
+	private UpstreamSocketPool socketPool6;
+	private long socketRotate;
+	private Thread reloadThread;
 	private final Class<UpstreamServerFilterComparator> upstreamComparatorClass;
+	private ResponseCache cache;
+	private Path cacheFile;
+	private long cacheSaveInterval;
+	private Thread cacheThread;
+	private PeerCache peerCache;
+	private DohServer dohServer;
+	private PacketCapture capture;
+	private AccessLog accessLog;
+	private boolean clientSubnet;
+	private int subnetPrefix4;
+	private int subnetPrefix6;
+	private long ejectLatency;
+	private long healthInterval = TimeUnit.SECONDS.toMillis(5);
+	private byte[] probePacket;
+	private DNSMessage probeMessage;
+	private RateLimiter clientLimiter;
+	private RateLimitAction clientLimitAction = RateLimitAction.DROP;
+	private ResponsePolicy responsePolicy = ResponsePolicy.FASTEST;
+	private UpstreamSelector upstreamSelector = new UpstreamSelector(
+			UpstreamSelection.ALL);
+	private long responseGrace;
+	// Maximum adaptive limit of requests in flight per upstream, 0 if off
+	private int concurrencyLimit;
+	// How long requests wait for an upstream under its limit
+	private long limitQueueTime;
+	// Requests waiting for an upstream under its limit, oldest first
+	private final Set<ProxyRequest> waiting = new LinkedHashSet<>();
+	private boolean drainScheduled;
+	private List<String> hostsFiles = new ArrayList<>();
+	private List<String> zoneFiles = new ArrayList<>();
+	private volatile LocalData localData;
+	private RateLimiter responseLimiter;
+	private int responseSlip;
+	private final MemoryBudget memory = new MemoryBudget();
+	private final MemoryBudget.Pool requestMemory = memory
+			.createPool("requests");
+	private final MemoryBudget.Pool responseMemory = memory
+			.createPool("responses");
+	private final MemoryBudget.Pool logMemory = memory.createPool("log");
+	// Drop requests over memory budget instead of answering SERVFAIL
+	private boolean memoryDrop;
+	private final AtomicLong clientsLimited = new AtomicLong();
+	private final AtomicLong responsesLimited = new AtomicLong();
+	private long defaultTimeout = DEFAULT_TIMEOUT;
+	private long defaultRetransmit = DEFAULT_RETRANSMIT;
+
+	// Operation that runs on processing thread at a specific time
+	private static final class ScheduledOp implements Comparable<ScheduledOp> {
+		private final long time;
+		private final Callable<Void> op;
+
+		public ScheduledOp(long time, Callable<Void> op) {
+			this.time = time;
+			this.op = op;
+		}
+
+		@Override
+		public int compareTo(ScheduledOp other) {
+			return Long.signum(time - other.time);
+		}
+	}
 
 	private class ProcessingWorker implements Runnable {
 		@Override
@@ -75,23 +216,41 @@ public class ProxyServer {
 			try {
 				while (!Thread.interrupted()) {
 					final Callable<Void> op;
+					final long now = System.nanoTime();
+					long delay = Long.MAX_VALUE;
+					final ScheduledOp timer = timers.peek();
+					if (timer != null) {
+						// Run as many timers as we can
+						if (timer.time - now <= 0) {
+							timers.remove();
+							timer.op.call();
+							continue;
+						}
+						delay = timer.time - now;
+					}
 					final ProxyRequest request = inflight.peek();
 					if (request != null) {
-						long delay = request.getDeadline() - System.nanoTime();
-						log("ProcessingWorker found a request with delay " + delay);
+						long requestDelay = request.getDeadline() - now;
+						if (Log.isEnabled(Log.Level.DEBUG))
+							Log.debug("ProcessingWorker found a request with delay %d",
+									requestDelay);
 						// Timeout as many requests as we can
-						if (delay <= 0) {
+						if (requestDelay <= 0) {
 							inflight.remove();
 							if (request.setFinished()) {
+								answerHeld(request, true);
+								logUnanswered(request);
 								// Make sure it's cancelled
-								for (UpstreamServer userv : upstreams) {
-									userv.cancelRequest(request);
+								for (UpstreamServer userv : request.getUpstreams()) {
+									userv.timeoutRequest(request, now);
 								}
-								// Send to logging
-								logged.put(request);
+								logRequest(request);
 							}
 							continue;
 						}
+						delay = Math.min(delay, requestDelay);
+					}
+					if (delay != Long.MAX_VALUE) {
 						// Reduce sensitivity to ~1ms
 						delay = ((delay + 999999) / 1000000) * 1000000;
 						// Don't wait longer than delay
@@ -109,24 +268,50 @@ public class ProxyServer {
 				e.printStackTrace();
 				System.exit(1);
 			}
+			// Replaced upstreams are no longer routed to, so stop() doesn't
+			// see them
+			for (UpstreamServer upstream : draining) {
+				upstream.stop();
+			}
+			draining.clear();
+		}
+	}
+
+	private static final class Listener {
+		private final InetSocketAddress addr;
+		private final DatagramChannel socket;
+		private Thread receiveThread;
+
+		private Listener(InetSocketAddress addr, DatagramChannel socket) {
+			this.addr = addr;
+			this.socket = socket;
 		}
 	}
 
 	private class ReceiveWorker implements Runnable {
+		private final Listener listener;
+
+		private ReceiveWorker(Listener listener) {
+			this.listener = listener;
+		}
+
 		@Override
 		public void run() {
+			final DatagramChannel socket = listener.socket;
 			final ByteBuffer buffer = ByteBuffer
 					.allocateDirect(MAX_PACKET_SIZE);
 			try {
-				log("Accepting requests on " + addr);
-				while (!Thread.interrupted()) {
+				log("Accepting requests on " + listener.addr);
+				while (!Thread.interrupted() && accepting) {
 					buffer.clear();
 					final SocketAddress client;
 					try {
 						client = socket.receive(buffer);
 					} catch (ClosedChannelException e) {
-						log("Channel closed by " + e);
-						stop();
+						if (accepting) {
+							log("Channel closed by " + e);
+							stop();
+						}
 						break;
 					} catch (IOException e) {
 						e.printStackTrace();
@@ -135,6 +320,11 @@ public class ProxyServer {
 					if (client == null)
 						continue; // shouldn't happen, but just in case
 					buffer.flip();
+					if (buffer.limit() < DNSWire.HEADER_SIZE)
+						continue;
+					if (clientLimiter != null
+							&& !allowClient(socket, buffer, client))
+						continue;
 					final DNSMessage message;
 					try {
 						message = DNSMessage.parse(buffer, false);
@@ -148,34 +338,25 @@ public class ProxyServer {
 					buffer.rewind();
 					final byte[] packet = new byte[buffer.limit()];
 					buffer.get(packet);
-					final ProxyRequest request = new ProxyRequest(client,
-							packet, message);
+					if (capture != null) {
+						capture.record(PacketCapture.KIND_QUERY,
+								(InetSocketAddress) client, packet);
+					}
+					final int charge = packet.length + REQUEST_OVERHEAD;
+					if (!requestMemory.tryAcquire(charge)) {
+						// Fail fast instead of piling up more state
+						if (!memoryDrop)
+							offerResponse(new ProxyResponse(socket, client,
+									packet, ResponseTemplate.SERVFAIL));
+						continue;
+					}
+					final ProxyRequest request = new ProxyRequest(socket,
+							client, packet, message);
+					request.setMemory(charge);
 					schedule(new Callable<Void>() {
 						@Override
 						public Void call() throws InterruptedException {
-							if (DEBUG) {
-								System.out
-										.format("Request from %s: %s\n",
-												request.getAddr(),
-												request.getMessage());
-							}
-							inflight.add(request);
-							
-							try {
-								upstreamComparatorClass.newInstance()
-									.filter(upstreams, request)
-									.forEach( upstreamServer -> {
-										try {
-											upstreamServer.startRequest(request);
-										} catch (InterruptedException e) {
-											e.printStackTrace();
-											// interrupted
-										}}
-								);
-
-							} catch (InstantiationException | IllegalAccessException e) {
-								throw new RuntimeException(e);
-							}
+							processRequest(request);
 							return null;
 						}
 					});
@@ -187,35 +368,93 @@ public class ProxyServer {
 	}
 
 	private class SendWorker implements Runnable {
+		private int slipCounter;
+
 		@Override
 		public void run() {
+			final DatagramChannel defaultSocket = listeners.get(0).socket;
 			final ByteBuffer buffer = ByteBuffer
 					.allocateDirect(MAX_PACKET_SIZE);
 			try {
 				while (!Thread.interrupted()) {
 					final ProxyResponse response = outgoing.take();
-					final byte[] packet = response.getResponsePacket();
-					if (packet.length < 12 || packet.length > MAX_PACKET_SIZE)
-						continue;
-					buffer.clear();
-					buffer.putShort(response.getRequestId());
-					buffer.put(packet, 2, packet.length - 2);
-					buffer.flip();
 					try {
-						socket.send(buffer, response.getAddr());
-					} catch (ClosedChannelException e) {
-						log("Channel closed by " + e);
-						stop();
-						break;
-					} catch (IOException e) {
-						e.printStackTrace();
-						continue;
+						if (!send(response, buffer, defaultSocket))
+							break;
+					} finally {
+						// Released once sent, so draining knows when it's done
+						responseMemory.release(responseSize(response));
 					}
 				}
 			} catch (InterruptedException e) {
 				// interrupted
 			}
 		}
+
+		// Returns false if the worker must stop
+		private boolean send(ProxyResponse response, ByteBuffer buffer,
+				DatagramChannel defaultSocket) {
+			buffer.clear();
+			// Templates are synthesized right into the buffer
+			if (!response.write(buffer))
+				return true;
+			buffer.flip();
+			if (responseLimiter != null
+					&& !allowResponse(buffer, response.getAddr()))
+				return true;
+			final DatagramChannel socket = response.getSocket();
+			try {
+				(socket != null ? socket : defaultSocket).send(buffer,
+						response.getAddr());
+			} catch (ClosedChannelException e) {
+				if (!accepting && reusePort) {
+					// Listener was handed over while draining
+					sendDetached(buffer, socket != null ? socket
+							: defaultSocket, response.getAddr());
+					return true;
+				}
+				log("Channel closed by " + e);
+				stop();
+				return false;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return true;
+		}
+
+		// Identical responses to the same network are limited, but every
+		// slip-th limited response is truncated instead of dropped, so that
+		// real clients can retry over TCP
+		private boolean allowResponse(ByteBuffer buffer, SocketAddress addr) {
+			if (!(addr instanceof InetSocketAddress))
+				return true;
+			final int end;
+			try {
+				DNSWire.skipQuestions(buffer);
+				end = buffer.position();
+			} catch (BufferUnderflowException | IllegalArgumentException
+					| DNSParseException e) {
+				return true;
+			} finally {
+				buffer.position(0);
+			}
+			final long hash = responseLimiter
+					.prefixHash(((InetSocketAddress) addr).getAddress())
+					^ (RateLimiter.questionHash(buffer, end) * 31 + (buffer
+							.get(3) & 0x0f));
+			if (responseLimiter.tryAcquire(hash))
+				return true;
+			responsesLimited.incrementAndGet();
+			if (responseSlip == 0 || ++slipCounter < responseSlip)
+				return false;
+			slipCounter = 0;
+			buffer.put(2, (byte) (buffer.get(2) | 0x02));
+			for (int i = 6; i < DNSWire.HEADER_SIZE; ++i) {
+				buffer.put(i, (byte) 0);
+			}
+			buffer.limit(end);
+			return true;
+		}
 	}
 
 	private class LogWorker implements Runnable {
@@ -223,10 +462,13 @@ public class ProxyServer {
 		public void run() {
 			try {
 				long lastzone = -1;
+				List<UpstreamServer> lastUpstreams = null;
 				PrintStream output = null;
 				StringBuilder sb = new StringBuilder();
 				while (!Thread.interrupted()) {
 					final ProxyRequest request = logged.take();
+					logMemory.release(logSize(request));
+					final List<UpstreamServer> upstreams = routing.getUpstreams();
 					// Current nanotime for latency of timed out requests
 					final long nanotime = System.nanoTime();
 					// Current system timestamp in seconds
@@ -252,6 +494,11 @@ public class ProxyServer {
 							Thread.sleep(1000);
 							continue;
 						}
+						lastzone = zone;
+						lastUpstreams = null;
+					}
+					if (lastUpstreams != upstreams) {
+						// Columns change on start of a file and on reload
 						sb.setLength(0);
 						sb.append("[time]");
 						for (UpstreamServer upstream : upstreams) {
@@ -264,7 +511,7 @@ public class ProxyServer {
 							sb.append("(latency)");
 						}
 						output.println(sb.toString());
-						lastzone = zone;
+						lastUpstreams = upstreams;
 					}
 					// All upstream responses
 					final List<UpstreamResponse> responses = request
@@ -324,7 +571,7 @@ public class ProxyServer {
 					sb.append("Upstreams inflight: ");
 					int n;
 					int index = 0;
-					for (UpstreamServer upstream : upstreams) {
+					for (UpstreamServer upstream : routing.getUpstreams()) {
 						if (index != 0) {
 							sb.append(", ");
 						}
@@ -334,6 +581,12 @@ public class ProxyServer {
 						sb.append(upstream.getAddr().getPort());
 						sb.append(": ");
 						sb.append(upstream.getInflightCount());
+						sb.append(" ");
+						sb.append(upstream.getHealth().getState());
+						if (upstream.getLimit() != null) {
+							sb.append(" limit ");
+							sb.append(upstream.getLimit());
+						}
 						if ((n = upstream.getParseErrors()) != 0) {
 							sb.append("/");
 							sb.append(n);
@@ -344,8 +597,27 @@ public class ProxyServer {
 							sb.append(n);
 							sb.append("aerr");
 						}
+						if ((n = upstream.getDroppedResponses()) != 0) {
+							sb.append("/");
+							sb.append(n);
+							sb.append("drop");
+						}
 						++index;
 					}
+					sb.append(", Limited: ");
+					sb.append(clientsLimited.get());
+					sb.append(" requests, ");
+					sb.append(responsesLimited.get());
+					sb.append(" responses");
+					sb.append(", Memory: ");
+					memory.appendUsage(sb);
+					if (peerCache != null) {
+						sb.append(", Peer cache: ");
+						sb.append(peerCache.getHits());
+						sb.append(" hits, ");
+						sb.append(peerCache.getMisses());
+						sb.append(" misses");
+					}
 					long t1 = System.nanoTime();
 					sb.append(", Check: ");
 					sb.append(t1 - t0);
@@ -358,18 +630,272 @@ public class ProxyServer {
 		}
 	}
 
+	private class HealthWorker implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (!Thread.interrupted()) {
+					Thread.sleep(healthInterval);
+					schedule(new Callable<Void>() {
+						@Override
+						public Void call() throws InterruptedException {
+							checkHealth();
+							return null;
+						}
+					});
+				}
+			} catch (InterruptedException e) {
+				// interrupted
+			}
+		}
+	}
+
+	private class ReloadWorker implements Runnable {
+		@Override
+		public void run() {
+			try {
+				long lastModified = configModified();
+				while (!Thread.interrupted()) {
+					Thread.sleep(reloadInterval);
+					final long modified = configModified();
+					if (modified != lastModified) {
+						lastModified = modified;
+						reload();
+					}
+				}
+			} catch (InterruptedException e) {
+				// interrupted
+			}
+		}
+
+		// Local data is reloaded with the config, so its files count too
+		private long configModified() {
+			long modified = 0;
+			for (List<String> files : Arrays.asList(configFiles, hostsFiles,
+					zoneFiles)) {
+				for (String filename : files) {
+					modified = modified * 31
+							+ new File(filename).lastModified();
+				}
+			}
+			return modified;
+		}
+	}
+
+	private class CacheWorker implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (!Thread.interrupted()) {
+					Thread.sleep(cacheSaveInterval);
+					saveCache();
+				}
+			} catch (InterruptedException e) {
+				// interrupted
+			}
+			saveCache();
+		}
+
+		private void saveCache() {
+			long t0 = System.nanoTime();
+			try {
+				int count = cache.save(cacheFile);
+				long t1 = System.nanoTime();
+				log("Saved " + count + " cache entries to " + cacheFile
+						+ " in " + (t1 - t0) / 1000000 + "ms");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	// package-private
 	// schedules op to run on processing thread
 	void schedule(Callable<Void> op) throws InterruptedException {
 		incoming.put(op);
 	}
 
+	// package-private
+	// schedules op to run on processing thread without waiting, returns
+	// false if the processing thread is too far behind
+	boolean trySchedule(Callable<Void> op) {
+		return incoming.offer(op);
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// schedules op to run on processing thread at nanoTime
+	void scheduleAt(long nanoTime, Callable<Void> op) {
+		timers.add(new ScheduledOp(nanoTime, op));
+	}
+
+	// package-private
+	// passes a request from a client connection to processing thread,
+	// returns false if there is no memory for it
+	boolean submitRequest(final ProxyRequest request)
+			throws InterruptedException {
+		if (capture != null && request.getAddr() instanceof InetSocketAddress) {
+			capture.record(PacketCapture.KIND_QUERY,
+					(InetSocketAddress) request.getAddr(), request.getPacket());
+		}
+		final int charge = request.getPacket().length + REQUEST_OVERHEAD;
+		if (!requestMemory.tryAcquire(charge))
+			return false;
+		request.setMemory(charge);
+		schedule(new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				processRequest(request);
+				return null;
+			}
+		});
+		return true;
+	}
+
+	// package-private
+	// capture of queries and responses, or null if disabled
+	PacketCapture getCapture() {
+		return capture;
+	}
+
+	// package-private
+	// default upstream timeout in milliseconds
+	long getDefaultTimeout() {
+		return defaultTimeout;
+	}
+
+	// package-private
+	// default upstream retransmission interval in milliseconds, 0 if disabled
+	long getDefaultRetransmit() {
+		return defaultRetransmit;
+	}
+
+	// MUST be called on processing thread
+	// queues response to a client request and writes it to access log
+	private void respond(ProxyRequest request, ProxyResponse response,
+			AccessLog.Status status, SocketAddress upstream)
+			throws InterruptedException {
+		if (accessLog != null)
+			accessLog.log(request, status, response, upstream);
+		queueResponse(response);
+	}
+
+	// MUST be called on processing thread
+	// writes a finished request that got no response to access log
+	private void logUnanswered(ProxyRequest request) {
+		if (accessLog != null && !request.isProbe() && !request.isAnswered())
+			accessLog.log(request, AccessLog.Status.TIMEOUT, null, null);
+	}
+
+	// Queues response for sending, waiting for space in the queue
+	private void queueResponse(ProxyResponse response)
+			throws InterruptedException {
+		if (response.getConnection() != null) {
+			response.getConnection().send(response);
+			return;
+		}
+		responseMemory.add(responseSize(response));
+		outgoing.put(response);
+	}
+
+	// Queues response for sending, unless the queue is full
+	private void offerResponse(ProxyResponse response) {
+		if (response.getConnection() != null) {
+			response.getConnection().send(response);
+			return;
+		}
+		final int size = responseSize(response);
+		responseMemory.add(size);
+		if (!outgoing.offer(response))
+			responseMemory.release(size);
+	}
+
+	private static int responseSize(ProxyResponse response) {
+		final byte[] packet = response.getResponsePacket();
+		return RESPONSE_OVERHEAD
+				+ (packet != null ? packet.length : response
+						.getRequestPacket().length);
+	}
+
+	// MUST be called on processing thread
+	// request is done, sends it to logging unless it's a probe
+	private void logRequest(ProxyRequest request) throws InterruptedException {
+		releaseRequest(request);
+		if (request.isProbe())
+			return;
+		logMemory.add(logSize(request));
+		logged.put(request);
+	}
+
+	// Returns memory charged for request to the budget
+	private void releaseRequest(ProxyRequest request) {
+		requestMemory.release(request.takeMemory());
+	}
+
+	private static int logSize(ProxyRequest request) {
+		int size = LOG_OVERHEAD + request.getPacket().length;
+		for (UpstreamResponse response : request.getResponses()) {
+			size += response.getPacket().length;
+		}
+		return size;
+	}
+
+	// Called on receive thread before anything is allocated for the request
+	private boolean allowClient(DatagramChannel socket, ByteBuffer buffer,
+			SocketAddress client) {
+		if (!(client instanceof InetSocketAddress))
+			return true;
+		if (clientLimiter.tryAcquire(clientLimiter
+				.prefixHash(((InetSocketAddress) client).getAddress())))
+			return true;
+		clientsLimited.incrementAndGet();
+		if (clientLimitAction == RateLimitAction.DROP
+				|| (buffer.get(2) & 0x80) != 0)
+			return false;
+		final byte[] request = new byte[buffer.limit()];
+		buffer.get(request);
+		buffer.rewind();
+		// Never block receive thread on a limited client
+		offerResponse(new ProxyResponse(socket, client, request,
+				clientLimitAction == RateLimitAction.TRUNCATE ? ResponseTemplate.TRUNCATED
+						: ResponseTemplate.REFUSED));
+		return false;
+	}
+
+	// Reloads config on SIGHUP where signals are supported
+	private void installReloadSignal() {
+		Signals.handle("HUP", new Runnable() {
+			@Override
+			public void run() {
+				log("Received SIGHUP, reloading config");
+				reload();
+			}
+		});
+	}
+
+	// Toggles debug logging on SIGUSR1 where signals are supported
+	private static void installLogSignal() {
+		Signals.handle("USR1", new Runnable() {
+			@Override
+			public void run() {
+				Log.info("Received SIGUSR1, log level %s", Log.toggleDebug());
+			}
+		});
+	}
+
 	private static void log(String line) {
-		System.out.format("[%s] %s\n", new Date(), line);
+		Log.info(line);
 	}
 
+	/**
+	 * @param addrs
+	 *            addresses to listen on, a wildcard address listens on both
+	 *            IPv4 and IPv6 where the system allows it
+	 */
 	@SuppressWarnings("unchecked")
-	private ProxyServer(String upstreamServerFilterClassName, String host, int port) throws IOException {
+	private ProxyServer(String upstreamServerFilterClassName,
+			List<InetSocketAddress> addrs, boolean reusePort,
+			DatagramChannel inherited) throws IOException {
 		try {
 			Class<?> upstreamServerFilterClass = Class.forName(upstreamServerFilterClassName);
 			if (!UpstreamServerFilterComparator.class.isAssignableFrom( upstreamServerFilterClass )) {
@@ -380,154 +906,1688 @@ public class ProxyServer {
 			throw new IOException("Cannot instantiate class '" + upstreamServerFilterClassName + "'", e);
 		}
 		
-		if (null==host || host.trim().isEmpty()) {
-			addr = new InetSocketAddress(port);
-		} else {
-			addr = new InetSocketAddress(host, port);
+		this.reusePort = reusePort;
+		if (inherited != null) {
+			addListener((InetSocketAddress) inherited.getLocalAddress(),
+					inherited);
 		}
-		if (addr.isUnresolved()) {
-			throw new IOException("Cannot resolve '" + host + "'");
+		for (InetSocketAddress listen : addrs) {
+			addListener(listen, Addresses.openListener(listen, reusePort));
 		}
-		socket = DatagramChannel.open(StandardProtocolFamily.INET);
-		socket.bind(addr);
+		addr = listeners.get(0).addr;
 		final String prefix = "Proxy " + addr;
 		processingThread = new Thread(new ProcessingWorker(), prefix
 				+ " processing");
-		receiveThread = new Thread(new ReceiveWorker(), prefix + " receive");
 		sendThread = new Thread(new SendWorker(), prefix + " send");
 		logThread = new Thread(new LogWorker(), prefix + " logging");
 		statsThread = new Thread(new StatsWorker(), prefix + " stats");
+		healthThread = new Thread(new HealthWorker(), prefix + " health");
 	}
 
-	public void addUpstream(UpstreamConfig config) throws IOException {
-		UpstreamServer upstream = new UpstreamServer(this, config);
-		for (UpstreamServer currentUpstream : upstreams) {
-			if (upstream.getAddr().equals(currentUpstream.getAddr()))
-				throw new IOException(
-						"Cannot add upstream with duplicate address "
-								+ upstream.getAddr());
+	private void addListener(InetSocketAddress listen, DatagramChannel socket) {
+		final Listener listener = new Listener(listen, socket);
+		listener.receiveThread = new Thread(new ReceiveWorker(listener),
+				"Proxy " + listen + " receive");
+		listeners.add(listener);
+	}
+
+	/**
+	 * Configures upstream health checks
+	 * 
+	 * MUST be called before any upstreams are added
+	 * 
+	 * @param ejectLatencyMillis
+	 *            average latency that ejects an upstream, or 0 to disable
+	 * @param probeName
+	 *            name to send as an active probe, or null to disable probes
+	 * @param probeType
+	 *            qtype of the probe
+	 * @param intervalMillis
+	 *            interval between health checks and probes
+	 */
+	public void configureHealth(long ejectLatencyMillis, String probeName,
+			int probeType, long intervalMillis) throws IOException {
+		ejectLatency = TimeUnit.MILLISECONDS.toNanos(ejectLatencyMillis);
+		healthInterval = intervalMillis;
+		if (probeName != null) {
+			probePacket = DNSWire.buildQuery(probeName, probeType, 1);
+			try {
+				probeMessage = DNSMessage.parse(ByteBuffer.wrap(probePacket));
+			} catch (DNSParseException e) {
+				throw new IOException("Bad probe query " + probeName, e);
+			}
 		}
-		upstreams.add(upstream);
 	}
 
-	public void start() {
-		for (UpstreamServer upstream : upstreams) {
-			upstream.start();
+	/**
+	 * Sets default upstream timeout and retransmission interval
+	 * 
+	 * MUST be called before any upstreams are added
+	 */
+	public void setTimeouts(long timeoutMillis, long retransmitMillis) {
+		defaultTimeout = timeoutMillis;
+		defaultRetransmit = retransmitMillis;
+	}
+
+	/**
+	 * Limits requests per client network
+	 * 
+	 * MUST be called before start
+	 */
+	public void enableRateLimit(RateLimiter limiter, RateLimitAction action) {
+		clientLimiter = limiter;
+		clientLimitAction = action;
+	}
+
+	/**
+	 * Limits identical responses per client network (RRL)
+	 * 
+	 * MUST be called before start
+	 * 
+	 * @param slip
+	 *            every slip-th limited response is truncated, 0 drops all
+	 */
+	public void enableResponseRateLimit(RateLimiter limiter, int slip) {
+		responseLimiter = limiter;
+		responseSlip = slip;
+	}
+
+	/**
+	 * Selects which upstream response is sent to the client
+	 * 
+	 * MUST be called before start
+	 * 
+	 * @param graceMillis
+	 *            how long {@link ResponsePolicy#PRIORITY} waits for preferred
+	 *            upstreams
+	 */
+	public void setResponsePolicy(ResponsePolicy policy, long graceMillis) {
+		responsePolicy = policy;
+		responseGrace = TimeUnit.MILLISECONDS.toNanos(graceMillis);
+	}
+
+	/**
+	 * Limits requests in flight to every upstream by its measured round trip
+	 * time, requests that no upstream can take wait up to queueMillis, then
+	 * are answered with SERVFAIL
+	 * 
+	 * MUST be called before any upstreams are added
+	 * 
+	 * @param maxLimit
+	 *            upper bound of every adaptive limit
+	 */
+	public void setConcurrencyLimit(int maxLimit, long queueMillis) {
+		concurrencyLimit = maxLimit;
+		limitQueueTime = TimeUnit.MILLISECONDS.toNanos(queueMillis);
+	}
+
+	/**
+	 * Selects which of the matching upstreams a request is sent to
+	 * 
+	 * MUST be called before start
+	 */
+	public void setUpstreamSelection(UpstreamSelection selection) {
+		upstreamSelector = new UpstreamSelector(selection);
+	}
+
+	/**
+	 * Answers names from hosts and zone files without asking upstreams, files
+	 * are reloaded together with config
+	 * 
+	 * MUST be called before start
+	 */
+	public void configureLocalData(List<String> hostsFiles,
+			List<String> zoneFiles) throws IOException {
+		this.hostsFiles = new ArrayList<>(hostsFiles);
+		this.zoneFiles = new ArrayList<>(zoneFiles);
+		localData = loadLocalData(hostsFiles, zoneFiles);
+	}
+
+	private static LocalData loadLocalData(List<String> hostsFiles,
+			List<String> zoneFiles) throws IOException {
+		final LocalData data = new LocalData();
+		for (String filename : hostsFiles) {
+			data.loadHosts(filename);
 		}
-		processingThread.start();
-		receiveThread.start();
-		sendThread.start();
-		logThread.start();
-//		statsThread.start();
+		for (String filename : zoneFiles) {
+			data.loadZone(filename);
+		}
+		data.build();
+		return data;
 	}
 
-	public void stop() {
-		processingThread.interrupt();
-		receiveThread.interrupt();
-		sendThread.interrupt();
-		logThread.interrupt();
-//		statsThread.interrupt();
-		for (UpstreamServer upstream : upstreams) {
-			upstream.stop();
+	/**
+	 * Loads config files, falls back to public DNS without any upstreams
+	 */
+	public static ProxyConfig loadConfig(List<String> configFiles)
+			throws IOException {
+		final ProxyConfig config = ProxyConfig.load(configFiles);
+		if (config.getUpstreams().isEmpty()) {
+			config.addUpstream(UpstreamConfig.createConfig("", "8.8.8.8"));
+			config.addUpstream(UpstreamConfig.createConfig("", "8.8.4.4"));
 		}
+		return config;
 	}
 
-	// MUST be called on processing thread
-	public void onUpstreamResponse(ProxyRequest request,
-			UpstreamResponse response) throws InterruptedException {
-		if (DEBUG) {
-			System.out.format("Response from %s: %s\n", response.getAddr(),
-					response.getMessage());
+	/**
+	 * Loads upstreams and per suffix settings from config files, which are
+	 * reloaded on SIGHUP or, if enabled, when they change
+	 * 
+	 * MUST be called before start
+	 */
+	public void configure(List<String> configFiles) throws IOException {
+		this.configFiles = new ArrayList<>(configFiles);
+		final ProxyConfig config = loadConfig(configFiles);
+		resolveHosts(config, false);
+		for (UpstreamConfig upstreamConfig : config.getUpstreams()) {
+			addUpstream(upstreamConfig);
 		}
-		if (request.isFinished())
-			return; // ignore late responses
-		int index = request.addResponse(response);
-		if (index == 0) {
-			// First response is sent to the client
-			outgoing.put(new ProxyResponse(request, response));
+		routing = new RoutingSnapshot(routing.getUpstreams(), config);
+	}
+
+	/**
+	 * Keeps addresses of upstream host names in file, so that the next start
+	 * uses them instead of waiting for DNS
+	 * 
+	 * MUST be called before configure
+	 */
+	public void setResolveCache(Path file) {
+		resolvedHosts = new ResolvedHosts(file);
+		try {
+			resolvedHosts.load();
+		} catch (IOException e) {
+			log("Ignoring resolved hosts: " + e);
 		}
-		if (index == upstreams.size() - 1) {
-			// Received last response, finish request
-			if (request.setFinished()) {
-				// Don't need timeout anymore
-				inflight.remove(request);
-				// Send to logging
-				logged.put(request);
-			}
+	}
+
+	// resolves upstream host names of config, saving them if anything changed
+	private void resolveHosts(ProxyConfig config, boolean refresh) {
+		if (!resolvedHosts.resolve(config.getUpstreams(), refresh))
+			return;
+		try {
+			resolvedHosts.save();
+		} catch (IOException e) {
+			log("Cannot save resolved hosts: " + e);
 		}
 	}
 
-	private static void usage() {
-		System.out
-				.println("Usage: ProxyServer [-host host] [-port port] -config config");
-		System.exit(1);
+	/**
+	 * Checks config files for changes every interval, 0 disables checks
+	 * 
+	 * MUST be called before start
+	 */
+	public void setReloadInterval(long intervalMillis) {
+		reloadInterval = intervalMillis;
+		reloadThread = intervalMillis > 0 ? new Thread(new ReloadWorker(),
+				"Proxy " + addr + " reload") : null;
 	}
 
-	public static void main(String[] args) throws IOException  {
-		String host = "127.0.0.1";
-		String upstreamFilterClassname = "ru.kitsu.dnsproxy.UpstreamServerFilterComparatorImpl";
-		int port = 53;
-		final List<UpstreamConfig> upstreams = new ArrayList<>();
-		for (int i = 0; i < args.length; ++i) {
-			switch (args[i]) {
-				case "-host":
-					if (++i >= args.length)
-						usage();
-					host = args[i];
-					break;
-				case "-port":
-					if (++i >= args.length)
-						usage();
-					port = Integer.parseInt(args[i]);
-					break;
-				case "-filter":
-					if (++i >= args.length)
-						usage();
-					upstreamFilterClassname = args[i];
-					break;
-				case "-config":
-					if (++i >= args.length)
-						usage();
-					upstreams.addAll( createUpstreamsFromConfig(args[i]) );
-					break;
-				default:
-					usage();
-			}
+	/**
+	 * Sends requests to all upstreams from a shared pool of sockets on a
+	 * single I/O thread, instead of a socket and two threads per upstream
+	 * 
+	 * MUST be called before any upstreams are added
+	 * 
+	 * @param sockets
+	 *            number of sockets in the pool
+	 * @param rotateMillis
+	 *            interval between replacing pool sockets with sockets on new
+	 *            random ports, or 0 to keep them
+	 */
+	public void enableIoLoop(int sockets, long rotateMillis) throws IOException {
+		ioLoop = new UpstreamIoLoop("Proxy " + addr + " upstream I/O");
+		socketPool = new UpstreamSocketPool(ioLoop,
+				StandardProtocolFamily.INET, sockets);
+		try {
+			socketPool6 = new UpstreamSocketPool(ioLoop,
+					StandardProtocolFamily.INET6, sockets);
+		} catch (IOException | UnsupportedOperationException e) {
+			log("IPv6 upstream sockets are not available: " + e);
+		}
+		socketRotate = TimeUnit.MILLISECONDS.toNanos(rotateMillis);
+	}
+
+	// package-private
+	// shared upstream sockets for the address family, or null if each
+	// upstream has its own
+	UpstreamSocketPool getSocketPool(InetAddress address) throws IOException {
+		if (ioLoop == null)
+			return null;
+		if (Addresses.familyOf(address) == StandardProtocolFamily.INET)
+			return socketPool;
+		if (socketPool6 == null)
+			throw new IOException("IPv6 upstream sockets are not available");
+		return socketPool6;
+	}
 
-			if (upstreams.isEmpty()) {
-				upstreams.add(UpstreamConfig.createConfig("", "8.8.8.8"));
-				upstreams.add(UpstreamConfig.createConfig("", "8.8.4.4"));
+	// MUST be called on processing thread
+	private void scheduleRotation(long now) {
+		scheduleAt(now + socketRotate, new Callable<Void>() {
+			@Override
+			public Void call() {
+				try {
+					socketPool.rotate();
+					if (socketPool6 != null)
+						socketPool6.rotate();
+				} catch (IOException e) {
+					log("Cannot rotate upstream socket: " + e);
+				}
+				scheduleRotation(System.nanoTime());
+				return null;
 			}
-			ProxyServer server = new ProxyServer(upstreamFilterClassname, host, port);
-			for (UpstreamConfig config : upstreams) {
-				server.addUpstream(config);
+		});
+	}
+
+	// MUST be called before start
+	public void addUpstream(UpstreamConfig config) throws IOException {
+		final List<UpstreamServer> upstreams = new ArrayList<>(
+				routing.getUpstreams());
+		upstreams.add(createUpstream(config, upstreams));
+		routing = new RoutingSnapshot(upstreams, routing.getConfig());
+	}
+
+	private UpstreamServer createUpstream(UpstreamConfig config,
+			List<UpstreamServer> upstreams) throws IOException {
+		UpstreamServer upstream = new UpstreamServer(this, config,
+				resolvedHosts.get(config.getHost()), new UpstreamHealth(
+						ejectLatency, probePacket != null),
+				concurrencyLimit > 0 ? new ConcurrencyLimit(concurrencyLimit)
+						: null);
+		for (UpstreamServer currentUpstream : upstreams) {
+			if (upstream.getAddr().equals(currentUpstream.getAddr())) {
+				upstream.stop();
+				throw new IOException(
+						"Cannot add upstream with duplicate address "
+								+ upstream.getAddr());
 			}
-			server.start();
 		}
+		return upstream;
 	}
 
-	private static List<UpstreamConfig> createUpstreamsFromConfig(final String filename) throws IOException {
-		List<UpstreamConfig> upstreamConfigs = new ArrayList<>();
-		try (BufferedReader r = new BufferedReader(new InputStreamReader(
-			new FileInputStream(filename)))) {
-			String line;
-			while (null != (line = r.readLine())) {
-				int index = line.indexOf('#');
-				if (index != -1) {
-					line = line.substring(0, index);
-				}
-				line = line.trim();
-				if (line.length() == 0) {
-					continue;
+	/**
+	 * Reloads config files and atomically replaces upstreams
+	 * 
+	 * Upstreams with unchanged settings are kept together with their sockets
+	 * and requests in flight, new ones are started, removed ones are stopped
+	 * after their requests finish. On any error the old config stays.
+	 */
+	public synchronized void reload() {
+		if (localData != null) {
+			try {
+				localData = loadLocalData(hostsFiles, zoneFiles);
+			} catch (IOException e) {
+				log("Cannot reload local data: " + e);
+			}
+		}
+		final ProxyConfig config;
+		try {
+			config = loadConfig(configFiles);
+		} catch (IOException | RuntimeException e) {
+			log("Cannot reload config: " + e);
+			return;
+		}
+		resolveHosts(config, true);
+		final RoutingSnapshot current = reloaded != null ? reloaded : routing;
+		final List<UpstreamServer> next = new ArrayList<>();
+		final List<UpstreamConfig> nextConfigs = new ArrayList<>();
+		final List<UpstreamServer> created = new ArrayList<>();
+		try {
+			for (UpstreamConfig upstreamConfig : config.getUpstreams()) {
+				// Host may resolve to another address since the last time
+				UpstreamServer upstream = current.find(upstreamConfig,
+						resolvedHosts.get(upstreamConfig.getHost()));
+				if (upstream == null || next.contains(upstream)) {
+					upstream = createUpstream(upstreamConfig, next);
+					created.add(upstream);
+				}
+				next.add(upstream);
+				nextConfigs.add(upstreamConfig);
+			}
+		} catch (IOException | RuntimeException e) {
+			log("Cannot reload config: " + e);
+			for (UpstreamServer upstream : created) {
+				upstream.stop();
+			}
+			return;
+		}
+		final RoutingSnapshot snapshot = new RoutingSnapshot(next, nextConfigs,
+				config);
+		try {
+			schedule(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (UpstreamServer upstream : current.getUpstreams()) {
+						if (!next.contains(upstream))
+							draining.add(upstream);
+					}
+					for (int i = 0; i < next.size(); ++i) {
+						next.get(i).setUpstreamConfig(nextConfigs.get(i));
+					}
+					routing = snapshot;
+					upstreamSelector.clear();
+					for (UpstreamServer upstream : created) {
+						upstream.start();
+					}
+					stopDrained();
+					log("Reloaded config: " + next.size() + " upstreams, "
+							+ created.size() + " new, " + draining.size()
+							+ " draining");
+					return null;
+				}
+			});
+			reloaded = snapshot;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// MUST be called on processing thread
+	private void stopDrained() {
+		final Iterator<UpstreamServer> it = draining.iterator();
+		while (it.hasNext()) {
+			final UpstreamServer upstream = it.next();
+			if (upstream.getInflightCount() == 0) {
+				upstream.stop();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Enables response cache, optionally persisted to a snapshot file
+	 * 
+	 * MUST be called before start
+	 * 
+	 * @param memoryBytes
+	 *            off heap memory for responses, 0 to derive from maxEntries
+	 */
+	public void enableCache(int maxEntries, int maxTtl, long memoryBytes,
+			Path snapshotFile, long saveIntervalMillis) {
+		cache = new ResponseCache(maxEntries, maxTtl, memoryBytes);
+		memory.addGauge("cache", new MemoryBudget.Gauge() {
+			@Override
+			public long getBytes() {
+				return cache.getAllocatedBytes();
+			}
+		});
+		cacheFile = snapshotFile;
+		cacheSaveInterval = saveIntervalMillis;
+		if (cacheFile != null) {
+			cacheThread = new Thread(new CacheWorker(), "Proxy " + addr
+					+ " cache");
+		}
+	}
+
+	/**
+	 * Shares cache with other nodes, see {@link PeerCache}
+	 * 
+	 * MUST be called after enableCache and before start
+	 * 
+	 * @param listen
+	 *            peer address of this node
+	 * @param peers
+	 *            peer addresses of all nodes, this one may be included
+	 * @param secret
+	 *            secret shared by all nodes to authenticate peer packets,
+	 *            responses are only pushed to owners with one
+	 */
+	public void enablePeerCache(InetSocketAddress listen,
+			List<InetSocketAddress> peers, long timeoutMillis, byte[] secret)
+			throws IOException {
+		if (cache == null)
+			throw new IllegalStateException("Peer cache requires cache");
+		peerCache = new PeerCache(this, listen, peers, timeoutMillis, secret);
+	}
+
+	/**
+	 * Captures client queries and upstream responses into file for replay
+	 * with {@link CaptureReplay}, up to sizeBytes
+	 * 
+	 * MUST be called before start
+	 */
+	public void enableCapture(Path file, int sizeBytes) throws IOException {
+		capture = PacketCapture.create(file, sizeBytes);
+	}
+
+	/**
+	 * Writes answered client queries to access log
+	 * 
+	 * MUST be called before start
+	 */
+	public void enableAccessLog(AccessLog accessLog) {
+		this.accessLog = accessLog;
+	}
+
+	/**
+	 * Accepts DNS over HTTPS queries on listen
+	 * 
+	 * MUST be called before start
+	 * 
+	 * @param sslContext
+	 *            context with the server certificate, null for plain HTTP
+	 * @param threads
+	 *            number of queries processed at the same time
+	 */
+	public void enableDoh(InetSocketAddress listen, SSLContext sslContext,
+			int threads) throws IOException {
+		dohServer = new DohServer(this, listen, sslContext, threads);
+	}
+
+	/**
+	 * Limits memory held by requests, responses, logging and cache, new
+	 * requests over the limit are answered with SERVFAIL or dropped
+	 * 
+	 * MUST be called before start
+	 */
+	public void setMemoryLimit(long bytes, boolean drop) {
+		memory.setLimit(bytes);
+		memoryDrop = drop;
+	}
+
+	/**
+	 * Sends client subnets truncated to prefix lengths to upstreams, see
+	 * RFC 7871
+	 * 
+	 * MUST be called before start
+	 */
+	public void enableClientSubnet(int prefix4, int prefix6) {
+		if (prefix4 < 0 || prefix4 > 32 || prefix6 < 0 || prefix6 > 128)
+			throw new IllegalArgumentException("Bad client subnet prefix");
+		clientSubnet = true;
+		subnetPrefix4 = prefix4;
+		subnetPrefix6 = prefix6;
+	}
+
+	public void start() {
+		if (cache != null && clientSubnet) {
+			cache.enableClientSubnet(subnetPrefix4, subnetPrefix6);
+		}
+		if (resolvedHosts.getFile() != null) {
+			// Saved addresses were used as is, refresh them for next start
+			final ProxyConfig config = routing.getConfig();
+			final Thread resolveThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					resolveHosts(config, true);
+				}
+			}, "Proxy " + addr + " resolve");
+			resolveThread.setDaemon(true);
+			resolveThread.start();
+		}
+		if (ioLoop != null) {
+			ioLoop.start();
+			socketPool.start();
+			if (socketPool6 != null)
+				socketPool6.start();
+			if (socketRotate > 0) {
+				// Processing thread is not started yet
+				scheduleRotation(System.nanoTime());
+			}
+		}
+		if (reloadThread != null) {
+			reloadThread.start();
+		}
+		installReloadSignal();
+		installLogSignal();
+		if (cacheFile != null) {
+			try {
+				cache.load(cacheFile);
+				log("Mapped " + cache.getSnapshot().getEntryCount()
+						+ " cache entries from " + cacheFile);
+			} catch (NoSuchFileException e) {
+				// no snapshot yet
+			} catch (IOException e) {
+				log("Ignoring cache snapshot: " + e);
+			}
+			cacheThread.start();
+		}
+		if (peerCache != null) {
+			peerCache.start();
+		}
+		for (UpstreamServer upstream : routing.getUpstreams()) {
+			upstream.start();
+		}
+		processingThread.start();
+		for (Listener listener : listeners) {
+			listener.receiveThread.start();
+		}
+		if (dohServer != null) {
+			dohServer.start();
+			log("Accepting DoH requests on " + dohServer.getAddr());
+		}
+		sendThread.start();
+		logThread.start();
+		if (accessLog != null) {
+			accessLog.start();
+		}
+//		statsThread.start();
+		healthThread.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits up to drainMillis for requests in
+	 * flight to be answered and logged, then stops
+	 * 
+	 * With reusePort listeners are closed at once, so the system passes all
+	 * new queries to a process that bound the same addresses. Otherwise they
+	 * are just not read anymore, so queries left in an inherited socket stay
+	 * there for the next process.
+	 */
+	public void shutdown(long drainMillis) {
+		final long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(drainMillis);
+		log("Draining requests for up to " + drainMillis + "ms");
+		accepting = false;
+		try {
+			stopListeners(deadline);
+			if (dohServer != null) {
+				dohServer.stop((int) TimeUnit.NANOSECONDS.toSeconds(Math.max(
+						0, deadline - System.nanoTime())));
+				dohServer = null;
+			}
+			// No new probes either
+			healthThread.interrupt();
+			if (!awaitIdle(deadline))
+				log("Requests still in flight after " + drainMillis + "ms");
+			// Responses and log lines of the last requests
+			awaitReleased(responseMemory, deadline);
+			awaitReleased(logMemory, deadline);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		stop();
+		if (cacheThread != null) {
+			try {
+				// Saves the cache once more when interrupted
+				cacheThread.join(TimeUnit.NANOSECONDS.toMillis(Math.max(1,
+						deadline - System.nanoTime())));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Log.flush(LOG_FLUSH_MILLIS);
+	}
+
+	// Makes receive threads stop reading, MUST be called after accepting is
+	// cleared
+	private void stopListeners(long deadline) throws InterruptedException {
+		for (Listener listener : listeners) {
+			if (reusePort) {
+				try {
+					listener.socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+			// A blocked receive only returns with a packet, so send one
+			try (DatagramChannel wakeup = Addresses.openChannel(listener.addr
+					.getAddress())) {
+				final InetSocketAddress target = wakeupAddress(listener.addr);
+				while (listener.receiveThread.isAlive()
+						&& deadline - System.nanoTime() > 0) {
+					wakeup.send(ByteBuffer.allocate(0), target);
+					listener.receiveThread.join(10);
 				}
-				String[] split = line.split("\\|");
-				int splitIndex = 0;
-				String suffix = split.length > 1 ? split[splitIndex++] : "";
-				String upstreamHost = split[splitIndex];
-				upstreamConfigs.add(UpstreamConfig.createConfig(suffix, upstreamHost));
+			} catch (IOException e) {
+				log("Cannot wake up " + listener.addr + ": " + e);
+			}
+		}
+	}
+
+	// Address a listener can be reached at from this host
+	private static InetSocketAddress wakeupAddress(InetSocketAddress listen)
+			throws UnknownHostException {
+		final InetAddress address = listen.getAddress();
+		if (!address.isAnyLocalAddress())
+			return listen;
+		return new InetSocketAddress(
+				address instanceof Inet6Address ? InetAddress.getByName("::1")
+						: InetAddress.getLoopbackAddress(), listen.getPort());
+	}
+
+	// Returns false if requests are still in flight at deadline
+	private boolean awaitIdle(long deadline) throws InterruptedException {
+		final CountDownLatch idle = new CountDownLatch(1);
+		final Callable<Void> check = new Callable<Void>() {
+			@Override
+			public Void call() {
+				if (inflight.isEmpty() && waiting.isEmpty())
+					idle.countDown();
+				else
+					scheduleAt(System.nanoTime() + DRAIN_CHECK, this);
+				return null;
+			}
+		};
+		// Runs after requests queued before it
+		if (!incoming.offer(check, Math.max(0, deadline - System.nanoTime()),
+				TimeUnit.NANOSECONDS))
+			return false;
+		return idle.await(Math.max(0, deadline - System.nanoTime()),
+				TimeUnit.NANOSECONDS);
+	}
+
+	private static void awaitReleased(MemoryBudget.Pool pool, long deadline)
+			throws InterruptedException {
+		while (pool.getBytes() > 0 && deadline - System.nanoTime() > 0) {
+			Thread.sleep(1);
+		}
+	}
+
+	// Sends a response for a listener closed on handover from a temporary
+	// socket bound to its address, connected sockets never get queries of
+	// other clients, so nothing meant for the new process is lost
+	private void sendDetached(ByteBuffer buffer, DatagramChannel closed,
+			SocketAddress client) {
+		InetSocketAddress local = addr;
+		for (Listener listener : listeners) {
+			if (listener.socket == closed)
+				local = listener.addr;
+		}
+		try (DatagramChannel socket = Addresses.openListener(local, true)) {
+			socket.connect(client);
+			socket.write(buffer);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void stop() {
+		processingThread.interrupt();
+		for (Listener listener : listeners) {
+			listener.receiveThread.interrupt();
+		}
+		if (dohServer != null) {
+			dohServer.stop();
+		}
+		if (capture != null) {
+			capture.close();
+			log("Captured " + capture.getRecords() + " packets to "
+					+ capture.getFile() + ", dropped " + capture.getDropped());
+		}
+		sendThread.interrupt();
+		logThread.interrupt();
+		if (accessLog != null) {
+			accessLog.stop();
+			log("Logged " + accessLog.getLogged() + " queries to "
+					+ accessLog.getFile() + ", dropped "
+					+ accessLog.getDropped());
+		}
+//		statsThread.interrupt();
+		healthThread.interrupt();
+		if (cacheThread != null) {
+			cacheThread.interrupt();
+		}
+		if (peerCache != null) {
+			peerCache.stop();
+		}
+		if (reloadThread != null) {
+			reloadThread.interrupt();
+		}
+		for (UpstreamServer upstream : routing.getUpstreams()) {
+			upstream.stop();
+		}
+		if (ioLoop != null) {
+			socketPool.stop();
+			if (socketPool6 != null)
+				socketPool6.stop();
+			ioLoop.stop();
+		}
+	}
+
+	// MUST be called on processing thread
+	private void processRequest(ProxyRequest request)
+			throws InterruptedException {
+		Log.debug("Request from %s: %s", request.getAddr(),
+				request.getMessage());
+		final LocalData local = localData;
+		if (local != null) {
+			final ResponseTemplate answer = local.lookup(request.getMessage());
+			if (answer != null) {
+				releaseRequest(request);
+				respond(request, new ProxyResponse(request, answer),
+						AccessLog.Status.LOCAL, null);
+				return;
+			}
+		}
+		final RoutingRules.Rule route = routing.getConfig().getRules()
+				.match(request.getMessage(), clientAddress(request));
+		if (route != null) {
+			if (route.getBlock() != null) {
+				releaseRequest(request);
+				respond(request, new ProxyResponse(request, route.getBlock()),
+						AccessLog.Status.BLOCKED, null);
+				return;
+			}
+			request.setRoute(route);
+		}
+		if (cache != null && request.isShared()) {
+			final byte[] cached = cache.get(request.getMessage(),
+					request.getPacket(), clientAddress(request));
+			if (cached != null) {
+				releaseRequest(request);
+				respond(request, new ProxyResponse(request, fitUdp(request,
+						cached)), AccessLog.Status.CACHE, null);
+				return;
+			}
+			if (peerCache != null && peerCache.lookup(request))
+				return;
+		}
+		forwardRequest(request);
+	}
+
+	// Truncates a response that wasn't resolved for this request if it
+	// doesn't fit the client's UDP payload size
+	private static byte[] fitUdp(ProxyRequest request, byte[] packet) {
+		if (request.getSocket() == null)
+			return packet;
+		try {
+			if (packet.length > DNSWire.udpPayloadSize(request.getPacket()))
+				return DNSWire.truncate(packet);
+		} catch (DNSParseException e) {
+			// leave as is
+		}
+		return packet;
+	}
+
+	// MUST be called on processing thread
+	// sends request to upstreams
+	private void forwardRequest(ProxyRequest request)
+			throws InterruptedException {
+		if (clientSubnet && !request.hasClientSubnet()) {
+			addClientSubnet(request);
+		}
+		final List<UpstreamServer> targets = selectTargets(request);
+		if (targets == null) {
+			// Every upstream is at its limit
+			if (limitQueueTime > 0 && waiting.size() < MAX_WAITING) {
+				waitForUpstream(request);
+				return;
+			}
+			sendRequest(request, Collections.<UpstreamServer> emptyList());
+			return;
+		}
+		sendRequest(request, targets);
+	}
+
+	// MUST be called on processing thread
+	// returns upstreams to send request to, or null if all are at their
+	// concurrency limits
+	private List<UpstreamServer> selectTargets(ProxyRequest request) {
+		final RoutingSnapshot snapshot = routing;
+		final List<UpstreamServer> selected;
+		try {
+			selected = upstreamComparatorClass.newInstance().filter(
+					snapshot.getUpstreams(request.getRoute() != null ? request
+							.getRoute().getGroup() : null), request);
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		final long now = System.nanoTime();
+		final List<UpstreamServer> admitted = new ArrayList<>(selected.size());
+		for (UpstreamServer upstreamServer : selected) {
+			if (upstreamServer.getHealth().allowRequest(now))
+				admitted.add(upstreamServer);
+		}
+		if (admitted.isEmpty()) {
+			// Every selected upstream is ejected, better
+			// try them anyway than leave client hanging
+			admitted.addAll(selected);
+		}
+		final List<UpstreamServer> available;
+		if (concurrencyLimit > 0) {
+			available = new ArrayList<>(admitted.size());
+			for (UpstreamServer upstreamServer : admitted) {
+				if (upstreamServer.hasCapacity())
+					available.add(upstreamServer);
+			}
+			if (available.isEmpty() && !admitted.isEmpty())
+				return null;
+		} else {
+			available = admitted;
+		}
+		return upstreamSelector.select(available, request);
+	}
+
+	// MUST be called on processing thread
+	// sends request to targets, or answers SERVFAIL if there are none
+	private void sendRequest(ProxyRequest request,
+			List<UpstreamServer> targets) throws InterruptedException {
+		final RoutingSnapshot snapshot = routing;
+		// Suffix timeout wins, otherwise wait for the slowest upstream
+		long timeout = 0;
+		for (DNSQuestion q : request.getMessage().getQuestions()) {
+			timeout = Math.max(timeout, snapshot.getConfig().getSuffixTimeout(q.getName()));
+		}
+		timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		if (timeout == 0) {
+			for (UpstreamServer upstreamServer : targets) {
+				timeout = Math.max(timeout, upstreamServer.getTimeout());
+			}
+		}
+		request.setTimeout(timeout != 0 ? timeout : TimeUnit.MILLISECONDS
+				.toNanos(defaultTimeout));
+		inflight.add(request);
+		for (UpstreamServer upstreamServer : targets) {
+			if (upstreamServer.startRequest(request))
+				request.addUpstream(upstreamServer);
+		}
+		if (request.getUpstreams().isEmpty()) {
+			// Nowhere to send it, don't leave client waiting
+			request.setAnswered();
+			respond(request, new ProxyResponse(request,
+					ResponseTemplate.SERVFAIL), AccessLog.Status.SERVFAIL, null);
+			finishRequest(request);
+		}
+	}
+
+	// MUST be called on processing thread
+	// parks request until an upstream is under its limit or time runs out
+	private void waitForUpstream(final ProxyRequest request) {
+		waiting.add(request);
+		scheduleAt(System.nanoTime() + limitQueueTime, new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				if (waiting.remove(request)) {
+					// Shed load instead of piling onto slow upstreams
+					sendRequest(request,
+							Collections.<UpstreamServer> emptyList());
+				}
+				return null;
+			}
+		});
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// an upstream finished a request, so waiting requests may fit now
+	void onUpstreamReleased() {
+		if (waiting.isEmpty() || drainScheduled)
+			return;
+		// Not right away, the caller may be in the middle of a request
+		drainScheduled = true;
+		scheduleAt(System.nanoTime(), new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				drainScheduled = false;
+				drainWaiting();
+				return null;
+			}
+		});
+	}
+
+	// MUST be called on processing thread
+	// sends waiting requests in order while upstreams take them
+	private void drainWaiting() throws InterruptedException {
+		final Iterator<ProxyRequest> it = waiting.iterator();
+		while (it.hasNext()) {
+			final ProxyRequest request = it.next();
+			final List<UpstreamServer> targets = selectTargets(request);
+			if (targets == null)
+				break;
+			it.remove();
+			sendRequest(request, targets);
+		}
+	}
+
+	// Client address of request, or null for internal requests
+	private static InetAddress clientAddress(ProxyRequest request) {
+		if (request.getAddr() instanceof InetSocketAddress)
+			return ((InetSocketAddress) request.getAddr()).getAddress();
+		return null;
+	}
+
+	// MUST be called on processing thread
+	private void addClientSubnet(ProxyRequest request) {
+		final InetAddress client = clientAddress(request);
+		if (client == null)
+			return;
+		final byte[] packet = request.getPacket();
+		try {
+			request.setUpstreamPacket(DNSWire.setClientSubnet(packet, client,
+					client instanceof Inet4Address ? subnetPrefix4
+							: subnetPrefix6), DNSWire.findOpt(packet) != -1);
+		} catch (DNSParseException e) {
+			// forward as is
+		}
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// owner peer answered the request from its cache
+	void onPeerHit(ProxyRequest request, DNSMessage response, byte[] packet)
+			throws InterruptedException {
+		// Owner doesn't need the response pushed back
+		request.setPeer(null);
+		cache.put(request.getMessage(), request.getPacket(), response, packet,
+				null, 0);
+		releaseRequest(request);
+		respond(request, new ProxyResponse(request, fitUdp(request, packet)),
+				AccessLog.Status.PEER, null);
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// owner peer didn't have the answer or didn't respond in time
+	void onPeerMiss(ProxyRequest request) throws InterruptedException {
+		forwardRequest(request);
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// returns a cached response with id 0 for a peer, or null
+	byte[] getCached(DNSMessage request, byte[] packet) {
+		return cache.get(request, packet, null);
+	}
+
+	// package-private
+	// MUST be called on processing thread
+	// stores a response received from a peer
+	void putCached(DNSMessage response, byte[] packet) {
+		cache.put(response, packet, response, packet, null, 0);
+	}
+
+	// MUST be called on processing thread
+	private void finishRequest(ProxyRequest request)
+			throws InterruptedException {
+		if (request.setFinished()) {
+			answerHeld(request, true);
+			logUnanswered(request);
+			inflight.remove(request);
+			logRequest(request);
+		}
+	}
+
+	// MUST be called on processing thread
+	// upstream gave up on the request before its deadline
+	public void onUpstreamFailed(ProxyRequest request)
+			throws InterruptedException {
+		if (request.isFinished())
+			return;
+		if (request.addFailure()) {
+			// Nothing more to wait for
+			finishRequest(request);
+		}
+	}
+
+	// MUST be called on processing thread
+	// returns true if response may be sent before all upstreams answer
+	private boolean isAcceptable(final ProxyRequest request,
+			UpstreamResponse response) {
+		switch (responsePolicy) {
+		case FASTEST_VALID:
+			return !response.isError();
+		case MAJORITY:
+			if (response.isError())
+				return false;
+			int votes = 0;
+			for (UpstreamResponse other : request.getResponses()) {
+				if (other.getDigest() == response.getDigest())
+					++votes;
+			}
+			return votes * 2 > request.getUpstreams().size();
+		case PRIORITY:
+			if (response.isError())
+				return false;
+			final List<UpstreamServer> upstreams = request.getUpstreams();
+			final int priority = priorityOf(request, response);
+			for (int i = 0; i < priority; ++i) {
+				if (upstreams.get(i).isInflight(request)) {
+					// A preferred upstream may still answer
+					if (request.setGraceScheduled())
+						scheduleAt(request.getTimestamp() + responseGrace,
+								new Callable<Void>() {
+									@Override
+									public Void call() throws InterruptedException {
+										if (!request.isFinished())
+											answerHeld(request, false);
+										return null;
+									}
+								});
+					return System.nanoTime() - request.getTimestamp()
+							- responseGrace >= 0;
+				}
+			}
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	// Index of the upstream that sent response in request upstreams
+	private static int priorityOf(ProxyRequest request,
+			UpstreamResponse response) {
+		final List<UpstreamServer> upstreams = request.getUpstreams();
+		for (int i = 0; i < upstreams.size(); ++i) {
+			if (upstreams.get(i).getAddr().equals(response.getAddr()))
+				return i;
+		}
+		return upstreams.size();
+	}
+
+	// MUST be called on processing thread
+	// answers with the best response received so far, if not answered yet
+	private void answerHeld(ProxyRequest request, boolean allowErrors)
+			throws InterruptedException {
+		if (request.isProbe() || request.isAnswered())
+			return;
+		UpstreamResponse best = null;
+		int bestScore = Integer.MIN_VALUE;
+		for (UpstreamResponse response : request.getResponses()) {
+			// Valid responses always win, then policy decides, then speed
+			int score = response.isError() ? -1000 : 0;
+			switch (responsePolicy) {
+			case MAJORITY:
+				for (UpstreamResponse other : request.getResponses()) {
+					if (other.getDigest() == response.getDigest())
+						++score;
+				}
+				break;
+			case PRIORITY:
+				score -= priorityOf(request, response);
+				break;
+			default:
+				break;
+			}
+			if (score > bestScore) {
+				best = response;
+				bestScore = score;
+			}
+		}
+		if (best != null && (allowErrors || !best.isError()))
+			answer(request, best);
+	}
+
+	// MUST be called on processing thread
+	private void answer(ProxyRequest request, UpstreamResponse response)
+			throws InterruptedException {
+		request.setAnswered();
+		byte[] packet = response.getPacket();
+		int scope = -1;
+		try {
+			// Client may have sent a subnet of its own, the response then
+			// depends on it even if the proxy doesn't add subnets
+			scope = DNSWire.clientSubnetScope(packet);
+			if (request.hasClientSubnet()) {
+				// Client didn't ask for the subnet, so it doesn't get it back
+				packet = DNSWire.removeClientSubnet(packet,
+						!request.hasClientOpt());
+			}
+		} catch (DNSParseException e) {
+			// leave as is
+		}
+		respond(request, new ProxyResponse(request, packet),
+				AccessLog.Status.UPSTREAM, response.getAddr());
+		if (cache != null && request.isShared()) {
+			cache.put(request.getMessage(), request.getPacket(),
+					response.getMessage(), packet, clientAddress(request), scope);
+		}
+		// Owner can't tell which subnets the response is valid for
+		if (request.getPeer() != null && !response.isError() && scope <= 0) {
+			peerCache.push(request.getPeer(), packet);
+		}
+	}
+
+	// MUST be called on processing thread
+	public void onUpstreamResponse(ProxyRequest request,
+			UpstreamResponse response) throws InterruptedException {
+		Log.debug("Response from %s: %s", response.getAddr(),
+				response.getMessage());
+		if (request.isFinished())
+			return; // ignore late responses
+		if (request.isProbe()) {
+			// Health is already updated by upstream
+			finishRequest(request);
+			return;
+		}
+		request.addResponse(response);
+		if (!request.isAnswered() && isAcceptable(request, response)) {
+			answer(request, response);
+		}
+		if (request.isComplete()) {
+			// Received last response, finish request
+			finishRequest(request);
+		}
+	}
+
+	// MUST be called on processing thread
+	private void checkHealth() throws InterruptedException {
+		final long now = System.nanoTime();
+		final List<UpstreamServer> upstreams = routing.getUpstreams();
+		for (UpstreamServer upstream : upstreams) {
+			upstream.checkParseErrors(now);
+		}
+		stopDrained();
+		ejectOutliers(upstreams, now);
+		if (probePacket == null)
+			return;
+		for (UpstreamServer upstream : upstreams) {
+			final ProxyRequest probe = ProxyRequest.createProbe(probePacket,
+					probeMessage, PROBE_TIMEOUT);
+			if (upstream.startRequest(probe)) {
+				probe.addUpstream(upstream);
+				inflight.add(probe);
 			}
 		}
-		return upstreamConfigs;
+	}
+
+	// Ejects healthy upstreams that are much slower than the rest,
+	// but never more than half of them
+	private void ejectOutliers(List<UpstreamServer> upstreams, long now) {
+		final List<UpstreamServer> trusted = new ArrayList<>();
+		int ejected = 0;
+		for (UpstreamServer upstream : upstreams) {
+			final UpstreamHealth health = upstream.getHealth();
+			if (health.getState() != UpstreamHealth.State.HEALTHY)
+				++ejected;
+			else if (health.hasEnoughSamples())
+				trusted.add(upstream);
+		}
+		if (trusted.size() < 3)
+			return;
+		final long[] latencies = new long[trusted.size()];
+		for (int i = 0; i < latencies.length; ++i) {
+			latencies[i] = trusted.get(i).getHealth().getLatency();
+		}
+		Arrays.sort(latencies);
+		final long threshold = Math.max(OUTLIER_MIN_LATENCY,
+				latencies[latencies.length / 2] * OUTLIER_FACTOR);
+		for (UpstreamServer upstream : trusted) {
+			if ((ejected + 1) * 2 > upstreams.size())
+				break;
+			if (upstream.getHealth().getLatency() > threshold) {
+				upstream.getHealth().eject(now);
+				log("Ejected outlier " + upstream);
+				++ejected;
+			}
+		}
+	}
+
+	private static void usage() {
+		System.out
+				.println("Usage: ProxyServer [-host host|[address]:port]... [-port port] [-filter class]"
+						+ " [-reuseport] [-inherit] [-drain ms] [-resolve-cache file] [-check]"
+						+ " [-log-level error|warn|info|debug]"
+						+ " [-cache-size entries] [-cache-memory MB] [-cache-max-ttl seconds]"
+						+ " [-cache-file file] [-cache-save-interval seconds]"
+						+ " [-probe name[:qtype]] [-health-interval seconds]"
+						+ " [-eject-latency ms] [-timeout ms] [-retransmit ms]"
+						+ " [-ratelimit qps[:burst]] [-ratelimit-prefix v4[:v6]]"
+						+ " [-ratelimit-action drop|truncate|refuse] [-rrl rps[:slip]]"
+						+ " [-reload-interval seconds] [-io threads|selector]"
+						+ " [-upstream-sockets count] [-socket-rotate seconds]"
+						+ " [-response-policy fastest|fastest-valid|majority|priority[:graceMillis]]"
+						+ " [-select all|weighted|least|p2c|hash]"
+						+ " [-concurrency-limit max[:queueMillis]]"
+						+ " [-hosts file] [-zone file]"
+						+ " [-peer-listen host:port] [-peer host:port] [-peer-timeout ms]"
+						+ " [-peer-secret file]"
+						+ " [-ecs v4prefix[:v6prefix]] [-memory-limit MB[:drop|servfail]]"
+						+ " [-doh-listen host:port] [-doh-keystore file] [-doh-password password]"
+						+ " [-doh-threads count] [-capture file] [-capture-size MB]"
+						+ " [-access-log file] [-access-log-format json|csv]"
+						+ " [-access-log-fields field,...] [-access-log-sample rate[:slowMillis]]"
+						+ " [-access-log-name name]... [-access-log-rotate MB[:seconds][:gzip]]"
+						+ " -config config");
+		System.exit(1);
+	}
+
+	public static void main(String[] args) throws IOException  {
+		final List<String> hosts = new ArrayList<>();
+		String upstreamFilterClassname = "ru.kitsu.dnsproxy.UpstreamServerFilterComparatorImpl";
+		int port = 53;
+		int cacheSize = 0;
+		int cacheMaxTtl = 86400;
+		int cacheMemory = 0;
+		String cacheFile = null;
+		int cacheSaveInterval = 60;
+		String peerListen = null;
+		final List<InetSocketAddress> peers = new ArrayList<>();
+		int peerTimeout = 50;
+		String peerSecret = null;
+		String ecs = null;
+		String memoryLimit = null;
+		String dohListen = null;
+		String captureFile = null;
+		int captureSize = 256;
+		String concurrencyLimit = null;
+		boolean reusePort = false;
+		boolean inherit = false;
+		long drain = DEFAULT_DRAIN;
+		String resolveCache = null;
+		boolean check = false;
+		String accessLogFile = null;
+		String accessLogFormat = "json";
+		String accessLogFields = AccessLog.DEFAULT_FIELDS;
+		String accessLogSample = null;
+		final List<String> accessLogNames = new ArrayList<>();
+		String accessLogRotate = "100:86400";
+		String dohKeyStore = null;
+		String dohPassword = null;
+		int dohThreads = DEFAULT_DOH_THREADS;
+		String probe = null;
+		int healthInterval = 5;
+		int ejectLatency = 0;
+		long timeout = DEFAULT_TIMEOUT;
+		long retransmit = DEFAULT_RETRANSMIT;
+		String rateLimit = null;
+		String rateLimitPrefix = "24:56";
+		RateLimitAction rateLimitAction = RateLimitAction.DROP;
+		String responseRateLimit = null;
+		int reloadInterval = 0;
+		boolean ioLoop = false;
+		int upstreamSockets = DEFAULT_UPSTREAM_SOCKETS;
+		String responsePolicy = null;
+		String selection = null;
+		int socketRotate = DEFAULT_SOCKET_ROTATE;
+		final List<String> configFiles = new ArrayList<>();
+		final List<String> hostsFiles = new ArrayList<>();
+		final List<String> zoneFiles = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			switch (args[i]) {
+				case "-host":
+					if (++i >= args.length)
+						usage();
+					hosts.add(args[i]);
+					break;
+				case "-port":
+					if (++i >= args.length)
+						usage();
+					port = Integer.parseInt(args[i]);
+					break;
+				case "-filter":
+					if (++i >= args.length)
+						usage();
+					upstreamFilterClassname = args[i];
+					break;
+				case "-config":
+					if (++i >= args.length)
+						usage();
+					configFiles.add(args[i]);
+					break;
+				case "-hosts":
+					if (++i >= args.length)
+						usage();
+					hostsFiles.add(args[i]);
+					break;
+				case "-zone":
+					if (++i >= args.length)
+						usage();
+					zoneFiles.add(args[i]);
+					break;
+				case "-cache-size":
+					if (++i >= args.length)
+						usage();
+					cacheSize = Integer.parseInt(args[i]);
+					break;
+				case "-cache-memory":
+					if (++i >= args.length)
+						usage();
+					cacheMemory = Integer.parseInt(args[i]);
+					break;
+				case "-cache-max-ttl":
+					if (++i >= args.length)
+						usage();
+					cacheMaxTtl = Integer.parseInt(args[i]);
+					break;
+				case "-cache-file":
+					if (++i >= args.length)
+						usage();
+					cacheFile = args[i];
+					break;
+				case "-cache-save-interval":
+					if (++i >= args.length)
+						usage();
+					cacheSaveInterval = Integer.parseInt(args[i]);
+					break;
+				case "-peer-listen":
+					if (++i >= args.length)
+						usage();
+					peerListen = args[i];
+					break;
+				case "-peer":
+					if (++i >= args.length)
+						usage();
+					peers.add(Addresses.resolve(args[i], -1));
+					break;
+				case "-peer-timeout":
+					if (++i >= args.length)
+						usage();
+					peerTimeout = Integer.parseInt(args[i]);
+					break;
+				case "-peer-secret":
+					if (++i >= args.length)
+						usage();
+					peerSecret = args[i];
+					break;
+				case "-memory-limit":
+					if (++i >= args.length)
+						usage();
+					memoryLimit = args[i];
+					break;
+				case "-capture":
+					if (++i >= args.length)
+						usage();
+					captureFile = args[i];
+					break;
+				case "-capture-size":
+					if (++i >= args.length)
+						usage();
+					captureSize = Integer.parseInt(args[i]);
+					break;
+				case "-reuseport":
+					reusePort = true;
+					break;
+				case "-inherit":
+					inherit = true;
+					break;
+				case "-drain":
+					if (++i >= args.length)
+						usage();
+					drain = Long.parseLong(args[i]);
+					break;
+				case "-resolve-cache":
+					if (++i >= args.length)
+						usage();
+					resolveCache = args[i];
+					break;
+				case "-check":
+					check = true;
+					break;
+				case "-log-level":
+					if (++i >= args.length)
+						usage();
+					Log.setLevel(Log.Level.valueOf(args[i].toUpperCase()));
+					break;
+				case "-concurrency-limit":
+					if (++i >= args.length)
+						usage();
+					concurrencyLimit = args[i];
+					break;
+				case "-access-log":
+					if (++i >= args.length)
+						usage();
+					accessLogFile = args[i];
+					break;
+				case "-access-log-format":
+					if (++i >= args.length)
+						usage();
+					accessLogFormat = args[i];
+					break;
+				case "-access-log-fields":
+					if (++i >= args.length)
+						usage();
+					accessLogFields = args[i];
+					break;
+				case "-access-log-sample":
+					if (++i >= args.length)
+						usage();
+					accessLogSample = args[i];
+					break;
+				case "-access-log-name":
+					if (++i >= args.length)
+						usage();
+					accessLogNames.add(args[i]);
+					break;
+				case "-access-log-rotate":
+					if (++i >= args.length)
+						usage();
+					accessLogRotate = args[i];
+					break;
+				case "-doh-listen":
+					if (++i >= args.length)
+						usage();
+					dohListen = args[i];
+					break;
+				case "-doh-keystore":
+					if (++i >= args.length)
+						usage();
+					dohKeyStore = args[i];
+					break;
+				case "-doh-password":
+					if (++i >= args.length)
+						usage();
+					dohPassword = args[i];
+					break;
+				case "-doh-threads":
+					if (++i >= args.length)
+						usage();
+					dohThreads = Integer.parseInt(args[i]);
+					break;
+				case "-ecs":
+					if (++i >= args.length)
+						usage();
+					ecs = args[i];
+					break;
+				case "-probe":
+					if (++i >= args.length)
+						usage();
+					probe = args[i];
+					break;
+				case "-health-interval":
+					if (++i >= args.length)
+						usage();
+					healthInterval = Integer.parseInt(args[i]);
+					break;
+				case "-eject-latency":
+					if (++i >= args.length)
+						usage();
+					ejectLatency = Integer.parseInt(args[i]);
+					break;
+				case "-timeout":
+					if (++i >= args.length)
+						usage();
+					timeout = Long.parseLong(args[i]);
+					break;
+				case "-retransmit":
+					if (++i >= args.length)
+						usage();
+					retransmit = Long.parseLong(args[i]);
+					break;
+				case "-ratelimit":
+					if (++i >= args.length)
+						usage();
+					rateLimit = args[i];
+					break;
+				case "-ratelimit-prefix":
+					if (++i >= args.length)
+						usage();
+					rateLimitPrefix = args[i];
+					break;
+				case "-ratelimit-action":
+					if (++i >= args.length)
+						usage();
+					rateLimitAction = RateLimitAction.valueOf(args[i].toUpperCase());
+					break;
+				case "-rrl":
+					if (++i >= args.length)
+						usage();
+					responseRateLimit = args[i];
+					break;
+				case "-reload-interval":
+					if (++i >= args.length)
+						usage();
+					reloadInterval = Integer.parseInt(args[i]);
+					break;
+				case "-io":
+					if (++i >= args.length)
+						usage();
+					if (args[i].equals("selector"))
+						ioLoop = true;
+					else if (!args[i].equals("threads"))
+						usage();
+					break;
+				case "-upstream-sockets":
+					if (++i >= args.length)
+						usage();
+					upstreamSockets = Integer.parseInt(args[i]);
+					ioLoop = true;
+					break;
+				case "-response-policy":
+					if (++i >= args.length)
+						usage();
+					responsePolicy = args[i];
+					break;
+				case "-select":
+					if (++i >= args.length)
+						usage();
+					selection = args[i];
+					break;
+				case "-socket-rotate":
+					if (++i >= args.length)
+						usage();
+					socketRotate = Integer.parseInt(args[i]);
+					break;
+				default:
+					usage();
+			}
+		}
+
+		DatagramChannel inherited = null;
+		if (inherit) {
+			// Socket passed as stdin, e.g. by systemd socket activation,
+			// outlives restarts of the proxy
+			final Channel channel = System.inheritedChannel();
+			if (!(channel instanceof DatagramChannel)) {
+				System.out.println("No datagram socket inherited");
+				System.exit(1);
+			}
+			inherited = (DatagramChannel) channel;
+		} else if (hosts.isEmpty()) {
+			hosts.add("127.0.0.1");
+		}
+		final List<InetSocketAddress> listen = new ArrayList<>();
+		for (String host : hosts) {
+			listen.add(host.trim().isEmpty() ? new InetSocketAddress(port)
+					: Addresses.resolve(host, port));
+		}
+		final ProxyServer server = new ProxyServer(upstreamFilterClassname,
+				listen, reusePort, inherited);
+		String probeName = probe;
+		int probeType = 1;
+		if (probe != null && probe.indexOf(':') != -1) {
+			probeName = probe.substring(0, probe.indexOf(':'));
+			probeType = DNSWire.parseType(probe.substring(probe.indexOf(':') + 1));
+		}
+		server.configureHealth(ejectLatency, probeName, probeType,
+				TimeUnit.SECONDS.toMillis(healthInterval));
+		server.setTimeouts(timeout, retransmit);
+		if (responsePolicy != null) {
+			final String[] split = responsePolicy.split(":");
+			server.setResponsePolicy(ResponsePolicy.valueOf(split[0]
+					.toUpperCase().replace('-', '_')),
+					split.length > 1 ? Long.parseLong(split[1]) : DEFAULT_GRACE);
+		}
+		if (selection != null) {
+			server.setUpstreamSelection(UpstreamSelection.valueOf(selection
+					.toUpperCase()));
+		}
+		if (concurrencyLimit != null) {
+			final String[] split = concurrencyLimit.split(":");
+			server.setConcurrencyLimit(Integer.parseInt(split[0]),
+					split.length > 1 ? Long.parseLong(split[1])
+							: DEFAULT_LIMIT_QUEUE);
+		}
+		if (ioLoop) {
+			server.enableIoLoop(upstreamSockets,
+					TimeUnit.SECONDS.toMillis(socketRotate));
+		}
+		final String[] prefixes = rateLimitPrefix.split(":");
+		final int v4Prefix = Integer.parseInt(prefixes[0]);
+		final int v6Prefix = prefixes.length > 1 ? Integer.parseInt(prefixes[1]) : 56;
+		if (rateLimit != null) {
+			final String[] split = rateLimit.split(":");
+			final int rate = Integer.parseInt(split[0]);
+			final int burst = split.length > 1 ? Integer.parseInt(split[1]) : rate;
+			server.enableRateLimit(new RateLimiter(rate, burst, v4Prefix,
+					v6Prefix), rateLimitAction);
+		}
+		if (responseRateLimit != null) {
+			final String[] split = responseRateLimit.split(":");
+			final int rate = Integer.parseInt(split[0]);
+			final int slip = split.length > 1 ? Integer.parseInt(split[1]) : 2;
+			server.enableResponseRateLimit(new RateLimiter(rate, rate,
+					v4Prefix, v6Prefix), slip);
+		}
+		if (resolveCache != null) {
+			server.setResolveCache(Paths.get(resolveCache));
+		}
+		server.configure(configFiles);
+		if (!hostsFiles.isEmpty() || !zoneFiles.isEmpty()) {
+			server.configureLocalData(hostsFiles, zoneFiles);
+		}
+		server.setReloadInterval(TimeUnit.SECONDS.toMillis(reloadInterval));
+		if (cacheSize > 0) {
+			server.enableCache(cacheSize, cacheMaxTtl, cacheMemory * 1048576L,
+					cacheFile != null ? Paths.get(cacheFile) : null,
+					TimeUnit.SECONDS.toMillis(cacheSaveInterval));
+		}
+		if (memoryLimit != null) {
+			final String[] split = memoryLimit.split(":");
+			if (split.length > 1 && !split[1].equals("drop")
+					&& !split[1].equals("servfail"))
+				usage();
+			server.setMemoryLimit(Long.parseLong(split[0]) * 1048576L,
+					split.length > 1 && split[1].equals("drop"));
+		}
+		if (ecs != null) {
+			final String[] split = ecs.split(":");
+			server.enableClientSubnet(Integer.parseInt(split[0]),
+					split.length > 1 ? Integer.parseInt(split[1])
+							: DEFAULT_SUBNET_PREFIX6);
+		}
+		if (peerListen != null) {
+			if (cacheSize <= 0)
+				usage();
+			// Read from a file, so the secret doesn't show in process lists
+			server.enablePeerCache(Addresses.resolve(peerListen, -1), peers,
+					peerTimeout, peerSecret != null ? new String(
+							Files.readAllBytes(Paths.get(peerSecret)),
+							StandardCharsets.UTF_8).trim().getBytes(
+							StandardCharsets.UTF_8) : null);
+		}
+		if (captureFile != null) {
+			server.enableCapture(Paths.get(captureFile), captureSize * 1048576);
+		}
+		if (accessLogFile != null) {
+			final AccessLog accessLog = new AccessLog(Paths.get(accessLogFile),
+					accessLogFormat, accessLogFields);
+			if (accessLogSample != null) {
+				final String[] split = accessLogSample.split(":");
+				accessLog.setSampling(Integer.parseInt(split[0]),
+						split.length > 1 ? Long.parseLong(split[1])
+								: DEFAULT_ACCESS_LOG_SLOW);
+			}
+			for (String name : accessLogNames) {
+				accessLog.addName(name);
+			}
+			final String[] split = accessLogRotate.split(":");
+			if (split.length > 2 && !split[2].equals("gzip"))
+				usage();
+			accessLog.setRotation(Long.parseLong(split[0]) * 1048576L,
+					split.length > 1 ? TimeUnit.SECONDS.toMillis(Long
+							.parseLong(split[1])) : 0, split.length > 2);
+			server.enableAccessLog(accessLog);
+		}
+		if (dohListen != null) {
+			server.enableDoh(Addresses.resolve(dohListen, -1),
+					dohKeyStore != null ? DohServer.loadContext(dohKeyStore,
+							dohPassword) : null, dohThreads);
+		}
+		if (check) {
+			// Everything is loaded, also used to dump a class data archive
+			System.out.println("Configuration OK, "
+					+ server.routing.getUpstreams().size() + " upstreams");
+			System.exit(0);
+		}
+		server.start();
+		final long drainMillis = drain;
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.shutdown(drainMillis);
+			}
+		}, "Proxy shutdown"));
 	}
 
 }
@@ -0,0 +1,14 @@
+package ru.kitsu.dnsproxy;
+
+/**
+ * What to do with a request from a client over its rate limit
+ * 
+ */
+public enum RateLimitAction {
+	// Silently drop the request
+	DROP,
+	// Answer with TC=1, so a legitimate client retries over TCP
+	TRUNCATE,
+	// Answer with REFUSED
+	REFUSE
+}
@@ -0,0 +1,144 @@
+package ru.kitsu.dnsproxy;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token buckets keyed by 64-bit hashes
+ *
+ * Buckets live in a fixed-size table organized like a count-min sketch:
+ * every key maps to one bucket in each row, and it is limited only when all
+ * of its buckets are empty. Colliding keys share buckets, so the table never
+ * grows, and a heavy hitter only drains the buckets it touches.
+ *
+ * Every bucket is a single long: time of last refill in milliseconds in the
+ * upper 40 bits, and tokens with 8 fractional bits in the lower 24 bits.
+ *
+ */
+public final class RateLimiter {
+	private static final int DEPTH = 4;
+	private static final int WIDTH = 16384;
+	private static final int FRACTION_BITS = 8;
+	private static final long ONE = 1L << FRACTION_BITS;
+	private static final int TOKEN_BITS = 24;
+	private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+	// Refill time is capped, so arithmetic below can't overflow
+	private static final long MAX_ELAPSED = 10000000;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(DEPTH * WIDTH);
+	private final long base = System.nanoTime() / 1000000 - 1;
+	private final long rate;
+	private final long capacity;
+	private final int v4Prefix;
+	private final int v6Prefix;
+
+	/**
+	 * @param rate
+	 *            tokens per second
+	 * @param burst
+	 *            bucket size, at most 65535
+	 * @param v4Prefix
+	 *            IPv4 prefix length that shares a bucket
+	 * @param v6Prefix
+	 *            IPv6 prefix length that shares a bucket
+	 */
+	public RateLimiter(int rate, int burst, int v4Prefix, int v6Prefix) {
+		if (rate <= 0 || burst <= 0 || burst > (TOKEN_MASK >> FRACTION_BITS))
+			throw new IllegalArgumentException("Bad rate limit " + rate + ":"
+					+ burst);
+		this.rate = rate;
+		this.capacity = burst * ONE;
+		this.v4Prefix = v4Prefix;
+		this.v6Prefix = v6Prefix;
+	}
+
+	/**
+	 * Takes a token for the key, returns false if the key is over the limit
+	 */
+	public boolean tryAcquire(long hash) {
+		final long now = System.nanoTime() / 1000000 - base;
+		boolean allowed = false;
+		for (int row = 0; row < DEPTH; ++row) {
+			final long h = mix(hash + row * 0x9e3779b97f4a7c15L);
+			if (consume(row * WIDTH + (int) (h & (WIDTH - 1)), now))
+				allowed = true;
+		}
+		return allowed;
+	}
+
+	private boolean consume(int index, long now) {
+		while (true) {
+			final long bucket = buckets.get(index);
+			long time = bucket >>> TOKEN_BITS;
+			long tokens = bucket & TOKEN_MASK;
+			if (bucket == 0) {
+				// never used
+				time = now;
+				tokens = capacity;
+			} else {
+				final long elapsed = Math.min(now - time, MAX_ELAPSED);
+				final long refill = elapsed * rate * ONE / 1000;
+				// Keep time if refill rounds to zero, or it would never refill
+				if (refill > 0) {
+					tokens = Math.min(capacity, tokens + refill);
+					time = now;
+				}
+			}
+			final boolean allowed = tokens >= ONE;
+			if (allowed)
+				tokens -= ONE;
+			final long next = (time << TOKEN_BITS) | tokens;
+			if (next == bucket || buckets.compareAndSet(index, bucket, next))
+				return allowed;
+		}
+	}
+
+	/**
+	 * Hashes network prefix of the address
+	 */
+	public long prefixHash(InetAddress address) {
+		if (address instanceof Inet4Address) {
+			// hashCode of Inet4Address is the address itself
+			final int bits = address.hashCode();
+			return mix(v4Prefix == 0 ? 0 : bits & (-1 << (32 - v4Prefix)));
+		}
+		final byte[] bytes = address.getAddress();
+		long h = 0x6a09e667f3bcc908L;
+		for (int i = 0; i < bytes.length; ++i) {
+			final int bit = i * 8;
+			if (bit >= v6Prefix)
+				break;
+			int b = bytes[i] & 0xff;
+			if (v6Prefix - bit < 8)
+				b &= 0xff << (8 - (v6Prefix - bit));
+			h = (h ^ b) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Hashes question section of a message in the buffer, ignoring case,
+	 * buffer position is left unchanged
+	 */
+	public static long questionHash(ByteBuffer buffer, int end) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 12; i < end; ++i) {
+			int b = buffer.get(i) & 0xff;
+			if (b >= 'A' && b <= 'Z')
+				b |= 0x20;
+			h = (h ^ b) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,170 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Addresses of upstream host names, resolved in parallel and optionally
+ * saved, so that restarts don't wait for DNS
+ *
+ * The file has a line per name with its address. Saved addresses are used
+ * as is, a config with hundreds of upstream names starts without a single
+ * lookup, and they are refreshed in the background for the next start.
+ * Address literals are never looked up or saved.
+ *
+ * All methods are thread safe.
+ *
+ */
+public final class ResolvedHosts {
+	// Lookups in flight at once
+	private static final int RESOLVE_THREADS = 16;
+
+	private final Path file;
+	private final Map<String, InetAddress> addresses = new HashMap<>();
+
+	/**
+	 * @param file
+	 *            saved addresses, null to keep them in memory only
+	 */
+	public ResolvedHosts(Path file) {
+		this.file = file;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Reads saved addresses, a missing file is not an error
+	 */
+	public synchronized void load() throws IOException {
+		if (file == null)
+			return;
+		final List<String> lines;
+		try {
+			lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		for (String line : lines) {
+			final String[] split = line.trim().split("\\s+");
+			// Anything but a literal would be looked up right here
+			if (split.length == 2 && isLiteral(split[1]))
+				addresses.put(split[0], InetAddress.getByName(split[1]));
+		}
+	}
+
+	/**
+	 * Returns the address of a host name, or null if it is not resolved
+	 */
+	public synchronized InetAddress get(String host) {
+		return addresses.get(host);
+	}
+
+	/**
+	 * Resolves host names of upstreams in parallel
+	 *
+	 * Names that can't be resolved are skipped, creating their upstreams
+	 * reports the error.
+	 *
+	 * @param refresh
+	 *            true to look up every name, false for names without an
+	 *            address only
+	 * @return true if any address changed
+	 */
+	public boolean resolve(List<UpstreamConfig> upstreams, boolean refresh) {
+		final Set<String> names = new LinkedHashSet<>();
+		synchronized (this) {
+			for (UpstreamConfig upstream : upstreams) {
+				final String host = upstream.getHost();
+				if (!isLiteral(host)
+						&& (refresh || !addresses.containsKey(host)))
+					names.add(host);
+			}
+		}
+		if (names.isEmpty())
+			return false;
+		final ExecutorService executor = Executors.newFixedThreadPool(Math
+				.min(RESOLVE_THREADS, names.size()));
+		final Map<String, Future<InetAddress>> lookups = new LinkedHashMap<>();
+		boolean changed = false;
+		try {
+			for (final String name : names) {
+				lookups.put(name, executor.submit(new Callable<InetAddress>() {
+					@Override
+					public InetAddress call() throws UnknownHostException {
+						return InetAddress.getByName(name);
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<InetAddress>> lookup : lookups
+					.entrySet()) {
+				final InetAddress address;
+				try {
+					address = lookup.getValue().get();
+				} catch (ExecutionException e) {
+					continue; // can't resolve
+				}
+				synchronized (this) {
+					changed |= !address.equals(addresses.put(lookup.getKey(),
+							address));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		return changed;
+	}
+
+	/**
+	 * Writes addresses to a temporary file and atomically replaces the file
+	 */
+	public synchronized void save() throws IOException {
+		if (file == null)
+			return;
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tmp,
+				StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, InetAddress> entry : addresses.entrySet()) {
+				out.write(entry.getKey());
+				out.write(' ');
+				out.write(entry.getValue().getHostAddress());
+				out.newLine();
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Returns true for IPv4 and IPv6 literals, which resolve without lookups
+	private static boolean isLiteral(String host) {
+		if (host.indexOf(':') != -1)
+			return true;
+		for (int i = 0; i < host.length(); ++i) {
+			final char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9'))
+				return false;
+		}
+		return !host.isEmpty();
+	}
+}
@@ -0,0 +1,17 @@
+package ru.kitsu.dnsproxy;
+
+/**
+ * Which of the upstream responses is sent to the client
+ * 
+ */
+public enum ResponsePolicy {
+	// First response, whatever it is
+	FASTEST,
+	// First response that is not SERVFAIL or REFUSED
+	FASTEST_VALID,
+	// First answer that more than half of upstreams agree on
+	MAJORITY,
+	// Answer of the first upstream in config order, others are used when
+	// it's down or doesn't answer within a grace period
+	PRIORITY
+}
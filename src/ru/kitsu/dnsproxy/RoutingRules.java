@@ -0,0 +1,362 @@
+package ru.kitsu.dnsproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import ru.kitsu.dnsproxy.parser.DNSMessage;
+import ru.kitsu.dnsproxy.parser.DNSQuestion;
+import ru.kitsu.dnsproxy.parser.DNSWire;
+import ru.kitsu.dnsproxy.parser.ResponseTemplate;
+
+/**
+ * Compiled routing rules, the first rule that matches a request wins
+ *
+ * A rule is a config line like
+ *
+ * <pre>
+ * rule suffix=10.in-addr.arpa qtype=PTR group=internal
+ * rule name=*.ads.example.com,~^track[0-9]*\..* block=nxdomain
+ * rule client=10.0.0.0/8,fd00::/8 qtype=AAAA,A group=office
+ * </pre>
+ *
+ * Conditions are name=exact|*.wildcard|~regex, suffix=name (the name and
+ * everything below it), qtype=types and client=subnets, values of a
+ * condition are alternatives. The action either sends the request to
+ * upstreams with the group option, or answers it with nxdomain, refused or
+ * servfail.
+ *
+ * Exact, wildcard and suffix names are compiled into a tree of labels, so a
+ * request walks its name once to find the rules it may match, then checks
+ * the remaining conditions of those rules in order.
+ *
+ */
+public final class RoutingRules {
+	public static final RoutingRules EMPTY = new RoutingRules(
+			Collections.<Rule> emptyList());
+
+	private final Rule[] rules;
+	private final Node root = new Node();
+	// Rules that don't depend on the name or match it with a regex
+	private final BitSet unindexed = new BitSet();
+
+	private static final class Node {
+		private final Map<String, Node> children = new HashMap<>();
+		// Rules matching the name of this node
+		private final BitSet exact = new BitSet();
+		// Rules matching names below this node
+		private final BitSet below = new BitSet();
+
+		private Node child(String label) {
+			Node node = children.get(label);
+			if (node == null) {
+				node = new Node();
+				children.put(label, node);
+			}
+			return node;
+		}
+	}
+
+	public static final class Rule {
+		private final String line;
+		private final List<String> exactNames = new ArrayList<>();
+		private final List<String> wildcardNames = new ArrayList<>();
+		private final List<String> suffixNames = new ArrayList<>();
+		private final List<Pattern> patterns = new ArrayList<>();
+		private BitSet qtypes;
+		private final List<byte[]> networks = new ArrayList<>();
+		private final List<Integer> prefixes = new ArrayList<>();
+		private String group;
+		private ResponseTemplate block;
+
+		private Rule(String line) {
+			this.line = line;
+		}
+
+		/**
+		 * Parses conditions and the action of a rule line, without the rule
+		 * keyword
+		 */
+		public static Rule parse(String line) {
+			final Rule rule = new Rule(line);
+			for (String token : line.trim().split("\\s+")) {
+				final int index = token.indexOf('=');
+				if (index == -1)
+					throw new IllegalArgumentException("Bad rule condition '"
+							+ token + "'");
+				final String key = token.substring(0, index);
+				final String value = token.substring(index + 1);
+				if (key.equals("group") || key.equals("block")) {
+					if (rule.group != null || rule.block != null)
+						throw new IllegalArgumentException(
+								"Rule has more than one action: " + line);
+					if (key.equals("group"))
+						rule.group = value;
+					else
+						rule.block = parseBlock(value);
+					continue;
+				}
+				for (String alternative : value.split(",")) {
+					rule.addCondition(key, alternative.trim());
+				}
+			}
+			if (rule.group == null && rule.block == null)
+				throw new IllegalArgumentException("Rule has no action: "
+						+ line);
+			return rule;
+		}
+
+		/**
+		 * Upstream group requests are sent to, or null if they are blocked
+		 */
+		public String getGroup() {
+			return group;
+		}
+
+		/**
+		 * Answer to blocked requests, or null if they are sent upstream
+		 */
+		public ResponseTemplate getBlock() {
+			return block;
+		}
+
+		/**
+		 * Returns true if the rule depends on client address, so its
+		 * responses must not be shared with other clients
+		 */
+		public boolean isClientSpecific() {
+			return !networks.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "rule " + line;
+		}
+
+		private void addCondition(String key, String value) {
+			switch (key) {
+				case "name":
+					if (value.startsWith("~")) {
+						patterns.add(Pattern.compile(value.substring(1),
+								Pattern.CASE_INSENSITIVE));
+					} else if (value.startsWith("*.")) {
+						wildcardNames.add(normalize(value.substring(2)));
+					} else {
+						exactNames.add(normalize(value));
+					}
+					break;
+				case "suffix":
+					suffixNames.add(normalize(value));
+					break;
+				case "qtype":
+					if (qtypes == null)
+						qtypes = new BitSet();
+					qtypes.set(DNSWire.parseType(value));
+					break;
+				case "client":
+					addNetwork(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown rule condition '"
+							+ key + "'");
+			}
+		}
+
+		private void addNetwork(String value) {
+			final int index = value.indexOf('/');
+			final InetAddress address;
+			try {
+				// Only literals, never resolved
+				address = InetAddress.getByName(index != -1 ? value
+						.substring(0, index) : value);
+			} catch (UnknownHostException e) {
+				throw new IllegalArgumentException("Bad rule subnet '" + value
+						+ "'");
+			}
+			final byte[] network = address.getAddress();
+			final int prefix = index != -1 ? Integer.parseInt(value
+					.substring(index + 1)) : network.length * 8;
+			if (prefix < 0 || prefix > network.length * 8)
+				throw new IllegalArgumentException("Bad rule subnet '" + value
+						+ "'");
+			networks.add(network);
+			prefixes.add(prefix);
+		}
+
+		private boolean hasIndexedNames() {
+			return !exactNames.isEmpty() || !wildcardNames.isEmpty()
+					|| !suffixNames.isEmpty();
+		}
+
+		// Checks conditions that are not in the tree of labels
+		private boolean matches(String name, int qtype, InetAddress client,
+				boolean nameMatched) {
+			if (qtypes != null && !qtypes.get(qtype))
+				return false;
+			if (!networks.isEmpty() && !matchesClient(client))
+				return false;
+			if (nameMatched)
+				return true;
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(name).matches())
+					return true;
+			}
+			return patterns.isEmpty() && !hasIndexedNames();
+		}
+
+		private boolean matchesClient(InetAddress client) {
+			if (client == null)
+				return false;
+			final byte[] address = client.getAddress();
+			for (int i = 0; i < networks.size(); ++i) {
+				final byte[] network = networks.get(i);
+				if (network.length == address.length
+						&& samePrefix(network, address, prefixes.get(i)))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	public RoutingRules(List<Rule> rules) {
+		this.rules = rules.toArray(new Rule[rules.size()]);
+		for (int i = 0; i < this.rules.length; ++i) {
+			final Rule rule = this.rules[i];
+			if (!rule.patterns.isEmpty() || !rule.hasIndexedNames()) {
+				// Regex alternatives make the rule a candidate for any name,
+				// its labels are then checked along with them
+				unindexed.set(i);
+				continue;
+			}
+			for (String name : rule.exactNames) {
+				find(name).exact.set(i);
+			}
+			for (String name : rule.wildcardNames) {
+				find(name).below.set(i);
+			}
+			for (String name : rule.suffixNames) {
+				final Node node = find(name);
+				node.exact.set(i);
+				node.below.set(i);
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return rules.length == 0;
+	}
+
+	/**
+	 * Returns the first rule that matches the request, or null
+	 *
+	 * @param client
+	 *            client address, null never matches client conditions
+	 */
+	public Rule match(DNSMessage message, InetAddress client) {
+		if (rules.length == 0 || message.getQuestions().length == 0)
+			return null;
+		final DNSQuestion question = message.getQuestions()[0];
+		final String name = normalize(question.getName());
+		final BitSet candidates = (BitSet) unindexed.clone();
+		final BitSet indexed = new BitSet();
+		Node node = root;
+		int end = name.length();
+		while (node != null) {
+			if (end <= 0) {
+				indexed.or(node.exact);
+				break;
+			}
+			indexed.or(node.below);
+			final int start = name.lastIndexOf('.', end - 1);
+			node = node.children.get(name.substring(start + 1, end));
+			end = start;
+		}
+		candidates.or(indexed);
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates
+				.nextSetBit(i + 1)) {
+			if (rules[i].matches(name, question.getQType(), client,
+					indexed.get(i) || matchesLabels(rules[i], name)))
+				return rules[i];
+		}
+		return null;
+	}
+
+	// Finds or creates the node of name
+	private Node find(String name) {
+		Node node = root;
+		int end = name.length();
+		while (end > 0) {
+			final int start = name.lastIndexOf('.', end - 1);
+			node = node.child(name.substring(start + 1, end));
+			end = start;
+		}
+		return node;
+	}
+
+	// Checks names of a rule that also has regex alternatives
+	private static boolean matchesLabels(Rule rule, String name) {
+		if (rule.patterns.isEmpty())
+			return false;
+		for (String exact : rule.exactNames) {
+			if (name.equals(exact))
+				return true;
+		}
+		for (String wildcard : rule.wildcardNames) {
+			if (isBelow(name, wildcard))
+				return true;
+		}
+		for (String suffix : rule.suffixNames) {
+			if (name.equals(suffix) || isBelow(name, suffix))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isBelow(String name, String parent) {
+		if (parent.isEmpty())
+			return !name.isEmpty();
+		return name.length() > parent.length() && name.endsWith(parent)
+				&& name.charAt(name.length() - parent.length() - 1) == '.';
+	}
+
+	private static String normalize(String name) {
+		name = name.toLowerCase(Locale.ROOT);
+		if (name.endsWith("."))
+			name = name.substring(0, name.length() - 1);
+		return name;
+	}
+
+	private static boolean samePrefix(byte[] a, byte[] b, int prefix) {
+		final int bytes = prefix / 8;
+		for (int i = 0; i < bytes; ++i) {
+			if (a[i] != b[i])
+				return false;
+		}
+		final int bits = prefix % 8;
+		if (bits == 0)
+			return true;
+		final int mask = (0xff00 >> bits) & 0xff;
+		return (a[bytes] & mask) == (b[bytes] & mask);
+	}
+
+	private static ResponseTemplate parseBlock(String value) {
+		switch (value) {
+			case "nxdomain":
+				return ResponseTemplate.NXDOMAIN;
+			case "refused":
+				return ResponseTemplate.REFUSED;
+			case "servfail":
+				return ResponseTemplate.SERVFAIL;
+			default:
+				throw new IllegalArgumentException("Unknown rule block '"
+						+ value + "'");
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package ru.kitsu.dnsproxy;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of upstreams and the config they were created from
+ * 
+ * Replaced as a whole on config reload, so threads that read it once get a
+ * consistent view without locking
+ * 
+ */
+public final class RoutingSnapshot {
+	private final List<UpstreamServer> upstreams;
+	private final ProxyConfig config;
+	// Upstreams by group, requests not routed by rules use group ""
+	private final Map<String, List<UpstreamServer>> groups = new HashMap<>();
+
+	public RoutingSnapshot(List<UpstreamServer> upstreams, ProxyConfig config) {
+		this(upstreams, null, config);
+	}
+
+	/**
+	 * @param configs
+	 *            configs the upstreams will have once the snapshot is in use,
+	 *            null if they have them already
+	 */
+	public RoutingSnapshot(List<UpstreamServer> upstreams,
+			List<UpstreamConfig> configs, ProxyConfig config) {
+		this.upstreams = Collections
+				.unmodifiableList(new ArrayList<>(upstreams));
+		this.config = config;
+		for (int i = 0; i < upstreams.size(); ++i) {
+			final UpstreamServer upstream = upstreams.get(i);
+			final String group = (configs != null ? configs.get(i) : upstream
+					.getUpstreamConfig()).getGroup();
+			List<UpstreamServer> list = groups.get(group);
+			if (list == null) {
+				list = new ArrayList<>();
+				groups.put(group, list);
+			}
+			list.add(upstream);
+		}
+	}
+
+	public List<UpstreamServer> getUpstreams() {
+		return upstreams;
+	}
+
+	/**
+	 * Upstreams of a group, null for upstreams without one
+	 */
+	public List<UpstreamServer> getUpstreams(String group) {
+		final List<UpstreamServer> list = groups.get(group != null ? group
+				: "");
+		return list != null ? list : Collections.<UpstreamServer> emptyList();
+	}
+
+	public ProxyConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Finds an upstream that was created with equivalent config
+	 * 
+	 * @param address
+	 *            address the config host resolves to now, an upstream that
+	 *            was created for another one doesn't match; null matches any
+	 */
+	public UpstreamServer find(UpstreamConfig config, InetAddress address) {
+		for (UpstreamServer upstream : upstreams) {
+			if (upstream.getUpstreamConfig().isEquivalent(config)
+					&& (address == null || address.equals(upstream.getAddr()
+							.getAddress())))
+				return upstream;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,61 @@
+package ru.kitsu.dnsproxy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * POSIX signal handlers on top of sun.misc.Signal
+ *
+ * The classes are looked up by reflection, so the build doesn't depend on
+ * internal APIs, and a JVM without them only loses the handlers.
+ *
+ */
+final class Signals {
+	private Signals() {
+	}
+
+	/**
+	 * Runs handler on a JVM signal thread whenever the signal is received
+	 *
+	 * @param name
+	 *            signal name without the SIG prefix, like HUP
+	 * @return false if signals or this signal are not supported
+	 */
+	public static boolean handle(String name, final Runnable handler) {
+		try {
+			final Class<?> signalClass = Class.forName("sun.misc.Signal");
+			final Class<?> handlerClass = Class
+					.forName("sun.misc.SignalHandler");
+			final Constructor<?> constructor = signalClass
+					.getConstructor(String.class);
+			final Method handle = signalClass.getMethod("handle", signalClass,
+					handlerClass);
+			final Object proxy = Proxy.newProxyInstance(
+					handlerClass.getClassLoader(),
+					new Class<?>[] { handlerClass }, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							switch (method.getName()) {
+							case "handle":
+								handler.run();
+								return null;
+							case "hashCode":
+								return System.identityHashCode(proxy);
+							case "equals":
+								return proxy == args[0];
+							default:
+								return handler.toString();
+							}
+						}
+					});
+			handle.invoke(null, constructor.newInstance(name), proxy);
+			return true;
+		} catch (ReflectiveOperationException e) {
+			// no sun.misc.Signal, or no such signal on this platform
+			return false;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package ru.kitsu.dnsproxy;
 
+import java.net.InetSocketAddress;
+
 /**
  * Parsed upstream configuration line
  * 
@@ -14,6 +16,11 @@ public class UpstreamConfig {
 	private final String host;
 	private final int port;
 	private final int index;
+	private long timeout;
+	private long retransmit;
+	private boolean tcp;
+	private String group = "";
+	private int weight = 1;
 
 	private UpstreamConfig(String suffix, String host, int port) {
 		this.suffix = suffix;
@@ -38,16 +45,108 @@ public class UpstreamConfig {
 		return index;
 	}
 
+	/**
+	 * Timeout in milliseconds, 0 if default
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Initial retransmission interval in milliseconds, 0 if default
+	 */
+	public long getRetransmit() {
+		return retransmit;
+	}
+
+	/**
+	 * Returns true if requests are pipelined over a TCP connection
+	 */
+	public boolean isTcp() {
+		return tcp;
+	}
+
+	/**
+	 * Group of the upstream for routing rules, empty if it takes requests
+	 * no rule routes elsewhere
+	 */
+	public String getGroup() {
+		return group;
+	}
+
+	/**
+	 * Relative share of requests with a selection other than all
+	 */
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Returns true if an upstream created with other config would use the
+	 * same socket
+	 * 
+	 * Only host, port and transport are compared, the existing upstream picks
+	 * up other settings, so responses to its requests in flight still find it
+	 */
+	public boolean isEquivalent(UpstreamConfig other) {
+		return host.equals(other.host) && port == other.port
+				&& tcp == other.tcp;
+	}
+
+	/**
+	 * Creates config for host, host:port or [address]:port
+	 */
 	public static UpstreamConfig createConfig(String prefix, String host) {
-		int port;
-		int index = host.lastIndexOf(':');
-		if (index != -1) {
-			port = Integer.parseInt(host.substring(index + 1));
-			host = host.substring(0, index);
-		} else {
-			port = 53;
+		final InetSocketAddress addr = Addresses.parse(host, 53);
+		return new UpstreamConfig(prefix, addr.getHostString(), addr.getPort());
+	}
+
+	/**
+	 * Creates config with comma separated options, e.g.
+	 * timeout=2000,retransmit=300,transport=tcp,weight=2
+	 */
+	public static UpstreamConfig createConfig(String prefix, String host,
+			String options) {
+		UpstreamConfig config = createConfig(prefix, host);
+		if (options != null) {
+			for (String option : options.split(",")) {
+				option = option.trim();
+				if (option.isEmpty())
+					continue;
+				int index = option.indexOf('=');
+				if (index == -1)
+					throw new IllegalArgumentException("Bad upstream option '" + option + "'");
+				config.setOption(option.substring(0, index).trim(),
+						option.substring(index + 1).trim());
+			}
+		}
+		return config;
+	}
+
+	private void setOption(String name, String value) {
+		switch (name) {
+			case "timeout":
+				timeout = Long.parseLong(value);
+				break;
+			case "retransmit":
+				retransmit = Long.parseLong(value);
+				break;
+			case "transport":
+				if (!value.equals("udp") && !value.equals("tcp"))
+					throw new IllegalArgumentException("Unknown upstream transport '" + value + "'");
+				tcp = value.equals("tcp");
+				break;
+			case "group":
+				group = value;
+				break;
+			case "weight":
+				weight = Integer.parseInt(value);
+				if (weight <= 0)
+					throw new IllegalArgumentException("Bad upstream weight '" + value + "'");
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown upstream option '" + name + "'");
 		}
-		return new UpstreamConfig(prefix, host, port);
 	}
 	
 	@Override
@@ -0,0 +1,170 @@
+package ru.kitsu.dnsproxy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health of a single upstream server, doubles as its circuit breaker
+ *
+ * Failures (timeouts and garbage responses) and latency are tracked as
+ * moving averages. An upstream that fails too often, or is much slower than
+ * allowed, is ejected for an exponentially growing period. After that
+ * period, and a successful probe if probing is enabled, it is readmitted
+ * gradually: every success lets a bigger share of requests through until it
+ * is considered healthy again.
+ *
+ * Everything except {@link #getState()} MUST be called on processing thread
+ *
+ */
+public final class UpstreamHealth {
+	public enum State {
+		HEALTHY, EJECTED, RECOVERING
+	}
+
+	// Weight of a new sample in moving averages
+	private static final double ALPHA = 0.1;
+	// Failure ratio that ejects an upstream
+	private static final double MAX_FAILURE_RATIO = 0.5;
+	// Minimum samples before failure ratio or latency are trusted
+	private static final int MIN_SAMPLES = 10;
+	// Consecutive failures that eject an upstream regardless of ratio
+	private static final int MAX_CONSECUTIVE_FAILURES = 5;
+	// Ejection period, doubles with every ejection in a row
+	private static final long BASE_EJECTION = TimeUnit.SECONDS.toNanos(5);
+	private static final long MAX_EJECTION = TimeUnit.MINUTES.toNanos(5);
+	// Successes needed while recovering to get back all traffic
+	private static final int RECOVERY_STEPS = 20;
+
+	private final long maxLatency;
+	private final boolean requireProbe;
+
+	private volatile State state = State.HEALTHY;
+	private double failureRatio;
+	private double latency;
+	private int samples;
+	private int consecutiveFailures;
+	private int ejections;
+	private long ejectedUntil;
+	private boolean probeSucceeded;
+	private int recoverySuccesses;
+	private int admitCounter;
+
+	/**
+	 * @param maxLatency
+	 *            average latency in nanoseconds that ejects an upstream, or 0
+	 * @param requireProbe
+	 *            if a successful probe is needed to leave ejected state
+	 */
+	public UpstreamHealth(long maxLatency, boolean requireProbe) {
+		this.maxLatency = maxLatency;
+		this.requireProbe = requireProbe;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public double getFailureRatio() {
+		return failureRatio;
+	}
+
+	public long getLatency() {
+		return (long) latency;
+	}
+
+	/**
+	 * Returns true if averages are based on enough samples to be trusted
+	 */
+	public boolean hasEnoughSamples() {
+		return samples >= MIN_SAMPLES;
+	}
+
+	/**
+	 * Returns true if a request may be sent to the upstream now
+	 */
+	public boolean allowRequest(long now) {
+		switch (state) {
+		case HEALTHY:
+			return true;
+		case EJECTED:
+			if (now - ejectedUntil < 0 || (requireProbe && !probeSucceeded))
+				return false;
+			state = State.RECOVERING;
+			recoverySuccesses = 0;
+			admitCounter = 0;
+			return admitRecovering();
+		default:
+			return admitRecovering();
+		}
+	}
+
+	// Lets through recoverySuccesses + 1 out of every RECOVERY_STEPS
+	private boolean admitRecovering() {
+		if (++admitCounter >= RECOVERY_STEPS)
+			admitCounter = 0;
+		return admitCounter <= recoverySuccesses;
+	}
+
+	public void onSuccess(long now, long elapsed) {
+		failureRatio -= ALPHA * failureRatio;
+		latency = samples == 0 ? elapsed : latency + ALPHA
+				* (elapsed - latency);
+		++samples;
+		consecutiveFailures = 0;
+		switch (state) {
+		case EJECTED:
+			probeSucceeded = true;
+			break;
+		case RECOVERING:
+			if (++recoverySuccesses >= RECOVERY_STEPS) {
+				state = State.HEALTHY;
+				ejections = 0;
+			}
+			break;
+		default:
+			if (maxLatency > 0 && samples >= MIN_SAMPLES
+					&& latency > maxLatency)
+				eject(now);
+			break;
+		}
+	}
+
+	public void onFailure(long now) {
+		failureRatio += ALPHA * (1.0 - failureRatio);
+		++samples;
+		++consecutiveFailures;
+		switch (state) {
+		case EJECTED:
+			probeSucceeded = false;
+			break;
+		case RECOVERING:
+			eject(now);
+			break;
+		default:
+			if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES
+					|| (samples >= MIN_SAMPLES && failureRatio > MAX_FAILURE_RATIO))
+				eject(now);
+			break;
+		}
+	}
+
+	/**
+	 * Ejects an upstream that is an outlier compared to others
+	 */
+	public void eject(long now) {
+		final long period = ejections >= 6 ? MAX_EJECTION : Math.min(
+				BASE_EJECTION << ejections, MAX_EJECTION);
+		++ejections;
+		ejectedUntil = now + period;
+		probeSucceeded = false;
+		// Start over, so a readmitted upstream isn't ejected on first failure
+		failureRatio = 0;
+		samples = 0;
+		state = State.EJECTED;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %.2ffail %dms", state, failureRatio,
+				(long) latency / 1000000);
+	}
+}
@@ -0,0 +1,189 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread that multiplexes datagram channels of all upstreams
+ *
+ * Used instead of a receive and a send thread per upstream, so the number of
+ * threads doesn't depend on the number of upstreams. Channels are registered,
+ * unregistered and flushed by tasks that run on the loop thread.
+ *
+ */
+public final class UpstreamIoLoop implements Runnable {
+	// Maximum message should be 512 bytes
+	// We accept up to 16384 bytes just in case
+	private static final int MAX_PACKET_SIZE = 16384;
+	// Maximum packets received from one channel before others get a turn
+	private static final int MAX_READ_BATCH = 64;
+
+	public interface Handler {
+		/**
+		 * Handles a packet received by channel
+		 */
+		void onPacket(ByteBuffer buffer, SocketAddress remote)
+				throws InterruptedException;
+
+		/**
+		 * Sends pending packets, returns false if channel is full
+		 */
+		boolean onWritable(DatagramChannel channel, ByteBuffer buffer)
+				throws IOException;
+	}
+
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+
+	public UpstreamIoLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public void stop() {
+		thread.interrupt();
+		selector.wakeup();
+	}
+
+	/**
+	 * Registers channel for reading, channel is made non-blocking
+	 */
+	public void register(final DatagramChannel channel, final Handler handler) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, handler);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Unregisters and closes channel
+	 */
+	public void unregister(final DatagramChannel channel) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				final SelectionKey key = channel.keyFor(selector);
+				if (key != null)
+					key.cancel();
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Flushes pending packets of the channel on loop thread
+	 *
+	 * Callers should coalesce requests, so there is at most one in the queue
+	 */
+	public void requestWrite(final DatagramChannel channel,
+			final Handler handler) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				final SelectionKey key = channel.keyFor(selector);
+				if (key == null || !key.isValid())
+					return;
+				try {
+					if (!handler.onWritable(channel, buffer))
+						key.interestOps(SelectionKey.OP_READ
+								| SelectionKey.OP_WRITE);
+				} catch (ClosedChannelException | CancelledKeyException e) {
+					key.cancel();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				selector.select();
+				Runnable task;
+				while (null != (task = tasks.poll())) {
+					task.run();
+				}
+				final Iterator<SelectionKey> it = selector.selectedKeys()
+						.iterator();
+				while (it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (key.isReadable())
+							read(key);
+						if (key.isValid() && key.isWritable()) {
+							final Handler handler = (Handler) key.attachment();
+							if (handler.onWritable(
+									(DatagramChannel) key.channel(), buffer))
+								key.interestOps(SelectionKey.OP_READ);
+						}
+					} catch (ClosedChannelException | CancelledKeyException e) {
+						key.cancel();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// interrupted
+		} catch (ClosedSelectorException e) {
+			// closed
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException,
+			InterruptedException {
+		final DatagramChannel channel = (DatagramChannel) key.channel();
+		final Handler handler = (Handler) key.attachment();
+		for (int i = 0; i < MAX_READ_BATCH; ++i) {
+			buffer.clear();
+			final SocketAddress remote = channel.receive(buffer);
+			if (remote == null)
+				break;
+			buffer.flip();
+			handler.onPacket(buffer, remote);
+		}
+	}
+}
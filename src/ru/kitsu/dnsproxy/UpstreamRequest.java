@@ -1,5 +1,8 @@
 package ru.kitsu.dnsproxy;
 
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
 /**
  * Tracks a request sent to an upstream server
  * 
@@ -7,12 +10,40 @@ package ru.kitsu.dnsproxy;
  * 
  */
 public class UpstreamRequest {
+	private final InetSocketAddress addr;
+	private final int slot;
 	private final short id;
 	private final ProxyRequest proxyRequest;
+	private final long started;
+	private final long deadline;
+	private long retransmit;
+	// TCP connection the request was written to, set by the send thread
+	private volatile SocketChannel connection;
 
-	public UpstreamRequest(short id, ProxyRequest proxyRequest) {
+	public UpstreamRequest(InetSocketAddress addr, int slot, short id,
+			ProxyRequest proxyRequest, long started, long deadline,
+			long retransmit) {
+		this.addr = addr;
+		this.slot = slot;
 		this.id = id;
 		this.proxyRequest = proxyRequest;
+		this.started = started;
+		this.deadline = deadline;
+		this.retransmit = retransmit;
+	}
+
+	/**
+	 * Address of the upstream server
+	 */
+	public InetSocketAddress getAddr() {
+		return addr;
+	}
+
+	/**
+	 * Socket pool slot the request is sent from, always 0 without a pool
+	 */
+	public int getSlot() {
+		return slot;
 	}
 
 	public short getId() {
@@ -22,4 +53,40 @@ public class UpstreamRequest {
 	public ProxyRequest getProxyRequest() {
 		return proxyRequest;
 	}
+
+	/**
+	 * Time when the request was queued for sending to the upstream
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Time when the upstream gives up on this request
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Interval until the next retransmission, or 0 if disabled
+	 */
+	public long getRetransmit() {
+		return retransmit;
+	}
+
+	public void setRetransmit(long retransmit) {
+		this.retransmit = retransmit;
+	}
+
+	/**
+	 * TCP connection the request was written to, or null
+	 */
+	public SocketChannel getConnection() {
+		return connection;
+	}
+
+	public void setConnection(SocketChannel connection) {
+		this.connection = connection;
+	}
 }
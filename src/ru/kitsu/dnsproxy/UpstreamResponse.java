@@ -3,6 +3,8 @@ package ru.kitsu.dnsproxy;
 import java.net.SocketAddress;
 
 import ru.kitsu.dnsproxy.parser.DNSMessage;
+import ru.kitsu.dnsproxy.parser.DNSParseException;
+import ru.kitsu.dnsproxy.parser.DNSWire;
 
 /**
  * Response received from an upstream server
@@ -15,6 +17,8 @@ public class UpstreamResponse {
 	private final byte[] packet;
 	private final DNSMessage message;
 	private final long timestamp;
+	private long digest;
+	private boolean digested;
 
 	public UpstreamResponse(SocketAddress addr, byte[] packet,
 			DNSMessage message) {
@@ -39,4 +43,28 @@ public class UpstreamResponse {
 	public long getTimestamp() {
 		return timestamp;
 	}
+
+	/**
+	 * Returns true if upstream answered with SERVFAIL or REFUSED
+	 */
+	public boolean isError() {
+		return DNSWire.isErrorRcode(message.getRcode());
+	}
+
+	/**
+	 * Digest of the answer for comparison with other upstreams, computed on
+	 * first use
+	 */
+	public long getDigest() {
+		if (!digested) {
+			try {
+				digest = DNSWire.answerDigest(packet);
+			} catch (DNSParseException e) {
+				// Unparseable answers never agree with anything
+				digest = System.identityHashCode(this);
+			}
+			digested = true;
+		}
+		return digest;
+	}
 }
@@ -0,0 +1,19 @@
+package ru.kitsu.dnsproxy;
+
+/**
+ * Which of the upstreams matching a request it is sent to
+ * 
+ */
+public enum UpstreamSelection {
+	// Every upstream, the response policy picks the answer
+	ALL,
+	// One upstream in smooth weighted round-robin order
+	WEIGHTED,
+	// Upstream with the fewest requests in flight per weight
+	LEAST,
+	// Less loaded of two upstreams picked at random by weight
+	P2C,
+	// Upstream that owns the name on a consistent hash ring, so every name
+	// is cached by one upstream
+	HASH
+}
@@ -0,0 +1,170 @@
+package ru.kitsu.dnsproxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import ru.kitsu.dnsproxy.cache.CacheKey;
+import ru.kitsu.dnsproxy.parser.DNSQuestion;
+
+/**
+ * Picks the upstreams a request is sent to out of the matching ones
+ *
+ * Used on processing thread only.
+ *
+ */
+public final class UpstreamSelector {
+	// Hash rings kept for distinct sets of upstreams
+	private static final int MAX_RINGS = 64;
+
+	private final UpstreamSelection selection;
+	private final Random random = new Random();
+	private final Map<List<UpstreamServer>, HashRing<UpstreamServer>> rings = new HashMap<>();
+
+	public UpstreamSelector(UpstreamSelection selection) {
+		this.selection = selection;
+	}
+
+	public UpstreamSelection getSelection() {
+		return selection;
+	}
+
+	/**
+	 * Forgets hash rings, MUST be called when weights may have changed
+	 */
+	public void clear() {
+		rings.clear();
+	}
+
+	/**
+	 * Returns upstreams to send request to, candidates are in preference
+	 * order and allowed by health checks
+	 */
+	public List<UpstreamServer> select(List<UpstreamServer> candidates,
+			ProxyRequest request) {
+		if (selection == UpstreamSelection.ALL || candidates.size() <= 1)
+			return candidates;
+		final UpstreamServer selected;
+		switch (selection) {
+			case WEIGHTED:
+				selected = selectWeighted(candidates);
+				break;
+			case LEAST:
+				selected = selectLeast(candidates);
+				break;
+			case P2C:
+				selected = selectTwoChoices(candidates);
+				break;
+			case HASH:
+				selected = selectHashed(candidates, request);
+				break;
+			default:
+				throw new IllegalStateException("Unknown selection "
+						+ selection);
+		}
+		return Collections.singletonList(selected);
+	}
+
+	// Smooth weighted round-robin: every upstream gains its weight, the
+	// one with the most is picked and pays back the total
+	private static UpstreamServer selectWeighted(
+			List<UpstreamServer> candidates) {
+		UpstreamServer best = null;
+		int total = 0;
+		for (UpstreamServer upstream : candidates) {
+			final int weight = weightOf(upstream);
+			upstream.setCurrentWeight(upstream.getCurrentWeight() + weight);
+			total += weight;
+			if (best == null
+					|| upstream.getCurrentWeight() > best.getCurrentWeight())
+				best = upstream;
+		}
+		best.setCurrentWeight(best.getCurrentWeight() - total);
+		return best;
+	}
+
+	private static UpstreamServer selectLeast(List<UpstreamServer> candidates) {
+		UpstreamServer best = null;
+		for (UpstreamServer upstream : candidates) {
+			// Earlier candidates win ties
+			if (best == null || isLessLoaded(upstream, best))
+				best = upstream;
+		}
+		return best;
+	}
+
+	private UpstreamServer selectTwoChoices(List<UpstreamServer> candidates) {
+		final UpstreamServer first = pickRandom(candidates, null);
+		final UpstreamServer second = pickRandom(candidates, first);
+		return isLessLoaded(second, first) ? second : first;
+	}
+
+	private UpstreamServer selectHashed(List<UpstreamServer> candidates,
+			ProxyRequest request) {
+		final DNSQuestion[] questions = request.getMessage().getQuestions();
+		if (questions.length == 0)
+			return candidates.get(0);
+		HashRing<UpstreamServer> ring = rings.get(candidates);
+		if (ring == null) {
+			if (rings.size() >= MAX_RINGS)
+				rings.clear();
+			ring = buildRing(candidates);
+			rings.put(new ArrayList<>(candidates), ring);
+		}
+		// Every type of a name goes to the same upstream
+		final byte[] name = questions[0].getName().toLowerCase(Locale.ROOT)
+				.getBytes(StandardCharsets.ISO_8859_1);
+		return ring.get(CacheKey.hash64(name, 0, name.length));
+	}
+
+	// Weight is the number of times an upstream is placed on the ring
+	private static HashRing<UpstreamServer> buildRing(
+			List<UpstreamServer> candidates) {
+		final List<String> names = new ArrayList<>();
+		final List<UpstreamServer> nodes = new ArrayList<>();
+		for (UpstreamServer upstream : candidates) {
+			final String name = upstream.getAddr().getAddress()
+					.getHostAddress()
+					+ ":" + upstream.getAddr().getPort();
+			for (int i = 0; i < weightOf(upstream); ++i) {
+				names.add(name + "/" + i);
+				nodes.add(upstream);
+			}
+		}
+		return new HashRing<>(names, nodes);
+	}
+
+	// Picks an upstream with probability proportional to weight
+	private UpstreamServer pickRandom(List<UpstreamServer> candidates,
+			UpstreamServer excluded) {
+		int total = 0;
+		for (UpstreamServer upstream : candidates) {
+			if (upstream != excluded)
+				total += weightOf(upstream);
+		}
+		int point = random.nextInt(total);
+		for (UpstreamServer upstream : candidates) {
+			if (upstream == excluded)
+				continue;
+			point -= weightOf(upstream);
+			if (point < 0)
+				return upstream;
+		}
+		throw new IllegalStateException();
+	}
+
+	// Compares requests in flight per weight
+	private static boolean isLessLoaded(UpstreamServer a, UpstreamServer b) {
+		return (long) a.getInflightCount() * weightOf(b) < (long) b
+				.getInflightCount() * weightOf(a);
+	}
+
+	private static int weightOf(UpstreamServer upstream) {
+		return upstream.getUpstreamConfig().getWeight();
+	}
+}
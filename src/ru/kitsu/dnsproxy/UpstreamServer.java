@@ -1,28 +1,40 @@
 package ru.kitsu.dnsproxy;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ru.kitsu.dnsproxy.parser.DNSMessage;
 import ru.kitsu.dnsproxy.parser.DNSParseException;
+import ru.kitsu.dnsproxy.parser.DNSStreamDecoder;
 
 /**
  * Manages packets to and from a single upstream server
  * 
+ * Upstreams without a socket pool open their socket and start their threads
+ * on the first request, so upstreams that rarely get traffic cost nothing
+ * until they do, and a config with many of them starts quickly.
+ * 
  * @author Alexey Borzenkov
  * 
  */
@@ -32,26 +44,44 @@ public class UpstreamServer {
 	private static final int MAX_PACKET_SIZE = 16384;
 	// Maximum expected number of outgoing packets buildup
 	private static final int MAX_PACKETS = 8192;
+	// Stream buffers fit the largest message and many typical ones, so a
+	// single read or write carries as many as the connection allows
+	private static final int STREAM_BUFFER_SIZE = 131072;
 
 	private static final Random random = new Random();
 
 	private final AtomicInteger inflightCount = new AtomicInteger();
 	private final AtomicInteger parseErrors = new AtomicInteger();
 	private final AtomicInteger addrErrors = new AtomicInteger();
-	private final Map<Short, UpstreamRequest> inflight = new HashMap<>();
+	// Responses the I/O loop dropped because processing fell behind
+	private final AtomicInteger droppedResponses = new AtomicInteger();
+	private final UpstreamHealth health;
+	// Adaptive limit of requests in flight, null if unlimited
+	private final ConcurrencyLimit limit;
+	private int checkedParseErrors;
+	// Requests by slot and id, see key()
+	private final Map<Integer, UpstreamRequest> inflight = new HashMap<>();
 	private final Map<ProxyRequest, UpstreamRequest> accepted = new HashMap<>();
 	private final BlockingQueue<UpstreamRequest> outgoing = new ArrayBlockingQueue<>(
 			MAX_PACKETS);
+	// Connections opened by the send thread for the receive thread
+	private final BlockingQueue<SocketChannel> connections = new LinkedBlockingQueue<>();
 
 	private final ProxyServer proxyServer;
 	private final InetSocketAddress addr;
-	private final DatagramChannel socket;
-	private final Thread receiveThread;
-	private final Thread sendThread;
+	private final UpstreamSocketPool pool;
+	// Own socket and threads, created on the first request
+	private DatagramChannel socket;
+	private Thread receiveThread;
+	private Thread sendThread;
+	private boolean started;
+	private boolean stopped;
 
 	private final short shuffleKey = (short) random.nextInt();
 	private short nextId = 0;
-	private UpstreamConfig config;
+	private volatile UpstreamConfig config;
+	// Smooth weighted round-robin state, see UpstreamSelector
+	private int currentWeight;
 
 	private class ReceiveWorker implements Runnable {
 		@Override
@@ -76,51 +106,7 @@ public class UpstreamServer {
 						continue; // shouldn't happen, but just in case
 					}
 					buffer.flip();
-					if (!addr.equals(remote)) {
-						addrErrors.incrementAndGet();
-						continue; // ignore packets from unexpected sources
-					}
-					final DNSMessage message;
-					try {
-						message = DNSMessage.parse(buffer, false);
-					} catch (BufferUnderflowException e) {
-						parseErrors.incrementAndGet();
-						continue; // message is severely truncated
-					} catch (DNSParseException e) {
-						parseErrors.incrementAndGet();
-						continue; // cannot parse or whatever
-					}
-					if (!message.isResponse()) {
-						parseErrors.incrementAndGet();
-						continue; // ignore non-responses
-					}
-					buffer.rewind();
-					final byte[] packet = new byte[buffer.limit()];
-					buffer.get(packet);
-					final UpstreamResponse response = new UpstreamResponse(
-							remote, packet, message);
-					proxyServer.schedule(new Callable<Void>() {
-						@Override
-						public Void call() throws InterruptedException {
-							final Short id = response.getMessage().getId();
-							final UpstreamRequest upstreamRequest = inflight
-									.get(id);
-							if (null == upstreamRequest)
-								return null; // no such request in flight
-							final ProxyRequest proxyRequest = upstreamRequest
-									.getProxyRequest();
-							if (!Arrays.equals(response.getMessage()
-									.getQuestions(), proxyRequest.getMessage()
-									.getQuestions()))
-								return null; // ids match, but questions don't
-							inflight.remove(id);
-							accepted.remove(proxyRequest);
-							inflightCount.set(inflight.size());
-							proxyServer.onUpstreamResponse(proxyRequest,
-									response);
-							return null;
-						}
-					});
+					onPacket(buffer, remote, 0);
 				}
 			} catch (InterruptedException e) {
 				// interrupted
@@ -136,14 +122,8 @@ public class UpstreamServer {
 				// Loop until interrupted
 				while (!Thread.interrupted()) {
 					final UpstreamRequest request = outgoing.take();
-					// Construct and send the message
-					final byte[] packet = request.getProxyRequest().getPacket();
-					if (packet.length < 12 || packet.length > MAX_PACKET_SIZE)
+					if (!preparePacket(buffer, request))
 						continue;
-					buffer.clear();
-					buffer.putShort(request.getId());
-					buffer.put(packet, 2, packet.length - 2);
-					buffer.flip();
 					try {
 						socket.send(buffer, addr);
 					} catch (ClosedChannelException e) {
@@ -160,18 +140,326 @@ public class UpstreamServer {
 		}
 	}
 
-	public UpstreamServer(final ProxyServer proxyServer, UpstreamConfig config) throws IOException {
+	// Reads pipelined responses from TCP connections
+	private class StreamReceiveWorker implements Runnable {
+		@Override
+		public void run() {
+			final DNSStreamDecoder decoder = new DNSStreamDecoder(
+					STREAM_BUFFER_SIZE);
+			final List<UpstreamResponse> responses = new ArrayList<>();
+			try {
+				while (!Thread.interrupted()) {
+					final SocketChannel channel = connections.take();
+					decoder.reset();
+					try {
+						while (channel.read(decoder.buffer()) >= 0) {
+							ByteBuffer message;
+							while ((message = decoder.next()) != null) {
+								final UpstreamResponse response = parseResponse(message);
+								if (response != null)
+									responses.add(response);
+							}
+							decoder.compact();
+							dispatch(responses);
+						}
+					} catch (DNSParseException e) {
+						parseErrors.incrementAndGet(); // out of sync
+					} catch (IOException e) {
+						// closed by the upstream, send thread or interrupt
+					} finally {
+						close(channel);
+					}
+					dispatch(responses);
+					failRequests(channel);
+				}
+			} catch (InterruptedException e) {
+				// interrupted
+			}
+		}
+
+		// Schedules all responses of a read at once
+		private void dispatch(List<UpstreamResponse> responses)
+				throws InterruptedException {
+			if (responses.isEmpty())
+				return;
+			final UpstreamResponse[] batch = responses
+					.toArray(new UpstreamResponse[responses.size()]);
+			responses.clear();
+			proxyServer.schedule(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					for (UpstreamResponse response : batch) {
+						onResponse(response, 0);
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+	// Pipelines requests over a TCP connection, reconnecting when it's closed
+	private class StreamSendWorker implements Runnable {
+		private SocketChannel channel;
+
+		// Requests in the buffer that is written next
+		private final List<UpstreamRequest> batch = new ArrayList<>();
+
+		@Override
+		public void run() {
+			final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+			final ByteBuffer out = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+			try {
+				while (!Thread.interrupted()) {
+					UpstreamRequest request = outgoing.take();
+					// Everything queued so far goes out in as few writes as
+					// possible
+					out.clear();
+					do {
+						if (!preparePacket(packet, request))
+							continue;
+						if (out.remaining() < 2 + packet.remaining())
+							write(out);
+						out.putShort((short) packet.remaining());
+						out.put(packet);
+						batch.add(request);
+					} while ((request = outgoing.poll()) != null);
+					write(out);
+				}
+			} catch (InterruptedException e) {
+				// interrupted
+			} finally {
+				close(channel);
+			}
+		}
+
+		private void write(ByteBuffer out) throws InterruptedException {
+			out.flip();
+			try {
+				final boolean connect = channel == null || !channel.isOpen();
+				if (connect)
+					channel = SocketChannel.open();
+				// Marked first, so they fail with the connection whatever
+				// happens to it from now on
+				for (UpstreamRequest request : batch) {
+					request.setConnection(channel);
+				}
+				if (connect) {
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					channel.socket().connect(addr,
+							(int) TimeUnit.NANOSECONDS.toMillis(getTimeout()));
+					connections.put(channel);
+				}
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+			} catch (ClosedByInterruptException e) {
+				throw new InterruptedException();
+			} catch (IOException e) {
+				// Requests written to the connection are lost, they fail
+				// now instead of waiting for their deadline
+				e.printStackTrace();
+				close(channel);
+				failRequests(channel);
+				channel = null;
+			}
+			batch.clear();
+			out.clear();
+		}
+	}
+
+	// Fails requests written to a TCP connection that was closed, TCP
+	// requests are never retransmitted
+	private void failRequests(final SocketChannel channel)
+			throws InterruptedException {
+		if (channel == null)
+			return;
+		proxyServer.schedule(new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				final long now = System.nanoTime();
+				for (UpstreamRequest upstreamRequest : new ArrayList<>(
+						inflight.values())) {
+					if (upstreamRequest.getConnection() != channel)
+						continue;
+					final ProxyRequest proxyRequest = upstreamRequest
+							.getProxyRequest();
+					timeoutRequest(proxyRequest, now);
+					proxyServer.onUpstreamFailed(proxyRequest);
+				}
+				return null;
+			}
+		});
+	}
+
+	private static void close(SocketChannel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// package-private
+	// handles a packet received from socket pool slot on receive or I/O thread
+	void onPacket(ByteBuffer buffer, SocketAddress remote, final int slot)
+			throws InterruptedException {
+		if (!addr.equals(remote)) {
+			addrErrors.incrementAndGet();
+			return; // ignore packets from unexpected sources
+		}
+		final UpstreamResponse response = parseResponse(buffer);
+		if (response == null)
+			return;
+		final Callable<Void> op = new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				onResponse(response, slot);
+				return null;
+			}
+		};
+		if (pool == null) {
+			proxyServer.schedule(op);
+		} else if (!proxyServer.trySchedule(op)) {
+			// The I/O loop must never wait for the processing thread, which
+			// may be waiting for it, the request is retransmitted or fails
+			droppedResponses.incrementAndGet();
+		}
+	}
+
+	// Parses a response in place, returns null if it's not a valid response
+	private UpstreamResponse parseResponse(ByteBuffer buffer) {
+		final DNSMessage message;
+		try {
+			message = DNSMessage.parse(buffer, false);
+		} catch (BufferUnderflowException e) {
+			parseErrors.incrementAndGet();
+			return null; // message is severely truncated
+		} catch (DNSParseException e) {
+			parseErrors.incrementAndGet();
+			return null; // cannot parse or whatever
+		}
+		if (!message.isResponse()) {
+			parseErrors.incrementAndGet();
+			return null; // ignore non-responses
+		}
+		buffer.rewind();
+		final byte[] packet = new byte[buffer.limit()];
+		buffer.get(packet);
+		final PacketCapture capture = proxyServer.getCapture();
+		if (capture != null) {
+			capture.record(PacketCapture.KIND_RESPONSE, addr, packet);
+		}
+		return new UpstreamResponse(addr, packet, message);
+	}
+
+	// MUST be called from processing thread
+	// matches a response to the request in flight with its id
+	private void onResponse(UpstreamResponse response, int slot)
+			throws InterruptedException {
+		final Integer id = key(slot, response.getMessage().getId());
+		final UpstreamRequest upstreamRequest = inflight.get(id);
+		if (null == upstreamRequest)
+			return; // no such request in flight
+		final ProxyRequest proxyRequest = upstreamRequest.getProxyRequest();
+		if (!Arrays.equals(response.getMessage().getQuestions(), proxyRequest
+				.getMessage().getQuestions()))
+			return; // ids match, but questions don't
+		if (limit != null) {
+			// Measured before removal, the request was in flight itself
+			limit.onSuccess(response.getTimestamp()
+					- upstreamRequest.getStarted(), inflight.size());
+		}
+		inflight.remove(id);
+		accepted.remove(proxyRequest);
+		inflightCount.set(inflight.size());
+		health.onSuccess(response.getTimestamp(), response.getTimestamp()
+				- proxyRequest.getTimestamp());
+		proxyServer.onUpstreamResponse(proxyRequest, response);
+		proxyServer.onUpstreamReleased();
+	}
+
+	// package-private
+	// constructs the message, returns false if it cannot be sent
+	static boolean preparePacket(ByteBuffer buffer,
+			UpstreamRequest request) {
+		final byte[] packet = request.getProxyRequest().getUpstreamPacket();
+		if (packet.length < 12 || packet.length > MAX_PACKET_SIZE)
+			return false;
+		buffer.clear();
+		buffer.putShort(request.getId());
+		buffer.put(packet, 2, packet.length - 2);
+		buffer.flip();
+		return true;
+	}
+
+	// Queues request for sending on own socket or socket pool
+	// returns false if the shared I/O loop is too far behind to queue it
+	private boolean send(UpstreamRequest upstreamRequest)
+			throws InterruptedException {
+		if (pool != null)
+			return pool.send(upstreamRequest);
+		outgoing.put(upstreamRequest);
+		return true;
+	}
+
+	// Key of the request in inflight map
+	private static Integer key(int slot, short id) {
+		return (slot << 16) | (id & 0xffff);
+	}
+
+	/**
+	 * @param address
+	 *            resolved address of the config host, or null to resolve it
+	 * @param limit
+	 *            adaptive limit of requests in flight, or null
+	 */
+	public UpstreamServer(final ProxyServer proxyServer, UpstreamConfig config,
+			InetAddress address, UpstreamHealth health, ConcurrencyLimit limit)
+			throws IOException {
 		this.config = config;
 		this.proxyServer = proxyServer;
-		addr = new InetSocketAddress(config.getHost(), config.getPort());
+		this.health = health;
+		this.limit = limit;
+		addr = address != null ? new InetSocketAddress(address,
+				config.getPort()) : new InetSocketAddress(config.getHost(),
+				config.getPort());
 		if (addr.isUnresolved()) {
 			throw new IOException("Cannot resolve '" + config.getHost() + "'");
 		}
-		socket = DatagramChannel.open(StandardProtocolFamily.INET);
-		socket.bind(null);
-		final String prefix = "Upstream " + addr;
-		receiveThread = new Thread(new ReceiveWorker(), prefix + " receive");
-		sendThread = new Thread(new SendWorker(), prefix + " send");
+		pool = config.isTcp() ? null : proxyServer.getSocketPool(addr
+				.getAddress());
+	}
+
+	// Opens own socket and starts threads once the upstream is started,
+	// returns false if it can't send requests
+	private synchronized boolean open() {
+		if (pool != null || socket != null || sendThread != null)
+			return true;
+		if (!started || stopped)
+			return false;
+		if (config.isTcp()) {
+			final String prefix = "Upstream tcp " + addr;
+			receiveThread = new Thread(new StreamReceiveWorker(), prefix
+					+ " receive");
+			sendThread = new Thread(new StreamSendWorker(), prefix + " send");
+		} else {
+			final String prefix = "Upstream " + addr;
+			try {
+				socket = Addresses.openChannel(addr.getAddress());
+				socket.bind(null);
+			} catch (IOException e) {
+				e.printStackTrace();
+				socket = null;
+				return false;
+			}
+			receiveThread = new Thread(new ReceiveWorker(), prefix + " receive");
+			sendThread = new Thread(new SendWorker(), prefix + " send");
+		}
+		receiveThread.start();
+		sendThread.start();
+		return true;
 	}
 
 	public InetSocketAddress getAddr() {
@@ -190,26 +478,88 @@ public class UpstreamServer {
 		return addrErrors.get();
 	}
 
-	public void start() {
-		receiveThread.start();
-		sendThread.start();
+	/**
+	 * Number of responses dropped because processing fell behind
+	 */
+	public int getDroppedResponses() {
+		return droppedResponses.get();
+	}
+
+	/**
+	 * Time in nanoseconds after which the upstream gives up on a request
+	 */
+	public long getTimeout() {
+		final UpstreamConfig current = config;
+		return TimeUnit.MILLISECONDS.toNanos(current.getTimeout() > 0 ? current
+				.getTimeout() : proxyServer.getDefaultTimeout());
+	}
+
+	/**
+	 * Initial retransmission interval in nanoseconds
+	 */
+	public long getRetransmit() {
+		final UpstreamConfig current = config;
+		return TimeUnit.MILLISECONDS.toNanos(current.getRetransmit() > 0 ? current
+				.getRetransmit() : proxyServer.getDefaultRetransmit());
+	}
+
+	public UpstreamHealth getHealth() {
+		return health;
+	}
+
+	/**
+	 * Adaptive limit of requests in flight, or null if unlimited
+	 */
+	public ConcurrencyLimit getLimit() {
+		return limit;
+	}
+
+	// MUST be called from processing thread
+	// returns true if the limit allows another request in flight
+	public boolean hasCapacity() {
+		return limit == null || inflight.size() < limit.getLimit();
 	}
 
-	public void stop() {
+	// MUST be called from processing thread
+	// counts garbage received since last check as failures
+	public void checkParseErrors(long now) {
+		final int current = parseErrors.get();
+		for (; checkedParseErrors != current; ++checkedParseErrors) {
+			health.onFailure(now);
+		}
+	}
+
+	public synchronized void start() {
+		if (pool != null) {
+			pool.register(this);
+			return;
+		}
+		started = true;
+	}
+
+	public synchronized void stop() {
+		if (pool != null) {
+			pool.unregister(this);
+			return;
+		}
+		stopped = true;
+		if (sendThread == null)
+			return; // never opened
 		receiveThread.interrupt();
 		sendThread.interrupt();
 	}
 
 	/**
-	 * Generates a new request id, or 0 if no free slots are available
+	 * Generates a new request id for the socket pool slot, or 0 if no free
+	 * ids are available
 	 * 
 	 * @return next free request id
 	 */
-	private short generateRequestId() {
+	private short generateRequestId(int slot) {
 		short id = nextId;
 		do {
 			short requestId = (short) (shuffleKey ^ id++);
-			if (requestId != 0 && inflight.get(requestId) == null) {
+			if (requestId != 0 && inflight.get(key(slot, requestId)) == null) {
 				nextId = id;
 				return requestId;
 			}
@@ -218,39 +568,135 @@ public class UpstreamServer {
 	}
 
 	// MUST be called from processing thread
-	public void startRequest(ProxyRequest proxyRequest)
+	// returns false if request could not be started
+	public boolean startRequest(ProxyRequest proxyRequest)
 			throws InterruptedException {
 		if (null == proxyRequest)
 			throw new NullPointerException();
 		if (null != accepted.get(proxyRequest))
-			return;
-		short id = generateRequestId();
+			return false;
+		if (!open())
+			return false;
+		// Start with a random slot, try others if it's full
+		final int slots = pool != null ? pool.size() : 1;
+		int slot = pool != null ? pool.randomSlot() : 0;
+		short id = generateRequestId(slot);
+		for (int i = 1; id == 0 && i < slots; ++i) {
+			slot = (slot + 1) % slots;
+			id = generateRequestId(slot);
+		}
 		if (id == 0)
-			return; // no free slots left
-		final UpstreamRequest upstreamRequest = new UpstreamRequest(id,
-				proxyRequest);
-		inflight.put(id, upstreamRequest);
+			return false; // no free ids left
+		final long now = System.nanoTime();
+		final long deadline = Math.min(now + getTimeout(),
+				proxyRequest.getDeadline());
+		final UpstreamRequest upstreamRequest = new UpstreamRequest(addr, slot,
+				id, proxyRequest, now, deadline, getRetransmit());
+		inflight.put(key(slot, id), upstreamRequest);
 		accepted.put(proxyRequest, upstreamRequest);
 		inflightCount.set(inflight.size());
-		outgoing.put(upstreamRequest);
+		if (!send(upstreamRequest)) {
+			// Release the id, the request goes to other upstreams
+			inflight.remove(key(slot, id));
+			accepted.remove(proxyRequest);
+			inflightCount.set(inflight.size());
+			return false;
+		}
+		scheduleTimer(upstreamRequest, now);
+		return true;
+	}
+
+	// Schedules next retransmission or our own deadline, whichever is first
+	// Request deadline is handled by proxy server itself
+	// TCP doesn't lose requests, a resend would only queue a duplicate, and
+	// requests lost with a closed connection are failed by failRequests
+	private void scheduleTimer(final UpstreamRequest upstreamRequest, long now) {
+		final long deadline = upstreamRequest.getDeadline();
+		final long interval = config.isTcp() ? 0 : upstreamRequest
+				.getRetransmit();
+		final long time;
+		if (interval > 0 && now + interval - deadline < 0) {
+			time = now + interval;
+		} else if (deadline != upstreamRequest.getProxyRequest().getDeadline()) {
+			time = deadline;
+		} else {
+			return;
+		}
+		proxyServer.scheduleAt(time, new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				final ProxyRequest proxyRequest = upstreamRequest
+						.getProxyRequest();
+				if (accepted.get(proxyRequest) != upstreamRequest)
+					return null; // already answered or cancelled
+				final long now = System.nanoTime();
+				if (now - upstreamRequest.getDeadline() >= 0) {
+					timeoutRequest(proxyRequest, now);
+					proxyServer.onUpstreamFailed(proxyRequest);
+					return null;
+				}
+				// Resend with the same id, backing off exponentially
+				upstreamRequest.setRetransmit(upstreamRequest.getRetransmit() * 2);
+				// A resend that can't be queued waits for the next one
+				send(upstreamRequest);
+				scheduleTimer(upstreamRequest, now);
+				return null;
+			}
+		});
 	}
 
 	// MUST be called from processing thread
-	public void cancelRequest(ProxyRequest proxyRequest) {
+	// returns true if request was in flight
+	public boolean cancelRequest(ProxyRequest proxyRequest) {
 		if (null == proxyRequest)
 			throw new NullPointerException();
 		final UpstreamRequest upstreamRequest = accepted.get(proxyRequest);
 		if (null == upstreamRequest)
-			return;
-		final Short id = upstreamRequest.getId();
-		inflight.remove(id);
+			return false;
+		inflight.remove(key(upstreamRequest.getSlot(), upstreamRequest.getId()));
 		accepted.remove(proxyRequest);
 		inflightCount.set(inflight.size());
+		proxyServer.onUpstreamReleased();
+		return true;
+	}
+
+	// MUST be called from processing thread
+	// returns true if the upstream still waits for a response to request
+	public boolean isInflight(ProxyRequest proxyRequest) {
+		return accepted.containsKey(proxyRequest);
+	}
+
+	// MUST be called from processing thread
+	public void timeoutRequest(ProxyRequest proxyRequest, long now) {
+		if (cancelRequest(proxyRequest)) {
+			health.onFailure(now);
+			if (limit != null)
+				limit.onDrop();
+		}
 	}
 
 	public UpstreamConfig getUpstreamConfig() {
 		return config;
 	}
+
+	// package-private
+	// MUST be called from processing thread
+	int getCurrentWeight() {
+		return currentWeight;
+	}
+
+	// package-private
+	// MUST be called from processing thread
+	void setCurrentWeight(int currentWeight) {
+		this.currentWeight = currentWeight;
+	}
+
+	// MUST be called from processing thread
+	// replaces config of an upstream with the same address and transport
+	// after reload, requests in flight keep their timeouts
+	void setUpstreamConfig(UpstreamConfig config) {
+		this.config = config;
+	}
 	
 	@Override
 	public String toString() {
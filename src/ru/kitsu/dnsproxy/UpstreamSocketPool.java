@@ -0,0 +1,212 @@
+package ru.kitsu.dnsproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.ProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upstream sockets shared by all upstreams on an I/O loop
+ *
+ * Every slot of the pool is a socket bound to a random source port, and
+ * every upstream has a separate id space in each slot, so the number of
+ * requests in flight and receive buffers grow with the pool size. Responses
+ * are dispatched to upstreams by source address. Sockets are replaced with
+ * new ones on new random ports one at a time by {@link #rotate()}.
+ *
+ */
+public final class UpstreamSocketPool {
+	// Maximum expected number of outgoing packets buildup per slot
+	private static final int MAX_PACKETS = 8192;
+	// Random ports are picked above privileged ports
+	private static final int MIN_PORT = 1024;
+	// Attempts to bind a random port before letting the system pick one
+	private static final int BIND_ATTEMPTS = 16;
+
+	private static final Random random = new SecureRandom();
+
+	private final UpstreamIoLoop ioLoop;
+	private final ProtocolFamily family;
+	private final Slot[] slots;
+	private final Map<SocketAddress, UpstreamServer> upstreams = new ConcurrentHashMap<>();
+	private final AtomicInteger unknownSources = new AtomicInteger();
+	// Sockets replaced by the last rotation, closed by the next one
+	private final List<DatagramChannel> retired = new ArrayList<>();
+	private int nextRotation;
+
+	private final class Slot implements UpstreamIoLoop.Handler {
+		private final int index;
+		private final BlockingQueue<UpstreamRequest> outgoing = new ArrayBlockingQueue<>(
+				MAX_PACKETS);
+		private final AtomicBoolean writeScheduled = new AtomicBoolean();
+		private volatile DatagramChannel channel;
+		// Packet that didn't fit into the socket buffer last time
+		private UpstreamRequest pending;
+
+		private Slot(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void onPacket(ByteBuffer buffer, SocketAddress remote)
+				throws InterruptedException {
+			final UpstreamServer upstream = upstreams.get(remote);
+			if (upstream == null) {
+				unknownSources.incrementAndGet();
+				return; // ignore packets from unexpected sources
+			}
+			upstream.onPacket(buffer, remote, index);
+		}
+
+		@Override
+		public boolean onWritable(DatagramChannel channel, ByteBuffer buffer)
+				throws IOException {
+			// Reset first, so requests queued while flushing aren't lost
+			writeScheduled.set(false);
+			UpstreamRequest request = pending;
+			pending = null;
+			if (request == null)
+				request = outgoing.poll();
+			while (request != null) {
+				if (UpstreamServer.preparePacket(buffer, request)
+						&& channel.send(buffer, request.getAddr()) == 0) {
+					pending = request;
+					return false;
+				}
+				request = outgoing.poll();
+			}
+			return true;
+		}
+
+		// Never waits for the loop, which may be waiting for the caller
+		private boolean send(UpstreamRequest request) {
+			if (!outgoing.offer(request))
+				return false;
+			if (writeScheduled.compareAndSet(false, true))
+				ioLoop.requestWrite(channel, this);
+			return true;
+		}
+	}
+
+	/**
+	 * @param family
+	 *            address family of sockets and upstreams
+	 */
+	public UpstreamSocketPool(UpstreamIoLoop ioLoop, ProtocolFamily family,
+			int size) throws IOException {
+		if (size <= 0)
+			throw new IllegalArgumentException("Bad socket pool size " + size);
+		this.ioLoop = ioLoop;
+		this.family = family;
+		slots = new Slot[size];
+		for (int i = 0; i < size; ++i) {
+			slots[i] = new Slot(i);
+			slots[i].channel = openChannel();
+		}
+	}
+
+	public int size() {
+		return slots.length;
+	}
+
+	/**
+	 * Number of packets received from addresses that are not upstreams
+	 */
+	public int getUnknownSources() {
+		return unknownSources.get();
+	}
+
+	public void start() {
+		for (Slot slot : slots) {
+			ioLoop.register(slot.channel, slot);
+		}
+	}
+
+	public synchronized void stop() {
+		for (Slot slot : slots) {
+			ioLoop.unregister(slot.channel);
+		}
+		closeRetired();
+	}
+
+	/**
+	 * Starts dispatching packets from upstream address to the upstream
+	 */
+	public void register(UpstreamServer upstream) {
+		upstreams.put(upstream.getAddr(), upstream);
+	}
+
+	/**
+	 * Stops dispatching to the upstream, unless its address was taken over
+	 */
+	public void unregister(UpstreamServer upstream) {
+		upstreams.remove(upstream.getAddr(), upstream);
+	}
+
+	/**
+	 * Queues request for sending from its slot
+	 *
+	 * @return false if the slot has too many packets queued already
+	 */
+	public boolean send(UpstreamRequest request) {
+		return slots[request.getSlot()].send(request);
+	}
+
+	/**
+	 * Returns a random slot index
+	 */
+	public int randomSlot() {
+		return random.nextInt(slots.length);
+	}
+
+	/**
+	 * Replaces the socket of the next slot with a socket on a new random
+	 * port, sockets replaced by the previous call are closed
+	 *
+	 * The replaced socket keeps receiving until then, so responses to
+	 * requests sent before rotation are not lost.
+	 */
+	public synchronized void rotate() throws IOException {
+		closeRetired();
+		final Slot slot = slots[nextRotation];
+		nextRotation = (nextRotation + 1) % slots.length;
+		final DatagramChannel channel = openChannel();
+		retired.add(slot.channel);
+		slot.channel = channel;
+		ioLoop.register(channel, slot);
+	}
+
+	private void closeRetired() {
+		for (DatagramChannel channel : retired) {
+			ioLoop.unregister(channel);
+		}
+		retired.clear();
+	}
+
+	private DatagramChannel openChannel() throws IOException {
+		final DatagramChannel channel = DatagramChannel.open(family);
+		for (int i = 0; i < BIND_ATTEMPTS; ++i) {
+			final int port = MIN_PORT + random.nextInt(65536 - MIN_PORT);
+			try {
+				channel.bind(new InetSocketAddress(port));
+				return channel;
+			} catch (IOException e) {
+				// port is taken, try another one
+			}
+		}
+		channel.bind(null);
+		return channel;
+	}
+}
@@ -0,0 +1,33 @@
+package ru.kitsu.dnsproxy.cache;
+
+/**
+ * Cached response packet with absolute wall clock times in milliseconds
+ * 
+ */
+public final class CacheEntry {
+	private final byte[] packet;
+	private final long storedAt;
+	private final long expiresAt;
+
+	public CacheEntry(byte[] packet, long storedAt, long expiresAt) {
+		this.packet = packet;
+		this.storedAt = storedAt;
+		this.expiresAt = expiresAt;
+	}
+
+	public byte[] getPacket() {
+		return packet;
+	}
+
+	public long getStoredAt() {
+		return storedAt;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	public boolean isExpired(long now) {
+		return now >= expiresAt;
+	}
+}
@@ -0,0 +1,133 @@
+package ru.kitsu.dnsproxy.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import ru.kitsu.dnsproxy.parser.DNSQuestion;
+
+/**
+ * Cache key in a compact serialized form: lowercase name, qtype, qclass and
+ * request flags that change the response
+ * 
+ */
+public final class CacheKey {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	// Bytes after the name: qtype, qclass and flags
+	public static final int QUESTION_SUFFIX_SIZE = 5;
+	// Longest name, question suffix and subnet suffix
+	public static final int MAX_SIZE = 255 + QUESTION_SUFFIX_SIZE + 19;
+	// Client asked for DNSSEC records
+	public static final int FLAG_DNSSEC_OK = 1;
+	// Client asked for responses that were not validated
+	public static final int FLAG_CHECKING_DISABLED = 2;
+	// Client sent an OPT record, so responses have one too
+	public static final int FLAG_EDNS = 4;
+
+	private final byte[] bytes;
+	private final long hash;
+
+	public CacheKey(byte[] bytes) {
+		this.bytes = bytes;
+		this.hash = hash64(bytes, 0, bytes.length);
+	}
+
+	public static CacheKey forQuestion(DNSQuestion question) {
+		return forQuestion(question, 0);
+	}
+
+	/**
+	 * @param flags
+	 *            combination of FLAG_* values of the request
+	 */
+	public static CacheKey forQuestion(DNSQuestion question, int flags) {
+		final byte[] name = question.getName().toLowerCase(Locale.ROOT)
+				.getBytes(StandardCharsets.ISO_8859_1);
+		final byte[] bytes = Arrays.copyOf(name, name.length
+				+ QUESTION_SUFFIX_SIZE);
+		bytes[name.length] = (byte) (question.getQType() >> 8);
+		bytes[name.length + 1] = (byte) question.getQType();
+		bytes[name.length + 2] = (byte) (question.getQClass() >> 8);
+		bytes[name.length + 3] = (byte) question.getQClass();
+		bytes[name.length + 4] = (byte) flags;
+		return new CacheKey(bytes);
+	}
+
+	/**
+	 * Returns key of this question for a client subnet
+	 * 
+	 * The suffix is family, prefix length, address truncated to prefix and
+	 * the suffix length, so that it can be removed again.
+	 */
+	public CacheKey withSubnet(int family, int prefix, byte[] address) {
+		final int length = (prefix + 7) / 8;
+		final byte[] result = Arrays.copyOf(bytes, bytes.length + length + 3);
+		int pos = bytes.length;
+		result[pos++] = (byte) family;
+		result[pos++] = (byte) prefix;
+		for (int i = 0; i < length; ++i) {
+			result[pos++] = address[i];
+		}
+		if (prefix % 8 != 0)
+			result[pos - 1] &= (byte) (0xff << (8 - prefix % 8));
+		result[pos] = (byte) (length + 3);
+		return new CacheKey(result);
+	}
+
+	/**
+	 * Returns key of the question, this key must have a subnet suffix
+	 */
+	public CacheKey withoutSubnet() {
+		return new CacheKey(Arrays.copyOf(bytes, bytes.length
+				- (bytes[bytes.length - 1] & 0xff)));
+	}
+
+	/**
+	 * Returns subnet family, this key must have a subnet suffix
+	 */
+	public int getSubnetFamily() {
+		return bytes[bytes.length - (bytes[bytes.length - 1] & 0xff)] & 0xff;
+	}
+
+	/**
+	 * Returns request flags, this key must not have a subnet suffix
+	 */
+	public int getFlags() {
+		return bytes[bytes.length - 1] & 0xff;
+	}
+
+	public static long hash64(byte[] data, int offset, int length) {
+		long h = FNV_OFFSET;
+		for (int i = offset; i < offset + length; ++i) {
+			h ^= data[i] & 0xff;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public long hash64() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj instanceof CacheKey) {
+			final CacheKey other = (CacheKey) obj;
+			return hash == other.hash && Arrays.equals(bytes, other.bytes);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
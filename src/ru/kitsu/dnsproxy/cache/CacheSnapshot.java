@@ -0,0 +1,225 @@
+package ru.kitsu.dnsproxy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Read-only cache snapshot mapped from a file
+ *
+ * The file starts with a header, followed by an open addressing table of
+ * (hash, offset) slots and then the entries themselves. Lookups probe the
+ * mapped table directly, so opening a snapshot costs a single mmap call and
+ * a scan of the table no matter how many entries it holds.
+ *
+ * Offsets and lengths are checked against the file size when it is opened
+ * and again on every read, a corrupt file is reported with an IOException
+ * instead of reading past the mapping.
+ *
+ */
+public final class CacheSnapshot {
+	private static final int MAGIC = 0x444e5343; // "DNSC"
+	// Keys have request flags since version 2, the EDNS flag since 3
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 16;
+	// expiresAt, storedAt, key length, packet length
+	private static final int ENTRY_HEADER_SIZE = 20;
+
+	private final MappedByteBuffer buffer;
+	private final int slotMask;
+	// Offset of the first entry
+	private final int dataOffset;
+	private final int entryCount;
+
+	public interface Visitor {
+		void visit(CacheKey key, CacheEntry entry);
+	}
+
+	private CacheSnapshot(MappedByteBuffer buffer, int slotCount,
+			int entryCount) {
+		this.buffer = buffer;
+		this.slotMask = slotCount - 1;
+		this.dataOffset = HEADER_SIZE + slotCount * SLOT_SIZE;
+		this.entryCount = entryCount;
+	}
+
+	public static CacheSnapshot open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+				throw new IOException("Bad cache snapshot size " + size);
+			final MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+				throw new IOException("Not a cache snapshot: " + file);
+			final int slotCount = buffer.getInt(8);
+			final int entryCount = buffer.getInt(12);
+			if (slotCount <= 0 || Integer.bitCount(slotCount) != 1
+					|| HEADER_SIZE + (long) slotCount * SLOT_SIZE > size)
+				throw new IOException("Corrupt cache snapshot: " + file);
+			final CacheSnapshot snapshot = new CacheSnapshot(buffer,
+					slotCount, entryCount);
+			for (int slot = 0; slot < slotCount; ++slot) {
+				final long offset = snapshot.slotOffset(slot);
+				if (offset != 0 && !snapshot.isValidEntry(offset))
+					throw new IOException("Corrupt cache snapshot: " + file);
+			}
+			return snapshot;
+		}
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Finds an entry by key, returns null if missing or expired
+	 * 
+	 * @throws IOException
+	 *             if the snapshot is corrupt
+	 */
+	public CacheEntry get(CacheKey key, long now) throws IOException {
+		final long hash = key.hash64();
+		int slot = (int) hash & slotMask;
+		for (int n = 0; n <= slotMask; ++n) {
+			final int offset = checkedOffset(slot);
+			if (offset == 0)
+				return null;
+			if (buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE) == hash
+					&& keyMatches(offset, key)) {
+				if (buffer.getLong(offset) <= now)
+					return null;
+				return readEntry(offset);
+			}
+			slot = (slot + 1) & slotMask;
+		}
+		return null;
+	}
+
+	/**
+	 * @throws IOException
+	 *             if the snapshot is corrupt, entries before the corrupt one
+	 *             are visited
+	 */
+	public void forEach(Visitor visitor) throws IOException {
+		for (int slot = 0; slot <= slotMask; ++slot) {
+			final int offset = checkedOffset(slot);
+			if (offset == 0)
+				continue;
+			final byte[] key = new byte[buffer.getShort(offset + 16) & 0xffff];
+			final ByteBuffer view = buffer.duplicate();
+			view.position(offset + ENTRY_HEADER_SIZE);
+			view.get(key);
+			visitor.visit(new CacheKey(key), readEntry(offset));
+		}
+	}
+
+	private long slotOffset(int slot) {
+		return buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+	}
+
+	// Returns the entry offset of slot, or 0 if the slot is empty
+	private int checkedOffset(int slot) throws IOException {
+		final long offset = slotOffset(slot);
+		if (offset != 0 && !isValidEntry(offset))
+			throw new IOException("Corrupt cache snapshot entry at " + offset);
+		return (int) offset;
+	}
+
+	// Returns true if the entry at offset lies within the file
+	private boolean isValidEntry(long offset) {
+		final int capacity = buffer.capacity();
+		if (offset < dataOffset || offset > capacity - ENTRY_HEADER_SIZE)
+			return false;
+		final int keyLength = buffer.getShort((int) offset + 16) & 0xffff;
+		final int packetLength = buffer.getShort((int) offset + 18) & 0xffff;
+		return keyLength <= CacheKey.MAX_SIZE
+				&& offset + ENTRY_HEADER_SIZE + keyLength + packetLength <= capacity;
+	}
+
+	private boolean keyMatches(int offset, CacheKey key) {
+		final byte[] bytes = key.getBytes();
+		if ((buffer.getShort(offset + 16) & 0xffff) != bytes.length)
+			return false;
+		final int start = offset + ENTRY_HEADER_SIZE;
+		for (int i = 0; i < bytes.length; ++i) {
+			if (buffer.get(start + i) != bytes[i])
+				return false;
+		}
+		return true;
+	}
+
+	private CacheEntry readEntry(int offset) {
+		final int keyLength = buffer.getShort(offset + 16) & 0xffff;
+		final byte[] packet = new byte[buffer.getShort(offset + 18) & 0xffff];
+		final ByteBuffer view = buffer.duplicate();
+		view.position(offset + ENTRY_HEADER_SIZE + keyLength);
+		view.get(packet);
+		return new CacheEntry(packet, buffer.getLong(offset + 8),
+				buffer.getLong(offset));
+	}
+
+	/**
+	 * Writes entries to a temporary file and atomically replaces the snapshot
+	 */
+	public static void write(Path file, List<CacheKey> keys,
+			List<CacheEntry> entries) throws IOException {
+		final int count = keys.size();
+		int slotCount = 16;
+		while (slotCount < count * 2)
+			slotCount <<= 1;
+		final long dataOffset = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+		long size = dataOffset;
+		for (int i = 0; i < count; ++i) {
+			size += ENTRY_HEADER_SIZE + keys.get(i).getBytes().length
+					+ entries.get(i).getPacket().length;
+		}
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Cache snapshot too large: " + size);
+		final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp,
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final MappedByteBuffer out = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			out.putInt(0, MAGIC);
+			out.putInt(4, VERSION);
+			out.putInt(8, slotCount);
+			out.putInt(12, count);
+			out.putLong(16, System.currentTimeMillis());
+			final int mask = slotCount - 1;
+			int offset = (int) dataOffset;
+			for (int i = 0; i < count; ++i) {
+				final CacheKey key = keys.get(i);
+				final CacheEntry entry = entries.get(i);
+				int slot = (int) key.hash64() & mask;
+				while (out.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8) != 0)
+					slot = (slot + 1) & mask;
+				out.putLong(HEADER_SIZE + slot * SLOT_SIZE, key.hash64());
+				out.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, offset);
+				final byte[] keyBytes = key.getBytes();
+				final byte[] packet = entry.getPacket();
+				out.putLong(offset, entry.getExpiresAt());
+				out.putLong(offset + 8, entry.getStoredAt());
+				out.putShort(offset + 16, (short) keyBytes.length);
+				out.putShort(offset + 18, (short) packet.length);
+				final ByteBuffer view = out.duplicate();
+				view.position(offset + ENTRY_HEADER_SIZE);
+				view.put(keyBytes);
+				view.put(packet);
+				offset += ENTRY_HEADER_SIZE + keyBytes.length + packet.length;
+			}
+			out.force();
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,317 @@
+package ru.kitsu.dnsproxy.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache entries stored outside of the heap
+ *
+ * Entries are appended to an arena of direct buffer segments used as a
+ * ring: when the arena is full, the oldest segment is reused and everything
+ * in it is dropped at once, so memory use is fixed up front and eviction
+ * costs nothing. Entries are found with an open addressing table of
+ * (hash, position) slots, also in a direct buffer. Positions grow forever,
+ * and a slot pointing before the oldest live segment is stale.
+ *
+ * The heap only holds a few objects no matter how many entries there are,
+ * so there's nothing for garbage collection to scan.
+ *
+ */
+public final class OffHeapStore {
+	private static final int SLOT_SIZE = 16;
+	// Slot position of a removed entry
+	private static final long TOMBSTONE = -1;
+	// key length, data length, storedAt, expiresAt
+	private static final int ENTRY_HEADER_SIZE = 20;
+	private static final int MIN_SEGMENT_SIZE = 1 << 20;
+	private static final int MAX_SEGMENT_SIZE = 64 << 20;
+	// Entries copied per lock acquisition while iterating
+	private static final int BATCH_SIZE = 1024;
+
+	private final ByteBuffer index;
+	private final int slotMask;
+	private final ByteBuffer[] segments;
+	private final int segmentSize;
+	private final long arenaSize;
+	// Absolute arena positions of the next write and oldest live data
+	private long head;
+	private long tail;
+	private int occupied;
+	private int count;
+	// Read without the lock for memory accounting
+	private volatile long allocated;
+	private final byte[] keyBuffer = new byte[CacheKey.MAX_SIZE];
+
+	/**
+	 * @param maxEntries
+	 *            expected maximum number of entries, sizes the index
+	 * @param arenaBytes
+	 *            memory for entries
+	 */
+	public OffHeapStore(int maxEntries, long arenaBytes) {
+		int slots = Integer.highestOneBit(Math.max(maxEntries, 16) * 3 / 2);
+		if (slots < maxEntries * 3L / 2)
+			slots <<= 1;
+		index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+		slotMask = slots - 1;
+		segmentSize = (int) Math.max(MIN_SEGMENT_SIZE,
+				Math.min(MAX_SEGMENT_SIZE, arenaBytes / 16));
+		final int segmentCount = (int) Math.max(2,
+				(arenaBytes + segmentSize - 1) / segmentSize);
+		segments = new ByteBuffer[segmentCount];
+		arenaSize = (long) segmentCount * segmentSize;
+		allocated = index.capacity();
+	}
+
+	/**
+	 * Approximate number of entries, including ones dropped with their
+	 * segment since the index was last rebuilt
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Memory allocated for the index and arena segments so far
+	 */
+	public long getAllocatedBytes() {
+		return allocated;
+	}
+
+	/**
+	 * Finds an entry by key, returns null if missing or expired
+	 */
+	public synchronized CacheEntry get(CacheKey key, long now) {
+		final int slot = find(key);
+		if (slot < 0)
+			return null;
+		final long pos = index.getLong(slot * SLOT_SIZE + 8);
+		final ByteBuffer segment = segmentAt(pos);
+		final int offset = offsetOf(pos);
+		final long expiresAt = segment.getLong(offset + 12);
+		if (now >= expiresAt) {
+			index.putLong(slot * SLOT_SIZE + 8, TOMBSTONE);
+			--count;
+			return null;
+		}
+		return readEntry(segment, offset);
+	}
+
+	/**
+	 * Stores an entry, replacing any previous entry for the key
+	 */
+	public synchronized void put(CacheKey key, CacheEntry entry) {
+		final byte[] keyBytes = key.getBytes();
+		final byte[] data = entry.getPacket();
+		final int size = ENTRY_HEADER_SIZE + keyBytes.length + data.length;
+		if (keyBytes.length == 0 || keyBytes.length > CacheKey.MAX_SIZE
+				|| data.length > 0xffff || size + 2 > segmentSize)
+			return;
+		final long pos = allocate(size);
+		final ByteBuffer segment = segmentAt(pos);
+		final int offset = offsetOf(pos);
+		segment.putShort(offset, (short) keyBytes.length);
+		segment.putShort(offset + 2, (short) data.length);
+		segment.putLong(offset + 4, entry.getStoredAt());
+		segment.putLong(offset + 12, entry.getExpiresAt());
+		final ByteBuffer view = segment.duplicate();
+		view.position(offset + ENTRY_HEADER_SIZE);
+		view.put(keyBytes);
+		view.put(data);
+		// Marks the end of the segment until the next entry is written
+		view.putShort((short) 0);
+		insert(slotHash(key.hash64()), keyBytes, pos);
+		if (occupied > (slotMask + 1) / 4 * 3)
+			rebuild();
+	}
+
+	/**
+	 * Visits all live entries, the lock is held for a batch at a time, so
+	 * other threads are not blocked for long
+	 */
+	public void forEach(CacheSnapshot.Visitor visitor) {
+		final List<CacheKey> keys = new ArrayList<>(BATCH_SIZE);
+		final List<CacheEntry> entries = new ArrayList<>(BATCH_SIZE);
+		long pos = 0;
+		while (true) {
+			synchronized (this) {
+				if (pos < tail)
+					pos = tail;
+				while (pos < head && keys.size() < BATCH_SIZE) {
+					final ByteBuffer segment = segmentAt(pos);
+					final int offset = offsetOf(pos);
+					final int keyLength = segment.getShort(offset) & 0xffff;
+					if (keyLength == 0) {
+						pos = nextSegment(pos);
+						continue;
+					}
+					final byte[] keyBytes = new byte[keyLength];
+					final ByteBuffer view = segment.duplicate();
+					view.position(offset + ENTRY_HEADER_SIZE);
+					view.get(keyBytes);
+					final CacheKey key = new CacheKey(keyBytes);
+					// Only the newest entry for a key is live
+					final int slot = find(key);
+					if (slot >= 0
+							&& index.getLong(slot * SLOT_SIZE + 8) == pos) {
+						keys.add(key);
+						entries.add(readEntry(segment, offset));
+					}
+					pos += entrySize(segment, offset);
+				}
+			}
+			if (keys.isEmpty())
+				return;
+			for (int i = 0; i < keys.size(); ++i) {
+				visitor.visit(keys.get(i), entries.get(i));
+			}
+			keys.clear();
+			entries.clear();
+		}
+	}
+
+	// Returns slot of a live entry for key, or -1
+	private int find(CacheKey key) {
+		final long hash = slotHash(key.hash64());
+		final byte[] keyBytes = key.getBytes();
+		int slot = (int) hash & slotMask;
+		for (int n = 0; n <= slotMask; ++n) {
+			final long slotHash = index.getLong(slot * SLOT_SIZE);
+			if (slotHash == 0)
+				return -1;
+			if (slotHash == hash) {
+				final long pos = index.getLong(slot * SLOT_SIZE + 8);
+				if (pos >= tail && keyMatches(pos, keyBytes))
+					return slot;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+		return -1;
+	}
+
+	// Points the slot of key to pos, reusing removed and stale slots
+	private void insert(long hash, byte[] keyBytes, long pos) {
+		int slot = (int) hash & slotMask;
+		int reusable = -1;
+		for (int n = 0; n <= slotMask; ++n) {
+			final long slotHash = index.getLong(slot * SLOT_SIZE);
+			if (slotHash == 0)
+				break;
+			final long slotPos = index.getLong(slot * SLOT_SIZE + 8);
+			final boolean dead = slotPos < tail;
+			if (slotHash == hash && !dead && keyMatches(slotPos, keyBytes)) {
+				// Replaces previous entry for the same key
+				index.putLong(slot * SLOT_SIZE + 8, pos);
+				return;
+			}
+			if (dead && reusable == -1)
+				reusable = slot;
+			slot = (slot + 1) & slotMask;
+		}
+		if (reusable == -1) {
+			reusable = slot;
+			++occupied;
+		}
+		index.putLong(reusable * SLOT_SIZE, hash);
+		index.putLong(reusable * SLOT_SIZE + 8, pos);
+		++count;
+	}
+
+	// Drops removed and stale slots from the index
+	private void rebuild() {
+		while (true) {
+			for (int i = 0; i <= slotMask; ++i) {
+				index.putLong(i * SLOT_SIZE, 0);
+				index.putLong(i * SLOT_SIZE + 8, 0);
+			}
+			occupied = 0;
+			count = 0;
+			long pos = tail;
+			while (pos < head) {
+				final ByteBuffer segment = segmentAt(pos);
+				final int offset = offsetOf(pos);
+				final int keyLength = segment.getShort(offset) & 0xffff;
+				if (keyLength == 0) {
+					pos = nextSegment(pos);
+					continue;
+				}
+				final ByteBuffer view = segment.duplicate();
+				view.position(offset + ENTRY_HEADER_SIZE);
+				view.get(keyBuffer, 0, keyLength);
+				insert(slotHash(CacheKey.hash64(keyBuffer, 0, keyLength)),
+						Arrays.copyOf(keyBuffer, keyLength), pos);
+				pos += entrySize(segment, offset);
+			}
+			if (count <= (slotMask + 1) / 2)
+				return;
+			// Entries are too small for the index, drop the older half
+			tail = Math.min(head, nextSegment(tail + (head - tail) / 2));
+		}
+	}
+
+	// Reserves size bytes and a terminator in the arena, dropping the
+	// oldest segments
+	private long allocate(int size) {
+		if (offsetOf(head) + size + 2 > segmentSize) {
+			segmentAt(head).putShort(offsetOf(head), (short) 0);
+			head = nextSegment(head);
+		}
+		while (head + size + 2 - tail > arenaSize) {
+			tail = nextSegment(tail);
+		}
+		final long pos = head;
+		head += size;
+		return pos;
+	}
+
+	private CacheEntry readEntry(ByteBuffer segment, int offset) {
+		final int keyLength = segment.getShort(offset) & 0xffff;
+		final byte[] data = new byte[segment.getShort(offset + 2) & 0xffff];
+		final ByteBuffer view = segment.duplicate();
+		view.position(offset + ENTRY_HEADER_SIZE + keyLength);
+		view.get(data);
+		return new CacheEntry(data, segment.getLong(offset + 4),
+				segment.getLong(offset + 12));
+	}
+
+	private static int entrySize(ByteBuffer segment, int offset) {
+		return ENTRY_HEADER_SIZE + (segment.getShort(offset) & 0xffff)
+				+ (segment.getShort(offset + 2) & 0xffff);
+	}
+
+	private long nextSegment(long pos) {
+		return (pos / segmentSize + 1) * segmentSize;
+	}
+
+	private int offsetOf(long pos) {
+		return (int) (pos % segmentSize);
+	}
+
+	private ByteBuffer segmentAt(long pos) {
+		final int i = (int) ((pos / segmentSize) % segments.length);
+		if (segments[i] == null) {
+			segments[i] = ByteBuffer.allocateDirect(segmentSize);
+			allocated += segmentSize;
+		}
+		return segments[i];
+	}
+
+	private boolean keyMatches(long pos, byte[] keyBytes) {
+		final ByteBuffer segment = segmentAt(pos);
+		final int offset = offsetOf(pos);
+		if ((segment.getShort(offset) & 0xffff) != keyBytes.length)
+			return false;
+		for (int i = 0; i < keyBytes.length; ++i) {
+			if (segment.get(offset + ENTRY_HEADER_SIZE + i) != keyBytes[i])
+				return false;
+		}
+		return true;
+	}
+
+	// Zero hash marks empty slots
+	private static long slotHash(long hash) {
+		return hash != 0 ? hash : 1;
+	}
+}
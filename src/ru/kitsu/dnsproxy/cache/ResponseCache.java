@@ -0,0 +1,453 @@
+package ru.kitsu.dnsproxy.cache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import ru.kitsu.dnsproxy.parser.DNSMessage;
+import ru.kitsu.dnsproxy.parser.DNSParseException;
+import ru.kitsu.dnsproxy.parser.DNSResourceRecord;
+import ru.kitsu.dnsproxy.parser.DNSWire;
+
+/**
+ * Cache of upstream responses in wire format
+ *
+ * Lookups and inserts happen on the processing thread, saving may happen on
+ * any other thread. Entries missing from memory are looked up in the mapped
+ * snapshot, if there is one, and promoted on the first hit.
+ *
+ * Responses are kept off heap without the id and the question section: the
+ * question is taken from the request, or rebuilt from the key, when the
+ * response is served. Names in records are usually compressed against the
+ * question, so every name is effectively stored once, in the key.
+ *
+ * With client subnets enabled, responses are stored per scope returned by
+ * the upstream, and a small entry per question lists the scopes in use,
+ * longest first. Lookups try the client address truncated to each of them,
+ * so a question costs one probe per distinct scope instead of an entry per
+ * client network.
+ *
+ * Requests with and without EDNS are cached apart, so a client never gets
+ * an OPT record it didn't ask for, or misses one it did.
+ *
+ * Requests with the DO or CD bit are cached apart from others, so clients
+ * that validate get the RRSIG and NSEC records of the original response,
+ * and other clients never get them or data the upstream didn't validate.
+ * Signed responses expire no later than their signatures. The AD bit of a
+ * cached response is only kept for clients that set DO or AD, as a plain
+ * client wouldn't have got it from the upstream either.
+ *
+ */
+public final class ResponseCache {
+	// Header bytes stored after the id
+	private static final int STORED_HEADER_SIZE = DNSWire.HEADER_SIZE - 2;
+	// Expected average size of a stored response with its key
+	private static final int AVERAGE_ENTRY_SIZE = 256;
+	// Subnet family of responses that don't depend on client subnet
+	private static final int FAMILY_ANY = 0;
+	private static final int FAMILY_IPV4 = 1;
+	private static final int FAMILY_IPV6 = 2;
+	// Subnet family of the entry that lists scopes of a question
+	private static final int FAMILY_SCOPES = 0xff;
+
+	private final OffHeapStore store;
+	private final int maxTtl;
+	private volatile CacheSnapshot snapshot;
+	private boolean clientSubnet;
+	private int prefix4;
+	private int prefix6;
+
+	/**
+	 * @param memoryBytes
+	 *            memory for stored responses, 0 to derive from maxEntries
+	 */
+	public ResponseCache(int maxEntries, int maxTtl, long memoryBytes) {
+		this.store = new OffHeapStore(maxEntries, memoryBytes > 0 ? memoryBytes
+				: (long) maxEntries * AVERAGE_ENTRY_SIZE);
+		this.maxTtl = maxTtl;
+	}
+
+	/**
+	 * Partitions responses by the client subnet scope, scopes are limited to
+	 * the source prefix lengths sent upstream
+	 * 
+	 * MUST be called before the cache is used
+	 */
+	public void enableClientSubnet(int prefix4, int prefix6) {
+		this.clientSubnet = true;
+		this.prefix4 = prefix4;
+		this.prefix6 = prefix6;
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	/**
+	 * Off heap memory allocated so far
+	 */
+	public long getAllocatedBytes() {
+		return store.getAllocatedBytes();
+	}
+
+	public CacheSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Maps a previously saved snapshot, entries are read lazily
+	 */
+	public synchronized void load(Path file) throws IOException {
+		snapshot = CacheSnapshot.open(file);
+	}
+
+	/**
+	 * Saves live and snapshot entries that are not expired yet
+	 *
+	 * @return number of saved entries
+	 */
+	public int save(Path file) throws IOException {
+		final long now = System.currentTimeMillis();
+		final List<CacheKey> keys = new ArrayList<>(store.size());
+		final List<CacheEntry> values = new ArrayList<>(store.size());
+		store.forEach(new CacheSnapshot.Visitor() {
+			@Override
+			public void visit(CacheKey key, CacheEntry entry) {
+				if (entry.isExpired(now))
+					return;
+				keys.add(key);
+				if (clientSubnet && key.getSubnetFamily() == FAMILY_SCOPES) {
+					values.add(entry);
+					return;
+				}
+				final CacheKey question = clientSubnet ? key.withoutSubnet()
+						: key;
+				values.add(new CacheEntry(expand(question, entry.getPacket(),
+						null), entry.getStoredAt(), entry.getExpiresAt()));
+			}
+		});
+		final CacheSnapshot current = snapshot;
+		if (current != null) {
+			try {
+				current.forEach(new CacheSnapshot.Visitor() {
+					@Override
+					public void visit(CacheKey key, CacheEntry entry) {
+						if (!entry.isExpired(now)
+								&& store.get(key, now) == null) {
+							keys.add(key);
+							values.add(entry);
+						}
+					}
+				});
+			} catch (IOException e) {
+				// Entries visited so far are fine, the rest is lost anyway
+				discardSnapshot(current);
+			}
+		}
+		CacheSnapshot.write(file, keys, values);
+		return keys.size();
+	}
+
+	/**
+	 * Returns the cached response with TTLs adjusted, or null
+	 *
+	 * @param requestPacket
+	 *            request in wire format, its question is copied into the
+	 *            response
+	 * @param client
+	 *            client address, null matches responses for any subnet only
+	 */
+	public byte[] get(DNSMessage request, byte[] requestPacket,
+			InetAddress client) {
+		final CacheKey question = keyFor(request, requestPacket);
+		if (question == null)
+			return null;
+		final long now = System.currentTimeMillis();
+		final CacheEntry entry = clientSubnet ? findScoped(question, client,
+				now) : find(question, question, now);
+		if (entry == null)
+			return null;
+		final byte[] packet = expand(question, entry.getPacket(),
+				requestPacket);
+		try {
+			DNSWire.decrementTtls(packet,
+					(int) ((now - entry.getStoredAt()) / 1000));
+		} catch (DNSParseException e) {
+			return null;
+		}
+		if (!request.isAuthenticData()
+				&& (question.getFlags() & CacheKey.FLAG_DNSSEC_OK) == 0)
+			DNSWire.setAuthenticData(packet, false);
+		return packet;
+	}
+
+	/**
+	 * Stores a successful or negative response for the request
+	 * 
+	 * @param requestPacket
+	 *            request in wire format, or the response itself when the
+	 *            request is not known, as OPT and DO are copied into
+	 *            responses
+	 * @param client
+	 *            client address the response was resolved for, may be null
+	 * @param scope
+	 *            client subnet scope of the response, 0 or -1 if it doesn't
+	 *            depend on client subnet
+	 */
+	public void put(DNSMessage request, byte[] requestPacket,
+			DNSMessage response, byte[] packet, InetAddress client, int scope) {
+		if (response.isTruncated())
+			return;
+		final int rcode = response.getRcode();
+		if (rcode != DNSWire.RCODE_NOERROR && rcode != DNSWire.RCODE_NXDOMAIN)
+			return;
+		final CacheKey question = keyFor(request, requestPacket);
+		if (question == null)
+			return;
+		final long now = System.currentTimeMillis();
+		int ttl;
+		try {
+			ttl = Math.min(DNSWire.minimumTtl(packet), maxTtl);
+			if (ttl > 0
+					&& (question.getFlags() & CacheKey.FLAG_DNSSEC_OK) != 0)
+				ttl = Math.min(ttl, signedTtl(response, packet, now));
+		} catch (DNSParseException e) {
+			return;
+		}
+		if (ttl <= 0)
+			return;
+		final byte[] data = strip(question, packet);
+		if (data == null)
+			return;
+		final CacheEntry entry = new CacheEntry(data, now, now + ttl * 1000L);
+		if (!clientSubnet) {
+			// Answer for the subnet a client sent, not for everyone
+			if (scope <= 0)
+				store.put(question, entry);
+			return;
+		}
+		int family = FAMILY_ANY;
+		int prefix = 0;
+		byte[] address = null;
+		if (client != null && scope > 0) {
+			address = client.getAddress();
+			family = address.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6;
+			prefix = Math.min(scope, family == FAMILY_IPV4 ? prefix4 : prefix6);
+			if (prefix == 0)
+				family = FAMILY_ANY;
+		}
+		store.put(question.withSubnet(family, prefix, address), entry);
+		addScope(question, family, prefix, entry.getExpiresAt(), now);
+	}
+
+	// Returns how long signatures of a response stay valid, or 0 if it
+	// shouldn't be cached for validating clients
+	private static int signedTtl(DNSMessage response, byte[] packet, long now)
+			throws DNSParseException {
+		final DNSMessage message = DNSMessage.parse(ByteBuffer.wrap(packet));
+		final int seconds = (int) (now / 1000);
+		int ttl = Integer.MAX_VALUE;
+		final Set<String> signed = new HashSet<>();
+		for (DNSResourceRecord[] section : new DNSResourceRecord[][] {
+				message.getAnswers(), message.getNameServers() }) {
+			for (DNSResourceRecord record : section) {
+				if (record == null)
+					return 0; // truncated
+				if (!record.isSignature())
+					continue;
+				// Serial number arithmetic, expiration wraps in 2106
+				ttl = Math.min(ttl, record.getSignatureExpiration() - seconds);
+				signed.add(record.getName().toLowerCase(Locale.ROOT) + "/"
+						+ record.getTypeCovered());
+			}
+		}
+		if (response.isAuthenticData()) {
+			// Validators couldn't verify an answer that lost signatures
+			// on the way, don't let it stay around
+			for (DNSResourceRecord record : message.getAnswers()) {
+				if (!record.isSignature()
+						&& !signed.contains(record.getName().toLowerCase(
+								Locale.ROOT)
+								+ "/" + (record.getRType() & 0xffff)))
+					return 0;
+			}
+		}
+		return ttl;
+	}
+
+	// Finds a stripped entry in memory or in the snapshot
+	private CacheEntry find(CacheKey key, CacheKey question, long now) {
+		CacheEntry entry = store.get(key, now);
+		if (entry != null)
+			return entry;
+		final CacheSnapshot current = snapshot;
+		if (current == null)
+			return null;
+		try {
+			entry = current.get(key, now);
+		} catch (IOException e) {
+			discardSnapshot(current);
+			return null;
+		}
+		if (entry == null)
+			return null;
+		final byte[] data = strip(question, entry.getPacket());
+		if (data == null)
+			return null;
+		entry = new CacheEntry(data, entry.getStoredAt(), entry.getExpiresAt());
+		store.put(key, entry);
+		return entry;
+	}
+
+	// Stops using a snapshot that turned out to be corrupt, unless it was
+	// replaced already
+	private synchronized void discardSnapshot(CacheSnapshot current) {
+		if (snapshot == current)
+			snapshot = null;
+	}
+
+	// Finds the response for the longest scope that covers client
+	private CacheEntry findScoped(CacheKey question, InetAddress client,
+			long now) {
+		final CacheEntry scopes = findScopes(question, now);
+		if (scopes == null)
+			return null;
+		final byte[] address = client != null ? client.getAddress() : null;
+		final int family = address == null ? FAMILY_ANY
+				: address.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6;
+		final byte[] list = scopes.getPacket();
+		for (int i = 0; i + 1 < list.length; i += 2) {
+			if (list[i] != FAMILY_ANY && list[i] != family)
+				continue;
+			final CacheEntry entry = find(question.withSubnet(list[i],
+					list[i + 1] & 0xff, address), question, now);
+			if (entry != null)
+				return entry;
+		}
+		return null;
+	}
+
+	// Finds the list of (family, prefix) pairs in use for question
+	private CacheEntry findScopes(CacheKey question, long now) {
+		final CacheKey key = question.withSubnet(FAMILY_SCOPES, 0, null);
+		CacheEntry scopes = store.get(key, now);
+		if (scopes == null) {
+			final CacheSnapshot current = snapshot;
+			if (current == null)
+				return null;
+			try {
+				scopes = current.get(key, now);
+			} catch (IOException e) {
+				discardSnapshot(current);
+				return null;
+			}
+			if (scopes != null)
+				store.put(key, scopes);
+		}
+		return scopes;
+	}
+
+	// Adds a scope to the list of question, keeping it sorted by prefix
+	private void addScope(CacheKey question, int family, int prefix,
+			long expiresAt, long now) {
+		final CacheEntry scopes = findScopes(question, now);
+		final byte[] list = scopes != null ? scopes.getPacket() : new byte[0];
+		int i = 0;
+		while (i + 1 < list.length && (list[i + 1] & 0xff) > prefix) {
+			i += 2;
+		}
+		// Families with the same prefix are in any order
+		boolean found = false;
+		for (int j = i; j + 1 < list.length
+				&& (list[j + 1] & 0xff) == prefix; j += 2) {
+			found |= list[j] == family;
+		}
+		if (found && scopes.getExpiresAt() >= expiresAt)
+			return;
+		final byte[] result;
+		if (found) {
+			result = list;
+		} else {
+			result = new byte[list.length + 2];
+			System.arraycopy(list, 0, result, 0, i);
+			result[i] = (byte) family;
+			result[i + 1] = (byte) prefix;
+			System.arraycopy(list, i, result, i + 2, list.length - i);
+		}
+		store.put(question.withSubnet(FAMILY_SCOPES, 0, null), new CacheEntry(
+				result, now, scopes != null ? Math.max(expiresAt,
+						scopes.getExpiresAt()) : expiresAt));
+	}
+
+	// Removes id and question from a response, returns null if its question
+	// is not in the form that would be rebuilt from the key
+	private static byte[] strip(CacheKey question, byte[] packet) {
+		final int end = DNSWire.questionEnd(packet, packet.length);
+		if (end != DNSWire.HEADER_SIZE + questionLength(question))
+			return null;
+		final byte[] data = new byte[STORED_HEADER_SIZE + packet.length - end];
+		System.arraycopy(packet, 2, data, 0, STORED_HEADER_SIZE);
+		System.arraycopy(packet, end, data, STORED_HEADER_SIZE, packet.length
+				- end);
+		return data;
+	}
+
+	// Restores a stripped response with id 0, the question is copied from
+	// requestPacket if it has the same length, or rebuilt from the key
+	private static byte[] expand(CacheKey question, byte[] data,
+			byte[] requestPacket) {
+		final int questionLength = questionLength(question);
+		final int end = DNSWire.HEADER_SIZE + questionLength;
+		final byte[] packet = new byte[end + data.length - STORED_HEADER_SIZE];
+		System.arraycopy(data, 0, packet, 2, STORED_HEADER_SIZE);
+		if (requestPacket != null
+				&& DNSWire.questionEnd(requestPacket, requestPacket.length) == end) {
+			System.arraycopy(requestPacket, DNSWire.HEADER_SIZE, packet,
+					DNSWire.HEADER_SIZE, questionLength);
+		} else {
+			final byte[] bytes = question.getBytes();
+			final ByteBuffer buffer = ByteBuffer.wrap(packet,
+					DNSWire.HEADER_SIZE, questionLength);
+			final int nameLength = bytes.length - CacheKey.QUESTION_SUFFIX_SIZE;
+			DNSWire.putName(buffer, new String(bytes, 0, nameLength,
+					StandardCharsets.ISO_8859_1));
+			buffer.put(bytes, nameLength, 4);
+		}
+		System.arraycopy(data, STORED_HEADER_SIZE, packet, end, data.length
+				- STORED_HEADER_SIZE);
+		return packet;
+	}
+
+	// Length of the uncompressed question for key
+	private static int questionLength(CacheKey question) {
+		final int nameLength = question.getBytes().length
+				- CacheKey.QUESTION_SUFFIX_SIZE;
+		return (nameLength == 0 ? 1 : nameLength + 2) + 4;
+	}
+
+	private static CacheKey keyFor(DNSMessage request, byte[] requestPacket) {
+		if (request.getOpcode() != 0 || request.getQuestions().length != 1)
+			return null;
+		int flags = 0;
+		try {
+			final int opt = DNSWire.findOpt(requestPacket);
+			if (opt != -1)
+				flags |= CacheKey.FLAG_EDNS;
+			// Extended rcode and version come before the flags in TTL field
+			if (opt != -1 && (requestPacket[opt + 7] & 0x80) != 0)
+				flags |= CacheKey.FLAG_DNSSEC_OK;
+		} catch (DNSParseException e) {
+			return null;
+		}
+		if (request.isCheckingDisabled())
+			flags |= CacheKey.FLAG_CHECKING_DISABLED;
+		return CacheKey.forQuestion(request.getQuestions()[0], flags);
+	}
+}
@@ -0,0 +1,465 @@
+package ru.kitsu.dnsproxy.local;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import ru.kitsu.dnsproxy.cache.CacheKey;
+import ru.kitsu.dnsproxy.parser.DNSMessage;
+import ru.kitsu.dnsproxy.parser.DNSQuestion;
+import ru.kitsu.dnsproxy.parser.DNSWire;
+import ru.kitsu.dnsproxy.parser.ResponseTemplate;
+
+/**
+ * Locally defined records from hosts and zone files
+ *
+ * After loading, {@link #build()} turns records into a table of response
+ * templates keyed like the response cache, so a lookup is a single hash
+ * lookup and the answer is written straight into the send buffer. Names
+ * that exist with other types, or only have names with records below them,
+ * get an empty answer, and names under a zone with an SOA record that
+ * don't exist get NXDOMAIN, so they never leak to upstreams.
+ *
+ * Zone files support $ORIGIN, $TTL and single line records of types A, AAAA,
+ * CNAME, NS, PTR, MX, TXT, SRV and SOA.
+ *
+ */
+public final class LocalData {
+	private static final int CLASS_IN = 1;
+	// TTL of hosts file records and zone records without $TTL
+	private static final int DEFAULT_TTL = 300;
+	// Key type of responses for types a name doesn't have
+	private static final int TYPE_OTHER = 0;
+	private static final int TYPE_A = 1;
+	private static final int TYPE_NS = 2;
+	private static final int TYPE_CNAME = 5;
+	private static final int TYPE_PTR = 12;
+	private static final int TYPE_MX = 15;
+	private static final int TYPE_TXT = 16;
+	private static final int TYPE_AAAA = 28;
+	private static final int TYPE_SRV = 33;
+	private static final int TYPE_ANY = 255;
+	private static final int MAX_PACKET_SIZE = 16384;
+
+	private static final class Record {
+		private final String name;
+		private final int type;
+		private final int ttl;
+		private final byte[] rdata;
+
+		private Record(String name, int type, int ttl, byte[] rdata) {
+			this.name = name;
+			this.type = type;
+			this.ttl = ttl;
+			this.rdata = rdata;
+		}
+	}
+
+	// Records by lowercase name, in file order
+	private final Map<String, List<Record>> records = new LinkedHashMap<>();
+	// SOA records by lowercase zone name
+	private final Map<String, Record> zones = new HashMap<>();
+	private final Map<CacheKey, ResponseTemplate> answers = new HashMap<>();
+	// NXDOMAIN responses by zone name
+	private final Map<String, ResponseTemplate> nxdomains = new HashMap<>();
+
+	/**
+	 * Number of names with records
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Loads a hosts file: an address followed by names on every line
+	 */
+	public void loadHosts(String filename) throws IOException {
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(filename)))) {
+			String line;
+			int lineno = 0;
+			while (null != (line = r.readLine())) {
+				++lineno;
+				int index = line.indexOf('#');
+				if (index != -1) {
+					line = line.substring(0, index);
+				}
+				final String[] split = line.trim().split("\\s+");
+				if (split.length < 2) {
+					if (!split[0].isEmpty())
+						throw new IOException(filename + ":" + lineno
+								+ ": missing host name");
+					continue;
+				}
+				final byte[] address = parseAddress(split[0], filename, lineno);
+				final int type = address.length == 4 ? TYPE_A : TYPE_AAAA;
+				for (int i = 1; i < split.length; ++i) {
+					add(new Record(normalize(split[i]), type, DEFAULT_TTL,
+							address));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads a zone file in a simplified master file format
+	 */
+	public void loadZone(String filename) throws IOException {
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(filename)))) {
+			String origin = "";
+			String owner = null;
+			int ttl = DEFAULT_TTL;
+			String line;
+			int lineno = 0;
+			while (null != (line = r.readLine())) {
+				++lineno;
+				final List<String> tokens = tokenize(line);
+				if (tokens.isEmpty())
+					continue;
+				try {
+					if (tokens.get(0).equalsIgnoreCase("$ORIGIN")) {
+						origin = normalize(tokens.get(1));
+						continue;
+					}
+					if (tokens.get(0).equalsIgnoreCase("$TTL")) {
+						ttl = Integer.parseInt(tokens.get(1));
+						continue;
+					}
+					int index = 0;
+					if (!Character.isWhitespace(line.charAt(0)))
+						owner = absolute(tokens.get(index++), origin);
+					if (owner == null)
+						throw new IllegalArgumentException("missing owner name");
+					int recordTtl = ttl;
+					if (Character.isDigit(tokens.get(index).charAt(0)))
+						recordTtl = Integer.parseInt(tokens.get(index++));
+					if (tokens.get(index).equalsIgnoreCase("IN"))
+						++index;
+					final int type = DNSWire.parseType(tokens.get(index++));
+					final List<String> rdata = tokens.subList(index,
+							tokens.size());
+					final Record record = new Record(owner, type, recordTtl,
+							buildRdata(type, rdata, origin));
+					add(record);
+					if (type == DNSWire.TYPE_SOA)
+						zones.put(owner, record);
+				} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+					throw new IOException(filename + ":" + lineno + ": "
+							+ (e.getMessage() != null ? e.getMessage()
+									: "bad record"));
+				}
+			}
+		}
+	}
+
+	private void add(Record record) {
+		List<Record> list = records.get(record.name);
+		if (list == null) {
+			list = new ArrayList<>();
+			records.put(record.name, list);
+		}
+		list.add(record);
+	}
+
+	/**
+	 * Precomputes responses for every loaded name
+	 *
+	 * MUST be called after loading and before lookups
+	 */
+	public void build() {
+		answers.clear();
+		nxdomains.clear();
+		for (Map.Entry<String, Record> e : zones.entrySet()) {
+			nxdomains.put(e.getKey(), buildResponse("", DNSWire.RCODE_NXDOMAIN,
+					new ArrayList<Record>(), e.getValue()));
+		}
+		for (Map.Entry<String, List<Record>> e : records.entrySet()) {
+			final String name = e.getKey();
+			final List<Record> list = e.getValue();
+			final String zone = findZone(name);
+			final Record soa = zone != null ? zones.get(zone) : null;
+			Record cname = null;
+			final Map<Integer, List<Record>> byType = new LinkedHashMap<>();
+			for (Record record : list) {
+				if (record.type == TYPE_CNAME && cname == null)
+					cname = record;
+				List<Record> typed = byType.get(record.type);
+				if (typed == null) {
+					typed = new ArrayList<>();
+					byType.put(record.type, typed);
+				}
+				typed.add(record);
+			}
+			for (Map.Entry<Integer, List<Record>> t : byType.entrySet()) {
+				answers.put(key(name, t.getKey()), buildResponse(name,
+						DNSWire.RCODE_NOERROR, t.getValue(), null));
+			}
+			answers.put(key(name, TYPE_ANY), buildResponse(name,
+					DNSWire.RCODE_NOERROR, list, null));
+			if (cname != null) {
+				// Follow one alias if its target is local too
+				final List<Record> target = records.get(targetOf(cname));
+				if (target != null) {
+					for (Record record : target) {
+						final CacheKey key = key(name, record.type);
+						if (answers.containsKey(key))
+							continue;
+						final List<Record> chain = new ArrayList<>();
+						chain.add(cname);
+						for (Record other : target) {
+							if (other.type == record.type)
+								chain.add(other);
+						}
+						answers.put(key, buildResponse(name,
+								DNSWire.RCODE_NOERROR, chain, null));
+					}
+				}
+				answers.put(key(name, TYPE_OTHER), buildResponse(name,
+						DNSWire.RCODE_NOERROR, Arrays.asList(cname), null));
+			} else {
+				answers.put(key(name, TYPE_OTHER), buildResponse(name,
+						DNSWire.RCODE_NOERROR, new ArrayList<Record>(), soa));
+			}
+		}
+		// Empty non-terminals between a zone and its names exist, so they
+		// get an empty answer instead of NXDOMAIN, see RFC 8020
+		for (String name : records.keySet()) {
+			final String zone = findZone(name);
+			if (zone == null)
+				continue;
+			String parent = name;
+			while (true) {
+				final int dot = parent.indexOf('.');
+				parent = dot == -1 ? "" : parent.substring(dot + 1);
+				if (parent.length() <= zone.length())
+					break;
+				final CacheKey key = key(parent, TYPE_OTHER);
+				if (!answers.containsKey(key))
+					answers.put(key, buildResponse(parent,
+							DNSWire.RCODE_NOERROR, new ArrayList<Record>(),
+							zones.get(zone)));
+			}
+		}
+	}
+
+	/**
+	 * Returns a template of the response to a standard query for local data,
+	 * or null if the name is not local
+	 */
+	public ResponseTemplate lookup(DNSMessage message) {
+		if (message.getOpcode() != 0 || message.getQuestions().length != 1)
+			return null;
+		final DNSQuestion question = message.getQuestions()[0];
+		if (question.getQClass() != CLASS_IN)
+			return null;
+		final String name = question.getName().toLowerCase(Locale.ROOT);
+		ResponseTemplate answer = answers.get(key(name, question.getQType()));
+		if (answer == null)
+			answer = answers.get(key(name, TYPE_OTHER));
+		if (answer == null) {
+			final String zone = findZone(name);
+			if (zone != null)
+				answer = nxdomains.get(zone);
+		}
+		return answer;
+	}
+
+	// Finds the closest enclosing zone
+	private String findZone(String name) {
+		String suffix = name;
+		while (true) {
+			if (zones.containsKey(suffix))
+				return suffix;
+			if (suffix.isEmpty())
+				return null;
+			final int dot = suffix.indexOf('.');
+			suffix = dot == -1 ? "" : suffix.substring(dot + 1);
+		}
+	}
+
+	private static CacheKey key(String name, int type) {
+		final byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+		final byte[] key = Arrays.copyOf(bytes, bytes.length + 4);
+		key[bytes.length] = (byte) (type >> 8);
+		key[bytes.length + 1] = (byte) type;
+		key[bytes.length + 2] = (byte) (CLASS_IN >> 8);
+		key[bytes.length + 3] = (byte) CLASS_IN;
+		return new CacheKey(key);
+	}
+
+	// Target of a CNAME record, stored uncompressed in rdata
+	private static String targetOf(Record cname) {
+		final StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while (cname.rdata[i] != 0) {
+			final int length = cname.rdata[i++];
+			if (sb.length() > 0)
+				sb.append('.');
+			sb.append(new String(cname.rdata, i, length,
+					StandardCharsets.ISO_8859_1));
+			i += length;
+		}
+		return sb.toString();
+	}
+
+	// Records owned by qname point to the question, which comes first
+	private static ResponseTemplate buildResponse(String qname, int rcode,
+			List<Record> answer, Record authority) {
+		final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+		for (Record record : answer) {
+			putRecord(buffer, qname, record);
+		}
+		if (authority != null)
+			putRecord(buffer, qname, authority);
+		final byte[] records = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(records);
+		return new ResponseTemplate(rcode, true, false, answer.size(),
+				authority != null ? 1 : 0, 0, records);
+	}
+
+	private static void putRecord(ByteBuffer buffer, String qname,
+			Record record) {
+		if (record.name.equals(qname)) {
+			// Pointer to the question name
+			buffer.putShort((short) (0xC000 | DNSWire.HEADER_SIZE));
+		} else {
+			DNSWire.putName(buffer, record.name);
+		}
+		buffer.putShort((short) record.type);
+		buffer.putShort((short) CLASS_IN);
+		buffer.putInt(record.ttl);
+		buffer.putShort((short) record.rdata.length);
+		buffer.put(record.rdata);
+	}
+
+	private static byte[] buildRdata(int type, List<String> rdata,
+			String origin) {
+		final ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+		switch (type) {
+		case TYPE_A:
+		case TYPE_AAAA:
+			final byte[] address = parseAddress(rdata.get(0), null, 0);
+			if ((type == TYPE_A) != (address.length == 4))
+				throw new IllegalArgumentException("address family mismatch");
+			buffer.put(address);
+			break;
+		case TYPE_CNAME:
+		case TYPE_NS:
+		case TYPE_PTR:
+			DNSWire.putName(buffer, absolute(rdata.get(0), origin));
+			break;
+		case TYPE_MX:
+			buffer.putShort((short) Integer.parseInt(rdata.get(0)));
+			DNSWire.putName(buffer, absolute(rdata.get(1), origin));
+			break;
+		case TYPE_SRV:
+			buffer.putShort((short) Integer.parseInt(rdata.get(0)));
+			buffer.putShort((short) Integer.parseInt(rdata.get(1)));
+			buffer.putShort((short) Integer.parseInt(rdata.get(2)));
+			DNSWire.putName(buffer, absolute(rdata.get(3), origin));
+			break;
+		case TYPE_TXT:
+			for (String text : rdata) {
+				final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+				if (bytes.length > 255)
+					throw new IllegalArgumentException("TXT string too long");
+				buffer.put((byte) bytes.length);
+				buffer.put(bytes);
+			}
+			break;
+		case DNSWire.TYPE_SOA:
+			DNSWire.putName(buffer, absolute(rdata.get(0), origin));
+			DNSWire.putName(buffer, absolute(rdata.get(1), origin));
+			for (int i = 2; i < 7; ++i) {
+				buffer.putInt((int) Long.parseLong(rdata.get(i)));
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("unsupported record type "
+					+ type);
+		}
+		final byte[] bytes = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	// Parses an address literal without ever resolving it
+	private static byte[] parseAddress(String text, String filename,
+			int lineno) {
+		if (text.indexOf(':') == -1
+				&& !text.matches("[0-9]+\\.[0-9]+\\.[0-9]+\\.[0-9]+"))
+			throw new IllegalArgumentException((filename != null ? filename
+					+ ":" + lineno + ": " : "")
+					+ "bad address '" + text + "'");
+		try {
+			return InetAddress.getByName(text).getAddress();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("bad address '" + text + "'");
+		}
+	}
+
+	// Lowercase name without trailing dot
+	private static String normalize(String name) {
+		name = name.toLowerCase(Locale.ROOT);
+		return name.endsWith(".") ? name.substring(0, name.length() - 1)
+				: name;
+	}
+
+	private static String absolute(String name, String origin) {
+		if (name.equals("@"))
+			return origin;
+		if (name.endsWith(".") || origin.isEmpty())
+			return normalize(name);
+		return normalize(name) + "." + origin;
+	}
+
+	// Splits a zone file line into tokens, quoted strings are single tokens
+	private static List<String> tokenize(String line) {
+		final List<String> tokens = new ArrayList<>();
+		final StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		boolean token = false;
+		for (int i = 0; i < line.length(); ++i) {
+			final char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"')
+					quoted = false;
+				else if (c == '\\' && i + 1 < line.length())
+					sb.append(line.charAt(++i));
+				else
+					sb.append(c);
+			} else if (c == '"') {
+				quoted = true;
+				token = true;
+			} else if (c == ';') {
+				break;
+			} else if (Character.isWhitespace(c)) {
+				if (token) {
+					tokens.add(sb.toString());
+					sb.setLength(0);
+					token = false;
+				}
+			} else {
+				sb.append(c);
+				token = true;
+			}
+		}
+		if (token)
+			tokens.add(sb.toString());
+		return tokens;
+	}
+}
@@ -19,6 +19,8 @@ public final class DNSMessage {
 	private static final short TC_MASK = (short) 0x0200;
 	private static final short RD_MASK = (short) 0x0100;
 	private static final short RA_MASK = (short) 0x0080;
+	private static final short AD_MASK = (short) 0x0020;
+	private static final short CD_MASK = (short) 0x0010;
 	private static final short RCODE_MASK = (short) 0x000f;
 
 	private final short id;
@@ -70,6 +72,14 @@ public final class DNSMessage {
 		return (flags & RA_MASK) != 0;
 	}
 
+	public final boolean isAuthenticData() {
+		return (flags & AD_MASK) != 0;
+	}
+
+	public final boolean isCheckingDisabled() {
+		return (flags & CD_MASK) != 0;
+	}
+
 	public final int getRcode() {
 		return (flags & RCODE_MASK);
 	}
@@ -50,6 +50,29 @@ public final class DNSResourceRecord {
 		return rdata;
 	}
 
+	public final boolean isSignature() {
+		return (rtype & 0xffff) == DNSWire.TYPE_RRSIG && rdata.length >= 18;
+	}
+
+	/**
+	 * Returns type of the RRset covered by this RRSIG
+	 */
+	public final int getTypeCovered() {
+		if (!isSignature())
+			throw new IllegalStateException("Not a signature: " + this);
+		return ((rdata[0] & 0xff) << 8) | (rdata[1] & 0xff);
+	}
+
+	/**
+	 * Returns expiration of this RRSIG in seconds since epoch, modulo 2^32
+	 */
+	public final int getSignatureExpiration() {
+		if (!isSignature())
+			throw new IllegalStateException("Not a signature: " + this);
+		return ((rdata[8] & 0xff) << 24) | ((rdata[9] & 0xff) << 16)
+				| ((rdata[10] & 0xff) << 8) | (rdata[11] & 0xff);
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj) {
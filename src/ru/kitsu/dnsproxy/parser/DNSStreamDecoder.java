@@ -0,0 +1,80 @@
+package ru.kitsu.dnsproxy.parser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of length-prefixed DNS messages (RFC 1035 4.2.2)
+ *
+ * Data is read from the stream right into {@link #buffer()}, then every
+ * complete message is returned by {@link #next()} as a view of the buffer,
+ * so a single read may yield many messages without copying them. After the
+ * last complete message {@link #compact()} moves a partial one, if any, to
+ * the start of the buffer, where the next read continues it.
+ *
+ */
+public final class DNSStreamDecoder {
+	// Size of the length prefix
+	private static final int PREFIX_SIZE = 2;
+
+	private final ByteBuffer buffer;
+	// Start of the next frame in buffer
+	private int start;
+
+	/**
+	 * @param capacity
+	 *            size of the buffer, must fit the largest expected message
+	 *            with its prefix
+	 */
+	public DNSStreamDecoder(int capacity) {
+		this.buffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Buffer to read into, positioned after the data received so far
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the next complete message, or null if there is none yet
+	 *
+	 * The message is only valid until {@link #compact()} or next read.
+	 *
+	 * @throws DNSParseException
+	 *             if the frame is empty or can never fit into the buffer
+	 */
+	public ByteBuffer next() throws DNSParseException {
+		final int available = buffer.position() - start;
+		if (available < PREFIX_SIZE)
+			return null;
+		final int length = buffer.getShort(start) & 0xffff;
+		if (length == 0 || PREFIX_SIZE + length > buffer.capacity())
+			throw new DNSParseException("Bad frame length " + length);
+		if (available < PREFIX_SIZE + length)
+			return null;
+		final ByteBuffer message = buffer.duplicate();
+		message.limit(start + PREFIX_SIZE + length);
+		message.position(start + PREFIX_SIZE);
+		start += PREFIX_SIZE + length;
+		return message.slice();
+	}
+
+	/**
+	 * Moves the partial frame to the start of the buffer for the next read
+	 */
+	public void compact() {
+		buffer.limit(buffer.position());
+		buffer.position(start);
+		buffer.compact();
+		start = 0;
+	}
+
+	/**
+	 * Discards everything received, e.g. when the stream is reopened
+	 */
+	public void reset() {
+		buffer.clear();
+		start = 0;
+	}
+}
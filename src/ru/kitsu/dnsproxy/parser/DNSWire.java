@@ -0,0 +1,476 @@
+package ru.kitsu.dnsproxy.parser;
+
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers that work on DNS messages in wire format without building a
+ * {@link DNSMessage}
+ *
+ */
+public final class DNSWire {
+	public static final int HEADER_SIZE = 12;
+	public static final int TYPE_SOA = 6;
+	public static final int TYPE_OPT = 41;
+	public static final int TYPE_RRSIG = 46;
+	// EDNS option code of client subnet
+	public static final int OPTION_CLIENT_SUBNET = 8;
+	public static final int RCODE_NOERROR = 0;
+	public static final int RCODE_SERVFAIL = 2;
+	public static final int RCODE_NXDOMAIN = 3;
+	public static final int RCODE_REFUSED = 5;
+	// Largest UDP message a client without EDNS accepts
+	public static final int MIN_UDP_PAYLOAD = 512;
+
+	private static final String[] TYPE_NAMES = { "A", "1", "NS", "2",
+			"CNAME", "5", "SOA", "6", "PTR", "12", "MX", "15", "TXT", "16",
+			"AAAA", "28", "SRV", "33", "NAPTR", "35", "DS", "43", "RRSIG",
+			"46", "NSEC", "47", "DNSKEY", "48", "NSEC3", "50", "HTTPS", "65",
+			"ANY", "255" };
+
+	private DNSWire() {
+	}
+
+	/**
+	 * Parses a record type mnemonic like AAAA, TYPE28 or a plain number
+	 */
+	public static int parseType(String type) {
+		final String upper = type.toUpperCase();
+		for (int i = 0; i < TYPE_NAMES.length; i += 2) {
+			if (TYPE_NAMES[i].equals(upper))
+				return Integer.parseInt(TYPE_NAMES[i + 1]);
+		}
+		if (upper.startsWith("TYPE"))
+			return Integer.parseInt(upper.substring(4));
+		return Integer.parseInt(upper);
+	}
+
+	/**
+	 * Returns the mnemonic of a record type, or TYPEnn for unknown ones
+	 */
+	public static String typeName(int type) {
+		for (int i = 1; i < TYPE_NAMES.length; i += 2) {
+			if (Integer.parseInt(TYPE_NAMES[i]) == type)
+				return TYPE_NAMES[i - 1];
+		}
+		return "TYPE" + type;
+	}
+
+	/**
+	 * Builds a recursive query for a single question with id 0
+	 */
+	public static byte[] buildQuery(String name, int qtype, int qclass) {
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 255 + 4);
+		buffer.putShort((short) 0);
+		buffer.putShort((short) 0x0100);
+		buffer.putShort((short) 1);
+		buffer.putShort((short) 0);
+		buffer.putShort((short) 0);
+		buffer.putShort((short) 0);
+		putName(buffer, name);
+		buffer.putShort((short) qtype);
+		buffer.putShort((short) qclass);
+		final byte[] packet = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(packet);
+		return packet;
+	}
+
+	/**
+	 * Writes an uncompressed name, trailing dot is optional
+	 */
+	public static void putName(ByteBuffer buffer, String name) {
+		int start = 0;
+		while (start < name.length()) {
+			int end = name.indexOf('.', start);
+			if (end == -1)
+				end = name.length();
+			if (end - start > 63)
+				throw new IllegalArgumentException("DNS label too long: "
+						+ name);
+			if (end > start) {
+				buffer.put((byte) (end - start));
+				for (int i = start; i < end; ++i) {
+					buffer.put((byte) name.charAt(i));
+				}
+			}
+			start = end + 1;
+		}
+		buffer.put((byte) 0);
+	}
+
+	/**
+	 * Skips a possibly compressed name at the current buffer position
+	 */
+	public static void skipName(ByteBuffer buffer) throws DNSParseException {
+		while (true) {
+			final int b = buffer.get() & 0xff;
+			if (b == 0)
+				return;
+			switch (b & 0xC0) {
+			case 0x00:
+				buffer.position(buffer.position() + b);
+				break;
+			case 0xC0:
+				buffer.get();
+				return;
+			default:
+				throw new DNSParseException("Unsupported DNS name byte");
+			}
+		}
+	}
+
+	/**
+	 * Positions the buffer at the first record after the question section
+	 */
+	public static void skipQuestions(ByteBuffer buffer)
+			throws DNSParseException {
+		final int qdcount = buffer.getShort(4) & 0xffff;
+		buffer.position(HEADER_SIZE);
+		for (int i = 0; i < qdcount; ++i) {
+			skipName(buffer);
+			buffer.position(buffer.position() + 4);
+		}
+	}
+
+	/**
+	 * Returns offset of the first record after the question section of a
+	 * message in packet, or -1 if it is malformed
+	 */
+	public static int questionEnd(byte[] packet, int length) {
+		if (length < HEADER_SIZE || length > packet.length)
+			return -1;
+		final int qdcount = ((packet[4] & 0xff) << 8) | (packet[5] & 0xff);
+		int offset = HEADER_SIZE;
+		for (int i = 0; i < qdcount; ++i) {
+			while (true) {
+				if (offset >= length)
+					return -1;
+				final int b = packet[offset] & 0xff;
+				if (b == 0) {
+					++offset;
+					break;
+				}
+				if ((b & 0xC0) == 0xC0) {
+					offset += 2;
+					break;
+				}
+				if ((b & 0xC0) != 0)
+					return -1;
+				offset += b + 1;
+			}
+			offset += 4;
+		}
+		return offset <= length ? offset : -1;
+	}
+
+	/**
+	 * Returns the smallest TTL found in the answer and authority sections, or
+	 * -1 if there are no records there
+	 */
+	public static int minimumTtl(byte[] packet) throws DNSParseException {
+		final ByteBuffer buffer = ByteBuffer.wrap(packet);
+		try {
+			final int count = (buffer.getShort(6) & 0xffff)
+					+ (buffer.getShort(8) & 0xffff);
+			skipQuestions(buffer);
+			int min = -1;
+			for (int i = 0; i < count; ++i) {
+				skipName(buffer);
+				final int rtype = buffer.getShort() & 0xffff;
+				buffer.getShort();
+				final int ttl = buffer.getInt();
+				final int rdlength = buffer.getShort() & 0xffff;
+				if (rtype == TYPE_SOA && rdlength >= 20) {
+					// Negative answers are cached for at most SOA minimum
+					final int minimum = buffer.getInt(buffer.position()
+							+ rdlength - 4);
+					if (min == -1 || (minimum >= 0 && minimum < min))
+						min = Math.max(minimum, 0);
+				}
+				buffer.position(buffer.position() + rdlength);
+				if (ttl >= 0 && (min == -1 || ttl < min))
+					min = ttl;
+			}
+			return min;
+		} catch (BufferUnderflowException | IllegalArgumentException
+				| IndexOutOfBoundsException e) {
+			throw new DNSParseException("Truncated DNS message");
+		}
+	}
+
+	/**
+	 * Returns true if rcode means the upstream couldn't or wouldn't answer
+	 */
+	public static boolean isErrorRcode(int rcode) {
+		return rcode == RCODE_SERVFAIL || rcode == RCODE_REFUSED;
+	}
+
+	/**
+	 * Digest of rcode and answer records, ignoring their TTLs and order
+	 * 
+	 * Records are hashed by type, class and raw rdata, so answers with names
+	 * in rdata compressed differently are considered different.
+	 */
+	public static long answerDigest(byte[] packet) throws DNSParseException {
+		final ByteBuffer buffer = ByteBuffer.wrap(packet);
+		try {
+			final int count = buffer.getShort(6) & 0xffff;
+			long digest = (buffer.getShort(2) & 0x000f) * 0x9e3779b97f4a7c15L;
+			skipQuestions(buffer);
+			for (int i = 0; i < count; ++i) {
+				skipName(buffer);
+				long h = 0xcbf29ce484222325L;
+				h = (h ^ (buffer.getInt() & 0xffffffffL)) * 0x100000001b3L;
+				buffer.getInt();
+				final int rdlength = buffer.getShort() & 0xffff;
+				final int end = buffer.position() + rdlength;
+				if (end > buffer.limit())
+					throw new DNSParseException("Truncated DNS message");
+				for (int j = buffer.position(); j < end; ++j) {
+					h = (h ^ (packet[j] & 0xff)) * 0x100000001b3L;
+				}
+				buffer.position(end);
+				// Sum of mixed hashes doesn't depend on record order
+				h ^= h >>> 33;
+				h *= 0xff51afd7ed558ccdL;
+				h ^= h >>> 33;
+				digest += h;
+			}
+			return digest;
+		} catch (BufferUnderflowException | IllegalArgumentException
+				| IndexOutOfBoundsException e) {
+			throw new DNSParseException("Truncated DNS message");
+		}
+	}
+
+	/**
+	 * Subtracts elapsed seconds from TTLs of all records except OPT, in place
+	 */
+	public static void decrementTtls(byte[] packet, int elapsed)
+			throws DNSParseException {
+		if (elapsed <= 0)
+			return;
+		final ByteBuffer buffer = ByteBuffer.wrap(packet);
+		try {
+			final int count = (buffer.getShort(6) & 0xffff)
+					+ (buffer.getShort(8) & 0xffff)
+					+ (buffer.getShort(10) & 0xffff);
+			skipQuestions(buffer);
+			for (int i = 0; i < count; ++i) {
+				skipName(buffer);
+				final int rtype = buffer.getShort() & 0xffff;
+				buffer.getShort();
+				if (rtype != TYPE_OPT) {
+					final int ttl = buffer.getInt(buffer.position());
+					buffer.putInt(buffer.position(), Math.max(ttl - elapsed, 0));
+				}
+				buffer.position(buffer.position() + 4);
+				final int rdlength = buffer.getShort() & 0xffff;
+				buffer.position(buffer.position() + rdlength);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException
+				| IndexOutOfBoundsException e) {
+			throw new DNSParseException("Truncated DNS message");
+		}
+	}
+
+	/**
+	 * Returns offset of the OPT record in the additional section, or -1 if
+	 * there is none
+	 */
+	public static int findOpt(byte[] packet) throws DNSParseException {
+		final ByteBuffer buffer = ByteBuffer.wrap(packet);
+		try {
+			final int skipped = (buffer.getShort(6) & 0xffff)
+					+ (buffer.getShort(8) & 0xffff);
+			final int count = skipped + (buffer.getShort(10) & 0xffff);
+			skipQuestions(buffer);
+			for (int i = 0; i < count; ++i) {
+				final int start = buffer.position();
+				skipName(buffer);
+				final int rtype = buffer.getShort() & 0xffff;
+				buffer.position(buffer.position() + 6);
+				final int rdlength = buffer.getShort() & 0xffff;
+				if (rdlength > buffer.remaining())
+					throw new DNSParseException("Truncated DNS message");
+				if (rtype == TYPE_OPT && i >= skipped) {
+					if (packet[start] != 0)
+						throw new DNSParseException("OPT owner is not root");
+					return start;
+				}
+				buffer.position(buffer.position() + rdlength);
+			}
+			return -1;
+		} catch (BufferUnderflowException | IllegalArgumentException
+				| IndexOutOfBoundsException e) {
+			throw new DNSParseException("Truncated DNS message");
+		}
+	}
+
+	/**
+	 * Returns true if the OPT record of packet has the DNSSEC OK bit set
+	 */
+	public static boolean isDnssecOk(byte[] packet) throws DNSParseException {
+		final int opt = findOpt(packet);
+		// Extended rcode and version come before the flags in TTL field
+		return opt != -1 && (packet[opt + 7] & 0x80) != 0;
+	}
+
+	/**
+	 * Returns the largest UDP response the sender of a request accepts
+	 */
+	public static int udpPayloadSize(byte[] packet) throws DNSParseException {
+		final int opt = findOpt(packet);
+		if (opt == -1)
+			return MIN_UDP_PAYLOAD;
+		// Payload size is in the class field, smaller values mean 512
+		return Math.max(MIN_UDP_PAYLOAD, getShort(packet, opt + 3));
+	}
+
+	/**
+	 * Returns header and question of packet with the TC bit set and no
+	 * records, so that the client retries over TCP
+	 */
+	public static byte[] truncate(byte[] packet) throws DNSParseException {
+		final int end = questionEnd(packet, packet.length);
+		if (end == -1)
+			throw new DNSParseException("Truncated DNS message");
+		final byte[] result = new byte[end];
+		System.arraycopy(packet, 0, result, 0, end);
+		result[2] |= 0x02;
+		for (int i = 6; i < HEADER_SIZE; ++i) {
+			result[i] = 0;
+		}
+		return result;
+	}
+
+	/**
+	 * Sets or clears the AD bit of packet in place
+	 */
+	public static void setAuthenticData(byte[] packet, boolean value) {
+		if (value)
+			packet[3] |= 0x20;
+		else
+			packet[3] &= ~0x20;
+	}
+
+	/**
+	 * Returns a copy of packet with a client subnet option for address
+	 * truncated to prefix bits, replacing any previous one
+	 * 
+	 * An OPT record is added if packet doesn't have one.
+	 */
+	public static byte[] setClientSubnet(byte[] packet, InetAddress address,
+			int prefix) throws DNSParseException {
+		final byte[] bytes = address.getAddress();
+		prefix = Math.min(prefix, bytes.length * 8);
+		final int length = (prefix + 7) / 8;
+		final ByteBuffer option = ByteBuffer.allocate(8 + length);
+		option.putShort((short) OPTION_CLIENT_SUBNET);
+		option.putShort((short) (4 + length));
+		option.putShort((short) (bytes.length == 4 ? 1 : 2));
+		option.put((byte) prefix);
+		option.put((byte) 0);
+		option.put(bytes, 0, length);
+		if (prefix % 8 != 0) {
+			final int last = option.position() - 1;
+			option.put(last,
+					(byte) (option.get(last) & (0xff << (8 - prefix % 8))));
+		}
+		final int opt = findOpt(packet);
+		if (opt != -1)
+			return replaceOption(packet, opt, OPTION_CLIENT_SUBNET,
+					option.array());
+		final ByteBuffer buffer = ByteBuffer.allocate(packet.length + 11
+				+ option.capacity());
+		buffer.put(packet);
+		buffer.putShort(10, (short) (buffer.getShort(10) + 1));
+		buffer.put((byte) 0);
+		buffer.putShort((short) TYPE_OPT);
+		// Client didn't use EDNS, so it can't receive more than that
+		buffer.putShort((short) 512);
+		buffer.putInt(0);
+		buffer.putShort((short) option.capacity());
+		buffer.put(option.array());
+		return buffer.array();
+	}
+
+	/**
+	 * Returns a copy of packet without client subnet option, or without the
+	 * whole OPT record if removeOpt is true
+	 */
+	public static byte[] removeClientSubnet(byte[] packet, boolean removeOpt)
+			throws DNSParseException {
+		final int opt = findOpt(packet);
+		if (opt == -1)
+			return packet;
+		if (!removeOpt)
+			return replaceOption(packet, opt, OPTION_CLIENT_SUBNET, null);
+		final int end = opt + 11 + getShort(packet, opt + 9);
+		final byte[] result = new byte[packet.length - (end - opt)];
+		System.arraycopy(packet, 0, result, 0, opt);
+		System.arraycopy(packet, end, result, opt, packet.length - end);
+		final int arcount = getShort(result, 10);
+		result[10] = (byte) ((arcount - 1) >> 8);
+		result[11] = (byte) (arcount - 1);
+		return result;
+	}
+
+	/**
+	 * Returns scope prefix length of the client subnet option, or -1 if
+	 * there is none
+	 */
+	public static int clientSubnetScope(byte[] packet)
+			throws DNSParseException {
+		final int opt = findOpt(packet);
+		if (opt == -1)
+			return -1;
+		final int end = opt + 11 + getShort(packet, opt + 9);
+		int pos = opt + 11;
+		while (pos + 4 <= end) {
+			final int code = getShort(packet, pos);
+			final int length = getShort(packet, pos + 2);
+			if (code == OPTION_CLIENT_SUBNET && length >= 4 && pos + 8 <= end)
+				return packet[pos + 7] & 0xff;
+			pos += 4 + length;
+		}
+		return -1;
+	}
+
+	// Rebuilds the OPT record at opt without options with code, followed by
+	// option if it's not null
+	private static byte[] replaceOption(byte[] packet, int opt, int code,
+			byte[] option) throws DNSParseException {
+		final int start = opt + 11;
+		final int end = start + getShort(packet, opt + 9);
+		final ByteBuffer buffer = ByteBuffer.allocate(packet.length
+				+ (option != null ? option.length : 0));
+		buffer.put(packet, 0, start);
+		int pos = start;
+		while (pos < end) {
+			if (pos + 4 > end)
+				throw new DNSParseException("Truncated EDNS option");
+			final int length = 4 + getShort(packet, pos + 2);
+			if (pos + length > end)
+				throw new DNSParseException("Truncated EDNS option");
+			if (getShort(packet, pos) != code)
+				buffer.put(packet, pos, length);
+			pos += length;
+		}
+		if (option != null)
+			buffer.put(option);
+		buffer.putShort(opt + 9, (short) (buffer.position() - start));
+		buffer.put(packet, end, packet.length - end);
+		final byte[] result = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(result);
+		return result;
+	}
+
+	// Unsigned 16-bit value at offset
+	private static int getShort(byte[] packet, int offset) {
+		return ((packet[offset] & 0xff) << 8) | (packet[offset + 1] & 0xff);
+	}
+}
@@ -0,0 +1,97 @@
+package ru.kitsu.dnsproxy.parser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Prebuilt part of a locally generated response
+ *
+ * A response is written straight into the send buffer from the request
+ * bytes: id, opcode, RD and CD are copied from the request header, the
+ * question section is copied as is, and prebuilt records are appended.
+ * Owner names of records may point to the question name at offset 12.
+ *
+ */
+public final class ResponseTemplate {
+	private static final int FLAG_QR = 0x8000;
+	private static final int FLAG_AA = 0x0400;
+	private static final int FLAG_TC = 0x0200;
+	private static final int FLAG_RA = 0x0080;
+	// Request flags echoed in responses: opcode, RD and CD
+	private static final int ECHO_FLAGS = 0x7800 | 0x0100 | 0x0010;
+	private static final byte[] NO_RECORDS = new byte[0];
+
+	public static final ResponseTemplate SERVFAIL = new ResponseTemplate(
+			DNSWire.RCODE_SERVFAIL, false, false);
+	public static final ResponseTemplate REFUSED = new ResponseTemplate(
+			DNSWire.RCODE_REFUSED, false, false);
+	public static final ResponseTemplate NXDOMAIN = new ResponseTemplate(
+			DNSWire.RCODE_NXDOMAIN, false, false);
+	// Empty answer with TC set, so clients retry over TCP
+	public static final ResponseTemplate TRUNCATED = new ResponseTemplate(
+			DNSWire.RCODE_NOERROR, false, true);
+
+	private final int flags;
+	private final short ancount;
+	private final short nscount;
+	private final short arcount;
+	private final byte[] records;
+
+	public ResponseTemplate(int rcode, boolean authoritative, boolean truncated) {
+		this(rcode, authoritative, truncated, 0, 0, 0, NO_RECORDS);
+	}
+
+	/**
+	 * @param records
+	 *            answer, authority and additional records in wire format
+	 */
+	public ResponseTemplate(int rcode, boolean authoritative,
+			boolean truncated, int ancount, int nscount, int arcount,
+			byte[] records) {
+		this.flags = FLAG_QR | FLAG_RA | (authoritative ? FLAG_AA : 0)
+				| (truncated ? FLAG_TC : 0) | (rcode & 0x000f);
+		this.ancount = (short) ancount;
+		this.nscount = (short) nscount;
+		this.arcount = (short) arcount;
+		this.records = records;
+	}
+
+	public int getRcode() {
+		return flags & 0x000f;
+	}
+
+	/**
+	 * Returns the size of the response to the request, or -1 if request is
+	 * malformed
+	 */
+	public int size(byte[] request, int length) {
+		final int end = DNSWire.questionEnd(request, length);
+		return end < 0 ? -1 : end + records.length;
+	}
+
+	/**
+	 * Writes a response to the request at the buffer position
+	 *
+	 * @param request
+	 *            request in wire format
+	 * @return false if request is malformed or buffer is too small, buffer
+	 *         contents are undefined then
+	 */
+	public boolean write(ByteBuffer buffer, byte[] request, int length) {
+		final int end = DNSWire.questionEnd(request, length);
+		if (end < 0 || buffer.remaining() < end + records.length)
+			return false;
+		final int requestFlags = ((request[2] & 0xff) << 8)
+				| (request[3] & 0xff);
+		buffer.put(request[0]);
+		buffer.put(request[1]);
+		buffer.putShort((short) (flags | (requestFlags & ECHO_FLAGS)));
+		buffer.put(request[4]);
+		buffer.put(request[5]);
+		buffer.putShort(ancount);
+		buffer.putShort(nscount);
+		buffer.putShort(arcount);
+		buffer.put(request, DNSWire.HEADER_SIZE, end - DNSWire.HEADER_SIZE);
+		buffer.put(records);
+		return true;
+	}
+}